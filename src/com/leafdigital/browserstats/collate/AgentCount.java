@@ -21,6 +21,8 @@ package com.leafdigital.browserstats.collate;
 import java.io.*;
 import java.util.*;
 
+import com.leafdigital.browserstats.identify.UserAgentReader;
+
 /** Holds counts of each user agent, organised by category if specified. */
 public class AgentCount
 {
@@ -32,9 +34,11 @@ public class AgentCount
 	 * @param agent User-agent
 	 * @param ip IP address
 	 * @param c Category
+	 * @param visit True if this line starts a new visit
 	 * @param progress If true, outputs progress dots to stderr
 	 */
-	void count(String agent, String ip, Category c, boolean progress)
+	void count(String agent, String ip, Category c, boolean visit,
+		boolean progress)
 	{
 		AgentData data = agents.get(agent);
 		if(data==null)
@@ -42,7 +46,7 @@ public class AgentCount
 			data = new AgentData();
 			agents.put(agent, data);
 		}
-		data.count(ip, c);
+		data.count(ip, c, visit);
 
 		lines++;
 		if(progress && (lines & 0x3fff)==0)
@@ -52,24 +56,103 @@ public class AgentCount
 	}
 
 	/**
-	 * Writes this out as XML.
-	 * @param f Target file or null to write to stdout
-	 * @param period Time period (null if in ALL mode)
-	 * @param categories Category list
-	 * @throws IOException Any error writing file
+	 * Adds all the counts from another count object into this one.
+	 * @param other Other count
+	 */
+	void add(AgentCount other)
+	{
+		for(Map.Entry<String, AgentData> entry : other.agents.entrySet())
+		{
+			AgentData data = agents.get(entry.getKey());
+			if(data==null)
+			{
+				data = new AgentData();
+				agents.put(entry.getKey(), data);
+			}
+			data.add(entry.getValue());
+		}
+		lines += other.lines;
+	}
+
+	/**
+	 * Adds counts for several lines with the same agent at once.
+	 * @param agent User-agent
+	 * @param count Number of lines
+	 * @param visits Number of lines that started a new visit
+	 * @param categories Categories
+	 * @param categoryCounts Number of lines in each category
+	 */
+	void add(String agent, int count, int visits, Category[] categories,
+		int[] categoryCounts)
+	{
+		AgentData data = agents.get(agent);
+		if(data==null)
+		{
+			data = new AgentData();
+			agents.put(agent, data);
+		}
+		data.add(count, visits, categories, categoryCounts);
+		lines += count;
+	}
+
+	/** @return Number of lines counted */
+	int getLines()
+	{
+		return lines;
+	}
+
+	/**
+	 * Writes counts in the binary form used by {@link PartialCache}.
+	 * @param out Output
+	 * @throws IOException Any error writing
 	 */
-	void write(File f, String period, Category[] categories) throws IOException
+	void write(DataOutputStream out) throws IOException
 	{
-		Writer w;
-		if(f==null)
+		out.writeInt(lines);
+		out.writeInt(agents.size());
+		for(Map.Entry<String, AgentData> entry : agents.entrySet())
 		{
-			w = new OutputStreamWriter(System.out, "UTF-8");
+			PartialCache.writeString(out, entry.getKey());
+			entry.getValue().write(out);
 		}
-		else
+	}
+
+	/**
+	 * Reads counts written by {@link #write(DataOutputStream)}.
+	 * @param in Input
+	 * @param categoryNames Map from name to category
+	 * @return Counts
+	 * @throws IOException Any error reading
+	 */
+	static AgentCount read(DataInputStream in,
+		Map<String, Category> categoryNames) throws IOException
+	{
+		AgentCount count = new AgentCount();
+		count.lines = in.readInt();
+		int agentCount = in.readInt();
+		for(int i=0; i<agentCount; i++)
 		{
-			w = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(f), "UTF-8"));
+			String agent = PartialCache.readString(in);
+			count.agents.put(agent, AgentData.read(in, categoryNames));
 		}
+		return count;
+	}
+
+	/**
+	 * Writes this out as XML. The stream is flushed but not closed.
+	 * @param out Target stream
+	 * @param period Time period (null if in ALL mode)
+	 * @param categories Category list
+	 * @param scale 1 if all lines were counted, otherwise N where 1 in N lines
+	 *   were sampled
+	 * @param visitMinutes Length of visit window in minutes, or 0 if visits
+	 *   are not counted
+	 * @throws IOException Any error writing file
+	 */
+	void write(OutputStream out, String period, Category[] categories,
+		int scale, int visitMinutes) throws IOException
+	{
+		Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
 		String periodAttribute = "";
 		if(period != null)
 		{
@@ -88,22 +171,49 @@ public class AgentCount
 			}
 			categoryAttribute = " categories='" + categoryAttribute + "'";
 		}
+		String scaleAttribute = "";
+		if(scale > 1)
+		{
+			scaleAttribute = " scale='" + scale + "'";
+		}
+		if(visitMinutes > 0)
+		{
+			scaleAttribute += " visit-minutes='" + visitMinutes + "'";
+		}
 		w.write("<?xml version='1.0' encoding='UTF-8'?>\n" +
-			"<useragents" + periodAttribute + categoryAttribute + ">\n");
+			"<useragents" + periodAttribute + categoryAttribute + scaleAttribute
+			+ ">\n");
 
 		for(Map.Entry<String, AgentData> data : agents.entrySet())
 		{
-			data.getValue().write(w, data.getKey(), categories);
+			data.getValue().write(w, data.getKey(), categories, scale,
+				visitMinutes > 0);
 		}
 
 		w.write("</useragents>\n");
-		if(f!=null)
+		w.flush();
+	}
+
+	/**
+	 * Passes these counts to a handler, as {@link UserAgentReader} would if
+	 * reading the XML written by {@link #write(OutputStream, String, Category[],
+	 * int, int)}. This allows agents to be identified without writing XML.
+	 * @param h Handler
+	 * @param categories Category list
+	 * @param scale 1 if all lines were counted, otherwise N where 1 in N lines
+	 *   were sampled
+	 */
+	void identify(UserAgentReader.Handler h, Category[] categories, int scale)
+	{
+		String[] names = new String[categories.length];
+		for(int i=0; i<categories.length; i++)
 		{
-			w.close();
+			names[i] = categories[i].getName();
 		}
-		else
+		h.agentCategories(names);
+		for(Map.Entry<String, AgentData> data : agents.entrySet())
 		{
-			w.flush();
+			data.getValue().identify(h, data.getKey(), categories, scale);
 		}
 	}
 }
@@ -22,42 +22,334 @@ import java.io.*;
 import java.util.*;
 
 import com.leafdigital.browserstats.collate.Collate.TimePeriod;
+import com.leafdigital.browserstats.identify.AgentIdentifier;
+import com.leafdigital.browserstats.shared.*;
 
 /**
  * Counts user agents in one or a number of date categories and outputs
- * the result to files.
+ * the result to files. When several time periods are requested, lines are
+ * counted only into the finest period; coarser periods are built by merging
+ * each finer period as it is flushed.
+ * <p>
+ * Periods are closed and flushed when a watermark passes them. The watermark
+ * trails the latest time seen so far by an allowed lateness, measured either
+ * in time or in lines. Lines that arrive for a period which has already been
+ * closed are counted as late instead of being added to that period.
+ * <p>
+ * Output may also be split by host, in which case there are separate counts
+ * (and files) for each host and period. If the heap becomes more than half
+ * full, counts that have not changed since the last check (coarser periods,
+ * or hosts with little traffic) are appended to temporary files and dropped
+ * from memory; they are read back and combined when the period is written.
+ * <p>
+ * Sliding windows (such as the last five minutes of log time) can also be
+ * counted alongside the periods. These are written regularly on a timer as
+ * well as at the end, replacing the previous file each time.
  */
 public class AgentCounter
 {
+	/** Default lateness (seconds), the same as the previous 'after 1am' rule */
+	final static long DEFAULT_LATENESS = 60 * 60;
+
+	/** Proportion of maximum heap in use above which counts are moved to disk */
+	private final static double SPILL_MEMORY = 0.5;
+
+	/** Number of lines between memory checks */
+	private final static int CHECK_LINES = 65536;
+
+	/** Counts are held separately for each host and period. */
+	private static class Key
+	{
+		/** Host name, or null if not splitting by host */
+		private String host;
+		/** Period name, or null in ALL mode */
+		private String period;
+
+		private Key(String host, String period)
+		{
+			this.host = host;
+			this.period = period;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key)obj;
+			return (host == null ? other.host == null : host.equals(other.host))
+				&& (period == null ? other.period == null : period.equals(other.period));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (host == null ? 0 : host.hashCode() * 31)
+				+ (period == null ? 0 : period.hashCode());
+		}
+
+		/** @return Part of filename after prefix, e.g. ".example.com.2009-08-01" */
+		private String getName()
+		{
+			return (host == null ? "" : "." + host)
+				+ (period == null ? "" : "." + period);
+		}
+	}
+
 	private File folder;
 	private String prefix;
-	private TimePeriod period;
+	private TimePeriod[] periods;
 	private boolean unordered, overwrite;
 	private Category[] categories;
 	private boolean stdout;
+	private FrameWriter frames;
+	private int scale = 1;
+	private VisitTracker visits = null;
+	private int visitMinutes = 0;
+	private int compressLevel = 0;
+	private AgentIdentifier identifier = null;
+	private boolean userAgents = true;
+
+	private EnumMap<TimePeriod, HashMap<Key, AgentCount>> counts =
+		new EnumMap<TimePeriod, HashMap<Key, AgentCount>>(TimePeriod.class);
+	private HashSet<String> announced = new HashSet<String>();
 
-	private HashMap<String, AgentCount> counts = new HashMap<String, AgentCount>();
-	private HashSet<String> past = new HashSet<String>();
+	private boolean splitHosts = false;
+	private HashMap<String, String> hostNames = new HashMap<String, String>();
+
+	private int linesSinceCheck = 0;
+	private IdentityHashMap<AgentCount, Integer> linesAtCheck =
+		new IdentityHashMap<AgentCount, Integer>();
+	private File spillFolder = null;
+	private IdentityHashMap<AgentCount, File> spilled =
+		new IdentityHashMap<AgentCount, File>();
+	private HashMap<String, Category> categoryNames =
+		new HashMap<String, Category>();
+	private int spillCount = 0, spillFiles = 0;
+
+	private LinkedList<SlidingWindow> windows = null;
+	private Timer windowTimer = null;
+
+	private long lateness = DEFAULT_LATENESS;
+	/**
+	 * With lateness in lines, the line numbers at which maxTime increased and
+	 * its new value, oldest first. The watermark is the value from lateness
+	 * lines ago; since maxTime only increases, only the increases need to be
+	 * kept, so memory does not depend on the lateness.
+	 */
+	private LinkedList<long[]> maxTimeIncreases = null;
+	private long lineNumber = 0;
+	private long maxTime = Long.MIN_VALUE, nextWatermarkDay = Long.MIN_VALUE;
+	private String closedBefore = null;
+
+	private boolean lateFiles = false;
+	private int lateLines = 0;
+	private HashMap<Key, AgentCount> late = new HashMap<Key, AgentCount>();
 
 	/**
 	 * @param folder Folder for output files
 	 * @param prefix Prefix for output files
-	 * @param period Time period to divide output files
+	 * @param periods Time periods to divide output files (at least one)
 	 * @param unordered True if input lines may be unordered
 	 * @param overwrite True if it's OK to overwrite existing files
 	 * @param categories List of categories
-	 * @param stdout Write to stdout instead of file
+	 * @param stdout Write to stdout instead of file; if there are periods
+	 *   other than ALL, this writes a framed stream of documents
 	 */
-	public AgentCounter(File folder, String prefix, TimePeriod period,
+	public AgentCounter(File folder, String prefix, EnumSet<TimePeriod> periods,
 		boolean unordered, boolean overwrite, Category[] categories, boolean stdout)
 	{
 		this.folder = folder;
 		this.prefix = prefix;
-		this.period = period;
+		this.periods = periods.toArray(new TimePeriod[periods.size()]);
 		this.unordered = unordered;
 		this.overwrite = overwrite;
 		this.categories = categories;
 		this.stdout = stdout;
+		if(stdout && !periods.equals(EnumSet.of(TimePeriod.ALL)))
+		{
+			frames = new FrameWriter(System.out);
+		}
+
+		for(TimePeriod period : periods)
+		{
+			counts.put(period, new HashMap<Key, AgentCount>());
+		}
+		for(Category c : categories)
+		{
+			categoryNames.put(c.getName(), c);
+		}
+	}
+
+	/**
+	 * Turns on separate counts and output files for each host. Must be called
+	 * before processing any lines. With stdout output, this means that output
+	 * is always a framed stream.
+	 */
+	void setSplitByHost()
+	{
+		splitHosts = true;
+		if(stdout && frames == null)
+		{
+			frames = new FrameWriter(System.out);
+		}
+	}
+
+	/**
+	 * Adds a sliding window. Must be called before processing any lines.
+	 * With stdout output, this means that output is always a framed stream.
+	 * @param name Name used in filename (e.g. "5m")
+	 * @param seconds Length of window in seconds of log time
+	 */
+	void addWindow(String name, long seconds)
+	{
+		if(windows == null)
+		{
+			windows = new LinkedList<SlidingWindow>();
+		}
+		windows.add(new SlidingWindow(name, seconds, categories));
+		if(stdout && frames == null)
+		{
+			frames = new FrameWriter(System.out);
+		}
+	}
+
+	/**
+	 * Starts writing sliding windows at a regular interval (of real time).
+	 * Writing stops when {@link #flush()} is called.
+	 * @param seconds Interval in seconds
+	 */
+	void startWindowTimer(long seconds)
+	{
+		windowTimer = new Timer("Window output", true);
+		windowTimer.schedule(new TimerTask()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writeWindows();
+				}
+				catch(IOException e)
+				{
+					System.err.println("\n\nError writing window (continuing):\n\n"
+						+ e.getMessage());
+				}
+			}
+		}, seconds * 1000L, seconds * 1000L);
+	}
+
+	/**
+	 * Sets the allowed lateness for lines, which controls when periods are
+	 * closed. Must be called before processing any lines.
+	 * @param lateness Lateness in seconds, or in lines
+	 * @param lines True if lateness is a number of lines
+	 */
+	void setLateness(long lateness, boolean lines)
+	{
+		if(lines)
+		{
+			maxTimeIncreases = new LinkedList<long[]>();
+		}
+		this.lateness = lateness;
+	}
+
+	/**
+	 * @param lateFiles True to write lines that arrive after their period was
+	 *   closed into separate .late.useragents files
+	 */
+	void setLateFiles(boolean lateFiles)
+	{
+		this.lateFiles = lateFiles;
+	}
+
+	/**
+	 * @param scale If only a sample of lines is processed, N where 1 in N lines
+	 *   are sampled; counts are multiplied by this when written
+	 */
+	void setScale(int scale)
+	{
+		this.scale = scale;
+	}
+
+	/**
+	 * Turns on counting of visits as well as requests.
+	 * @param minutes Maximum time between requests from the same IP address
+	 *   and agent in a single visit
+	 */
+	void setVisits(int minutes)
+	{
+		visitMinutes = minutes;
+		visits = new VisitTracker(minutes * 60L);
+	}
+
+	/**
+	 * @param level Gzip compression level for output files, or 0 to write
+	 *   uncompressed files
+	 */
+	void setCompression(int level)
+	{
+		compressLevel = level;
+	}
+
+	/**
+	 * Turns on writing .knownagents files, identifying agents as each period
+	 * is written. Must be called before processing any lines. With stdout
+	 * output and both types of file, output is always a framed stream.
+	 * @param identifier Identifier used for all periods
+	 * @param userAgents True to write .useragents files as well
+	 */
+	void setIdentify(AgentIdentifier identifier, boolean userAgents)
+	{
+		this.identifier = identifier;
+		this.userAgents = userAgents;
+		if(stdout && userAgents && frames == null)
+		{
+			frames = new FrameWriter(System.out);
+		}
+	}
+
+	/** @return Largest number of visitors held in memory, or 0 if not counting */
+	public int getPeakVisitors()
+	{
+		return visits == null ? 0 : visits.getPeakVisitors();
+	}
+
+	/** @return Number of lines that arrived after their period was closed */
+	public int getLateLines()
+	{
+		return lateLines;
+	}
+
+	/** @return Number of counts that were moved to disk to save memory */
+	public int getSpillCount()
+	{
+		return spillCount;
+	}
+
+	/**
+	 * @param host Host from log line
+	 * @return Name used for the host in filenames (lower-case, with any
+	 *   other characters than letters, digits, - and . replaced)
+	 */
+	private String getHostName(String host)
+	{
+		String name = hostNames.get(host);
+		if(name == null)
+		{
+			StringBuilder out = new StringBuilder();
+			for(char c : host.toLowerCase().toCharArray())
+			{
+				out.append((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+					|| c == '-' || c == '.' ? c : '_');
+			}
+			name = out.length() == 0 ? "nohost" : out.toString();
+			hostNames.put(host, name);
+		}
+		return name;
 	}
 
 	/**
@@ -67,121 +359,533 @@ public class AgentCounter
 	 */
 	void process(LogLine line) throws IOException
 	{
-		AgentCount count = null;
-		String currentPeriod = null;
+		String currentPeriod = periods[0].getPeriod(line.getIsoDate());
+		String host = splitHosts ? getHostName(line.getHost()) : null;
 
-		switch(period)
+		long time = 0;
+		boolean visit = false;
+		if(visits != null || windows != null
+			|| !(unordered || currentPeriod == null))
 		{
-		case ALL :
+			time = IsoDates.getSeconds(line.getIsoDate(), line.getIsoTime());
+		}
+		if(visits != null)
 		{
-			count = counts.get(null);
-		}	break;
-
-		case YEARLY :
+			visit = visits.visit(line.getIp(), line.getUserAgent(), time);
+		}
+		if(windows != null)
 		{
-			currentPeriod = line.getIsoDate().substring(0, 4);
-			count = counts.get(currentPeriod);
-			// If there is no data for this month...
-			if(count==null)
+			for(SlidingWindow window : windows)
 			{
-				// Give an error if that's because this month is in the past
-				if(past.contains(currentPeriod))
-				{
-					throw new IOException("Line out of sequence (try -unordered):\n"
-						+ line);
-				}
+				window.count(line.getUserAgent(), line.getCategory(), visit, time);
 			}
-		} break;
+		}
 
-		case MONTHLY :
+		// Lines for periods that have already been closed are late
+		if(closedBefore != null && currentPeriod.compareTo(closedBefore) < 0)
 		{
-			currentPeriod = line.getIsoDate().substring(0, 7);
-			count = counts.get(currentPeriod);
-			// If there is no data for this month...
-			if(count==null)
+			lateLines++;
+			if(lateFiles)
 			{
-				// Give an error if that's because this month is in the past
-				if(past.contains(currentPeriod))
-				{
-					throw new IOException("Line out of sequence (try -unordered):\n"
-						+ line);
-				}
+				getLate(host, currentPeriod).count(line.getUserAgent(), line.getIp(),
+					line.getCategory(), visit, false);
 			}
-		} break;
+			return;
+		}
 
-		case DAILY :
+		// Actually count data
+		getFine(host, currentPeriod).count(line.getUserAgent(), line.getIp(),
+			line.getCategory(), visit, !stdout);
+
+		linesSinceCheck++;
+		if(linesSinceCheck == CHECK_LINES)
+		{
+			linesSinceCheck = 0;
+			checkMemory();
+		}
+
+		if(unordered || currentPeriod == null)
 		{
-			currentPeriod = line.getIsoDate();
-			count = counts.get(currentPeriod);
-			if(count==null)
+			return;
+		}
+		updateWatermark(time, 1);
+	}
+
+	/**
+	 * Adds counts for a whole period at once (from {@link PartialCache}),
+	 * treating them as if all the lines arrived at the given time.
+	 * @param currentPeriod Period of finest type (null in ALL mode)
+	 * @param partial Counts to add
+	 * @param time Time of latest line in the counts (seconds since 1970)
+	 * @throws IOException If any I/O error occurs
+	 */
+	void add(String currentPeriod, AgentCount partial, long time)
+		throws IOException
+	{
+		if(closedBefore != null && currentPeriod.compareTo(closedBefore) < 0)
+		{
+			lateLines += partial.getLines();
+			if(lateFiles)
 			{
-				if(past.contains(currentPeriod))
-				{
-					throw new IOException("Line out of sequence (try -unordered):\n"
-						+ line);
-				}
+				getLate(null, currentPeriod).add(partial);
 			}
-		} break;
+			return;
+		}
 
+		getFine(null, currentPeriod).add(partial);
+
+		if(unordered || currentPeriod == null)
+		{
+			return;
 		}
+		updateWatermark(time, partial.getLines());
+	}
 
-		// Create new data if required
+	/**
+	 * @param host Host name (null if not splitting by host)
+	 * @param currentPeriod Period of finest type
+	 * @return Counts for the period, created if required
+	 */
+	private AgentCount getFine(String host, String currentPeriod)
+	{
+		HashMap<Key, AgentCount> fine = counts.get(periods[0]);
+		Key key = new Key(host, currentPeriod);
+		AgentCount count = fine.get(key);
 		if(count==null)
 		{
-			if(!stdout)
+			if(!stdout && announced.add(currentPeriod))
 			{
 				System.err.print("\n" +
 					(currentPeriod == null ? "Output" : currentPeriod) + ":");
 			}
 			count = new AgentCount();
-			counts.put(currentPeriod, count);
+			fine.put(key, count);
+		}
+		return count;
+	}
+
+	/**
+	 * @param host Host name (null if not splitting by host)
+	 * @param currentPeriod Period of finest type
+	 * @return Counts for late lines in the period, created if required
+	 */
+	private AgentCount getLate(String host, String currentPeriod)
+	{
+		Key key = new Key(host, currentPeriod);
+		AgentCount count = late.get(key);
+		if(count == null)
+		{
+			count = new AgentCount();
+			late.put(key, count);
+		}
+		return count;
+	}
+
+	/**
+	 * Checks memory use and, if it is too high, moves counts that have not
+	 * changed since the previous check to disk. If that is not enough, all
+	 * counts are moved.
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void checkMemory() throws IOException
+	{
+		if(isMemoryLow())
+		{
+			spill(false);
+			if(isMemoryLow())
+			{
+				spill(true);
+			}
 		}
 
-		// Flush out older data after 1am on the next day
-		if(!unordered && counts.size() > 1
-			&& line.getIsoTime().compareTo("01:00:00") > 0)
+		linesAtCheck.clear();
+		for(HashMap<Key, AgentCount> map : counts.values())
 		{
-			for(Iterator<String> i=counts.keySet().iterator(); i.hasNext();)
+			for(AgentCount count : map.values())
 			{
-				String period = i.next();
-				if(period.compareTo(currentPeriod) < 0)
+				linesAtCheck.put(count, count.getLines());
+			}
+		}
+	}
+
+	/**
+	 * @return True if more than the allowed proportion of heap is in use after
+	 *   garbage collection
+	 */
+	private static boolean isMemoryLow()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		if(runtime.totalMemory() - runtime.freeMemory()
+			< runtime.maxMemory() * SPILL_MEMORY)
+		{
+			return false;
+		}
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory()
+			>= runtime.maxMemory() * SPILL_MEMORY;
+	}
+
+	/**
+	 * Moves counts to disk, replacing them with empty counts in memory.
+	 * @param all True to move all counts, false to move only those that have
+	 *   not changed since the previous check
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void spill(boolean all) throws IOException
+	{
+		if(spillFolder == null)
+		{
+			spillFolder = File.createTempFile("browserstats", ".spill");
+			if(!spillFolder.delete() || !spillFolder.mkdir())
+			{
+				throw new IOException("Unable to create temporary folder "
+					+ spillFolder);
+			}
+			spillFolder.deleteOnExit();
+		}
+		for(HashMap<Key, AgentCount> map : counts.values())
+		{
+			for(Map.Entry<Key, AgentCount> entry : map.entrySet())
+			{
+				AgentCount count = entry.getValue();
+				Integer previous = linesAtCheck.get(count);
+				if(count.getLines() == 0 || !(all || (previous != null
+					&& previous.intValue() == count.getLines())))
 				{
-					// Flush out old period and free RAM
-					flush(period);
+					continue;
+				}
+
+				// Continue the file for any earlier part of this count
+				File file = spilled.remove(count);
+				if(file == null)
+				{
+					file = new File(spillFolder, spillFiles + ".counts");
+					file.deleteOnExit();
+					spillFiles++;
+				}
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file, true)));
+				try
+				{
+					out.writeBoolean(true);
+					count.write(out);
+				}
+				finally
+				{
+					out.close();
+				}
+
+				AgentCount empty = new AgentCount();
+				spilled.put(empty, file);
+				entry.setValue(empty);
+				spillCount++;
+			}
+		}
+		System.gc();
+	}
+
+	/**
+	 * Reads back any parts of a count that were moved to disk.
+	 * @param type Type of time period
+	 * @param key Key of count
+	 * @return Complete count (also stored in place of the original)
+	 * @throws IOException If any I/O error occurs
+	 */
+	private AgentCount restore(TimePeriod type, Key key) throws IOException
+	{
+		AgentCount count = counts.get(type).get(key);
+		File file = spilled.remove(count);
+		if(file == null)
+		{
+			return count;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+		try
+		{
+			while(in.read() > 0)
+			{
+				count.add(AgentCount.read(in, categoryNames));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		file.delete();
+		return count;
+	}
+
+	/**
+	 * Updates the watermark after one or more lines with the same time,
+	 * closing periods if it has moved on to a new day.
+	 * @param time Time of lines (seconds since 1970)
+	 * @param lines Number of lines
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void updateWatermark(long time, int lines) throws IOException
+	{
+		long watermark;
+		if(maxTimeIncreases != null)
+		{
+			if(time > maxTime)
+			{
+				maxTime = time;
+				maxTimeIncreases.addLast(new long[] { lineNumber, maxTime });
+			}
+			lineNumber += lines;
+			// Line number of the last line, less the lateness
+			long before = lineNumber - 1 - lateness;
+			while(maxTimeIncreases.size() > 1
+				&& maxTimeIncreases.get(1)[0] <= before)
+			{
+				maxTimeIncreases.removeFirst();
+			}
+			long[] first = maxTimeIncreases.peekFirst();
+			watermark = first != null && first[0] <= before
+				? first[1] : Long.MIN_VALUE;
+		}
+		else
+		{
+			if(time > maxTime)
+			{
+				maxTime = time;
+			}
+			watermark = maxTime - lateness;
+		}
+
+		// Close periods if the watermark has moved on to a new day
+		if(watermark >= nextWatermarkDay && watermark != Long.MIN_VALUE)
+		{
+			long day = watermark / IsoDates.SECONDS_PER_DAY;
+			if(watermark % IsoDates.SECONDS_PER_DAY < 0)
+			{
+				day--;
+			}
+			nextWatermarkDay = (day + 1) * IsoDates.SECONDS_PER_DAY;
+			closeBefore(IsoDates.getIsoDate(day));
+		}
+	}
+
+	/**
+	 * Closes and flushes all periods that end before the given date.
+	 * @param isoDate Date in ISO format
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void closeBefore(String isoDate) throws IOException
+	{
+		closedBefore = periods[0].getPeriod(isoDate);
+		boolean flushed = false;
+		for(Iterator<Key> i=counts.get(periods[0]).keySet().iterator();
+			i.hasNext();)
+		{
+			Key key = i.next();
+			if(key.period.compareTo(closedBefore) < 0)
+			{
+				// Flush out old period and free RAM
+				flushFine(key);
+				i.remove();
+				flushed = true;
+			}
+		}
+		if(flushed)
+		{
+			System.gc(); // Just to make the stats (maybe) work
+		}
+
+		// Coarser periods before the watermark are now complete
+		for(int level=1; level<periods.length; level++)
+		{
+			String current = periods[level].getPeriod(isoDate);
+			if(current == null)
+			{
+				continue;
+			}
+			for(Iterator<Key> i=counts.get(periods[level]).keySet().iterator();
+				i.hasNext();)
+			{
+				Key key = i.next();
+				if(key.period.compareTo(current) < 0)
+				{
+					flush(periods[level], key);
 					i.remove();
-					System.gc(); // Just to make the stats (maybe) work
 				}
 			}
 		}
+	}
 
-		// Actually count data
-		count.count(line.getUserAgent(), line.getIp(), line.getCategory(), !stdout);
+	/**
+	 * Flushes a period of the finest type, and merges its data into each
+	 * coarser period. Does not actually remove from list.
+	 * @param key Host and time period
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void flushFine(Key key) throws IOException
+	{
+		flush(periods[0], key);
+
+		AgentCount count = counts.get(periods[0]).get(key);
+		for(int level=1; level<periods.length; level++)
+		{
+			HashMap<Key, AgentCount> coarse = counts.get(periods[level]);
+			Key coarseKey = new Key(key.host,
+				periods[level].getPeriod(key.period));
+			AgentCount coarseCount = coarse.get(coarseKey);
+			if(coarseCount == null)
+			{
+				coarseCount = new AgentCount();
+				coarse.put(coarseKey, coarseCount);
+			}
+			coarseCount.add(count);
+		}
 	}
 
 	/**
 	 * Flushes a single disk file. Does not actually remove from list.
+	 * @param type Type of time period
+	 * @param key Host and time period
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void flush(TimePeriod type, Key key) throws IOException
+	{
+		AgentCount count = restore(type, key);
+		output(count, prefix + key.getName(), key.period, false);
+	}
+
+	/**
+	 * Writes data as .useragents and/or .knownagents, depending on options.
+	 * @param count Data
+	 * @param name Name of output without extension
 	 * @param timePeriod Time period
+	 * @param replace True to replace any existing file
 	 * @throws IOException If any I/O error occurs
 	 */
-	private void flush(String timePeriod) throws IOException
+	private void output(AgentCount count, String name, String timePeriod,
+		boolean replace) throws IOException
 	{
-		AgentCount count = counts.get(timePeriod);
-		if(stdout)
+		if(userAgents)
 		{
-			count.write(null, timePeriod, categories);
+			output(count, name + ".useragents", timePeriod, replace, false);
+		}
+		if(identifier != null)
+		{
+			output(count, name + ".knownagents", timePeriod, replace, true);
+		}
+	}
+
+	/**
+	 * Writes data to a frame, stdout, or a file.
+	 * @param count Data
+	 * @param name Name of output
+	 * @param timePeriod Time period
+	 * @param replace True to replace any existing file
+	 * @param known True to write identified agents (.knownagents)
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void output(AgentCount count, String name, String timePeriod,
+		boolean replace, boolean known) throws IOException
+	{
+		if(frames != null)
+		{
+			OutputStream out = frames.startFrame(name);
+			write(count, out, timePeriod, known);
+			out.close();
+		}
+		else if(stdout)
+		{
+			write(count, System.out, timePeriod, known);
 		}
 		else
 		{
-			File target = new File(folder, prefix +
-				(timePeriod == null ? "" : "." + timePeriod) + ".useragents");
-			if (target.exists() && !overwrite)
+			write(count, new File(folder, name), timePeriod, replace, known);
+		}
+	}
+
+	/**
+	 * Writes the current state of all sliding windows.
+	 * @throws IOException If any I/O error occurs
+	 */
+	private synchronized void writeWindows() throws IOException
+	{
+		for(SlidingWindow window : windows)
+		{
+			output(window.getCounts(), prefix + ".window-" + window.getName(),
+				window.getIsoDate(), true);
+		}
+	}
+
+	/**
+	 * Writes data to a file, compressing it if required.
+	 * @param count Data
+	 * @param target Target file (without .gz extension)
+	 * @param timePeriod Time period
+	 * @param replace True to replace any existing file (the data is written to
+	 *   a temporary file first, so readers never see a partial file)
+	 * @param known True to write identified agents (.knownagents)
+	 * @throws IOException If any I/O error occurs, or the file exists
+	 */
+	private void write(AgentCount count, File target, String timePeriod,
+		boolean replace, boolean known) throws IOException
+	{
+		if(compressLevel > 0)
+		{
+			target = new File(target.getPath() + Gzip.EXTENSION);
+		}
+		if (target.exists() && !overwrite && !replace)
+		{
+			throw new IOException("Would overwrite " + target
+				+ ", aborting. (Use -overwrite to allow.)");
+		}
+		File file = replace ? new File(target.getPath() + ".tmp") : target;
+		OutputStream out = new FileOutputStream(file);
+		if(compressLevel > 0)
+		{
+			out = Gzip.compress(out, compressLevel);
+		}
+		try
+		{
+			write(count, out, timePeriod, known);
+		}
+		finally
+		{
+			out.close();
+		}
+		if(replace && !file.renameTo(target))
+		{
+			// Some platforms do not allow renaming over an existing file
+			target.delete();
+			if(!file.renameTo(target))
+			{
+				throw new IOException("Unable to rename " + file + " to " + target);
+			}
+		}
+	}
+
+	/**
+	 * Writes data to a stream. The stream is flushed but not closed.
+	 * @param count Data
+	 * @param out Target stream
+	 * @param timePeriod Time period
+	 * @param known True to write identified agents (.knownagents)
+	 * @throws IOException If any I/O error occurs
+	 */
+	private void write(AgentCount count, OutputStream out, String timePeriod,
+		boolean known) throws IOException
+	{
+		if(known)
+		{
+			// The identifier holds one document at a time, and windows may be
+			// written from the timer thread
+			synchronized(identifier)
 			{
-				throw new IOException("Would overwrite " + target
-					+ ", aborting. (Use -overwrite to allow.)");
+				count.identify(identifier, categories, scale);
+				identifier.write(out);
 			}
-			count.write(target, timePeriod, categories);
 		}
-		past.add(timePeriod);
+		else
+		{
+			count.write(out, timePeriod, categories, scale, visitMinutes);
+		}
 	}
 
 	/**
@@ -190,9 +894,36 @@ public class AgentCounter
 	 */
   void flush() throws IOException
   {
-  	for(String period : counts.keySet())
+  	for(Iterator<Key> i=counts.get(periods[0]).keySet().iterator(); i.hasNext();)
+  	{
+  		flushFine(i.next());
+  		i.remove();
+  	}
+  	for(int level=1; level<periods.length; level++)
+  	{
+  		for(Key key : counts.get(periods[level]).keySet())
+  		{
+  			flush(periods[level], key);
+  		}
+  	}
+  	for(Map.Entry<Key, AgentCount> entry : late.entrySet())
+  	{
+  		// Late counts are for merging into existing files, so they are always
+  		// written as .useragents
+  		output(entry.getValue(), prefix + entry.getKey().getName()
+  			+ ".late.useragents", entry.getKey().period, false, false);
+  	}
+  	if(spillFolder != null)
+  	{
+  		spillFolder.delete();
+  	}
+  	if(windows != null)
   	{
-  		flush(period);
+  		if(windowTimer != null)
+  		{
+  			windowTimer.cancel();
+  		}
+  		writeWindows();
   	}
   	if(!stdout)
   	{
@@ -21,22 +21,28 @@ package com.leafdigital.browserstats.collate;
 import java.io.*;
 import java.util.*;
 
+import com.leafdigital.browserstats.identify.UserAgentReader;
 import com.leafdigital.util.xml.XML;
 
 /** Stores data related to a single agent type */
 class AgentData
 {
-	int count;
+	int count, visits;
 	private HashMap<Category,Integer> categories = new HashMap<Category, Integer>();
 
 	/**
 	 * Counts a line with this agent.
 	 * @param ip IP address
 	 * @param c Category
+	 * @param visit True if this line starts a new visit
 	 */
-	void count(String ip, Category c)
+	void count(String ip, Category c, boolean visit)
 	{
 		count++;
+		if(visit)
+		{
+			visits++;
+		}
 		if(!c.equals(Category.NONE))
 		{
 			Integer i = categories.get(c);
@@ -51,18 +57,81 @@ class AgentData
 		}
 	}
 
+	/**
+	 * Adds counts from another set of data for the same agent.
+	 * @param other Other data
+	 */
+	void add(AgentData other)
+	{
+		count += other.count;
+		visits += other.visits;
+		for(Map.Entry<Category, Integer> entry : other.categories.entrySet())
+		{
+			Integer i = categories.get(entry.getKey());
+			categories.put(entry.getKey(),
+				i==null ? entry.getValue() : i + entry.getValue());
+		}
+	}
+
+	/**
+	 * Adds counts for several lines at once.
+	 * @param count Number of lines
+	 * @param visits Number of lines that started a new visit
+	 * @param categoryList Categories
+	 * @param categoryCounts Number of lines in each category
+	 */
+	void add(int count, int visits, Category[] categoryList, int[] categoryCounts)
+	{
+		this.count += count;
+		this.visits += visits;
+		for(int i=0; i<categoryList.length; i++)
+		{
+			if(categoryCounts[i] > 0)
+			{
+				Integer existing = categories.get(categoryList[i]);
+				categories.put(categoryList[i], existing==null ? categoryCounts[i]
+					: existing + categoryCounts[i]);
+			}
+		}
+	}
+
 	/**
 	 * Writes information to XML about this agent.
+	 * <p>
+	 * If the counts come from a sample, they are multiplied up by the scale
+	 * and the total count is given a 95% confidence interval in the
+	 * count-low and count-high attributes. The interval treats each request
+	 * as independently sampled with probability 1/scale.
 	 * @param w Writer
 	 * @param agent Agent name
 	 * @param categoryList Available categories
+	 * @param scale 1 if all lines were counted, otherwise N where 1 in N lines
+	 *   were sampled
+	 * @param writeVisits True to include the number of visits
 	 * @throws IOException Any error writing
 	 */
-	void write(Writer w, String agent, Category[] categoryList) throws IOException
+	void write(Writer w, String agent, Category[] categoryList, int scale,
+		boolean writeVisits) throws IOException
 	{
 		StringBuilder builder = new StringBuilder("<agent count='");
-		builder.append(count);
+		builder.append((long)count * scale);
 		builder.append("'");
+		if(scale > 1)
+		{
+			double halfWidth = 1.96 * scale * Math.sqrt(count * (1.0 - 1.0 / scale));
+			long estimate = (long)count * scale;
+			builder.append(" count-low='");
+			builder.append(Math.max(count, Math.round(estimate - halfWidth)));
+			builder.append("' count-high='");
+			builder.append(Math.round(estimate + halfWidth));
+			builder.append("'");
+		}
+		if(writeVisits)
+		{
+			builder.append(" count-visits='");
+			builder.append((long)visits * scale);
+			builder.append("'");
+		}
 		for(Category c : categoryList)
 		{
 			builder.append(' ');
@@ -70,7 +139,7 @@ class AgentData
 			builder.append("='");
 			Integer i = categories.get(c);
 			int count = i!=null ? i : 0;
-			builder.append(count);
+			builder.append((long)count * scale);
 			builder.append('\'');
 		}
 		builder.append('>');
@@ -78,4 +147,83 @@ class AgentData
 		builder.append("</agent>\n");
 		w.write(builder.toString());
 	}
+
+	/**
+	 * Passes the counts to a handler, with the same values that would be read
+	 * back from the XML written by {@link #write(Writer, String, Category[],
+	 * int, boolean)}.
+	 * @param h Handler
+	 * @param agent Agent name
+	 * @param categoryList Available categories
+	 * @param scale 1 if all lines were counted, otherwise N where 1 in N lines
+	 *   were sampled
+	 */
+	void identify(UserAgentReader.Handler h, String agent,
+		Category[] categoryList, int scale)
+	{
+		int[] categoryCounts = new int[categoryList.length];
+		for(int i=0; i<categoryList.length; i++)
+		{
+			Integer count = categories.get(categoryList[i]);
+			categoryCounts[i] = count!=null ? scale(count, scale) : 0;
+		}
+		h.agentCounts(agent, scale(count, scale), categoryCounts);
+	}
+
+	/**
+	 * Multiplies a count by the sample scale without overflowing. The handler
+	 * only takes int counts, so values too large for that are limited to the
+	 * largest int.
+	 * @param count Count
+	 * @param scale Scale
+	 * @return Count multiplied by scale, or Integer.MAX_VALUE if larger
+	 */
+	private static int scale(int count, int scale)
+	{
+		return (int)Math.min((long)count * scale, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Writes data in the binary form used by {@link PartialCache}.
+	 * @param out Output
+	 * @throws IOException Any error writing
+	 */
+	void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(count);
+		out.writeInt(visits);
+		out.writeInt(categories.size());
+		for(Map.Entry<Category, Integer> entry : categories.entrySet())
+		{
+			out.writeUTF(entry.getKey().getName());
+			out.writeInt(entry.getValue());
+		}
+	}
+
+	/**
+	 * Reads data written by {@link #write(DataOutputStream)}.
+	 * @param in Input
+	 * @param categoryNames Map from name to category
+	 * @return Data
+	 * @throws IOException Any error reading, or an unknown category
+	 */
+	static AgentData read(DataInputStream in, Map<String, Category> categoryNames)
+		throws IOException
+	{
+		AgentData data = new AgentData();
+		data.count = in.readInt();
+		data.visits = in.readInt();
+		int categoryCount = in.readInt();
+		for(int i=0; i<categoryCount; i++)
+		{
+			String name = in.readUTF();
+			Category c = categoryNames.get(name);
+			if(c == null)
+			{
+				throw new IOException("Unknown category: " + name);
+			}
+			data.categories.put(c, in.readInt());
+		}
+		return data;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,284 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.*;
+
+import com.leafdigital.browserstats.shared.*;
+
+/**
+ * Rewrites user-agent strings before they are counted, so that agents which
+ * differ only by volatile tokens (build numbers, device serials, etc.) are
+ * counted as one. Results are cached for each distinct agent string, as the
+ * same agents occur over and over in a log.
+ */
+class AgentNormaliser
+{
+	/** Maximum number of cached agents; the cache is emptied if it fills */
+	private final static int MAX_CACHE = 100000;
+
+	private LinkedList<Rule> rules = new LinkedList<Rule>();
+	private RegexLimit regexLimit = new RegexLimit(0);
+
+	private ConcurrentHashMap<String, String> cache =
+		new ConcurrentHashMap<String, String>();
+	private Verifier verifier;
+
+	/** A single rewrite. */
+	private static class Rule
+	{
+		private Pattern regex;
+		private String replacement;
+
+		private Rule(Pattern regex, String replacement)
+		{
+			this.regex = regex;
+			this.replacement = replacement;
+		}
+
+		@Override
+		public String toString()
+		{
+			return regex.pattern() + "\t" + replacement;
+		}
+	}
+
+	/**
+	 * Adds a rewrite rule. Rules are applied in the order they are added.
+	 * @param regex Regular expression
+	 * @param replacement Replacement text for each match; may refer to groups
+	 *   as $1 etc.
+	 * @throws IllegalArgumentException If the expression or replacement is
+	 *   invalid
+	 */
+	void addRule(String regex, String replacement)
+		throws IllegalArgumentException
+	{
+		Pattern pattern;
+		try
+		{
+			pattern = Pattern.compile(regex);
+		}
+		catch(PatternSyntaxException e)
+		{
+			throw new IllegalArgumentException("Invalid normalise regex: " +
+				e.getDescription());
+		}
+		checkReplacement(pattern, replacement);
+		rules.add(new Rule(pattern, replacement));
+	}
+
+	/**
+	 * Checks that a replacement string only refers to groups that exist, so
+	 * that it cannot fail later.
+	 * @param pattern Pattern
+	 * @param replacement Replacement
+	 * @throws IllegalArgumentException If the replacement is invalid
+	 */
+	private static void checkReplacement(Pattern pattern, String replacement)
+		throws IllegalArgumentException
+	{
+		int groups = pattern.matcher("").groupCount();
+		for(int i=0; i<replacement.length(); i++)
+		{
+			char c = replacement.charAt(i);
+			if(c == '\\')
+			{
+				i++;
+				if(i == replacement.length())
+				{
+					throw new IllegalArgumentException(
+						"Invalid normalise replacement (ends with \\): " + replacement);
+				}
+			}
+			else if(c == '$')
+			{
+				i++;
+				if(i == replacement.length() || replacement.charAt(i) < '0'
+					|| replacement.charAt(i) > '9'
+					|| replacement.charAt(i) - '0' > groups)
+				{
+					throw new IllegalArgumentException(
+						"Invalid normalise replacement (regex has " + groups
+						+ " group(s); use \\$ for a dollar sign): " + replacement);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds rules from a file. Each line contains a regular expression
+	 * followed by a tab and the replacement; if there is no tab, matches are
+	 * removed. Blank lines and lines beginning with # are ignored.
+	 * @param f File
+	 * @throws IOException Any error reading the file
+	 * @throws IllegalArgumentException If a rule is invalid
+	 */
+	void addFile(File f) throws IOException, IllegalArgumentException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(f), "UTF-8"));
+		try
+		{
+			while(true)
+			{
+				String line = reader.readLine();
+				if(line == null)
+				{
+					break;
+				}
+				if(line.trim().equals("") || line.startsWith("#"))
+				{
+					continue;
+				}
+				int tab = line.indexOf('\t');
+				if(tab == -1)
+				{
+					addRule(line, "");
+				}
+				else
+				{
+					addRule(line.substring(0, tab), line.substring(tab + 1));
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param regexLimit Time limit for normalise regular expressions
+	 */
+	void setRegexLimit(RegexLimit regexLimit)
+	{
+		this.regexLimit = regexLimit;
+	}
+
+	/**
+	 * @param verifier Verifier used to check cached results against the
+	 *   rules, or null if not checking
+	 */
+	void setVerifier(Verifier verifier)
+	{
+		this.verifier = verifier;
+	}
+
+	/**
+	 * @return True if there are no rules
+	 */
+	boolean isEmpty()
+	{
+		return rules.isEmpty();
+	}
+
+	/**
+	 * Normalises an agent string. May be called from several threads at once.
+	 * @param agent Agent string
+	 * @return Normalised string (the same object if there was no change)
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	String normalise(String agent) throws RegexTimeoutException
+	{
+		String result = cache.get(agent);
+		if(result != null)
+		{
+			if(verifier != null && verifier.select())
+			{
+				verify(agent, result);
+			}
+			return result;
+		}
+
+		result = apply(agent);
+		if(cache.size() >= MAX_CACHE)
+		{
+			cache.clear();
+		}
+		cache.put(agent, result);
+		return result;
+	}
+
+	/**
+	 * Applies the rules to an agent string, without using the cache.
+	 * @param agent Agent string
+	 * @return Normalised string (the same object if there was no change)
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	private String apply(String agent) throws RegexTimeoutException
+	{
+		String result = agent;
+		for(Rule rule : rules)
+		{
+			result = regexLimit.replaceAll(rule.regex, result, rule.replacement);
+		}
+		if(result.equals(agent))
+		{
+			result = agent;
+		}
+		else
+		{
+			// Removing tokens often leaves spaces at the ends
+			result = result.trim();
+		}
+		return result;
+	}
+
+	/**
+	 * Checks a cached result against the rules.
+	 * @param agent Agent string
+	 * @param cached Result from cache
+	 */
+	private void verify(String agent, String cached)
+	{
+		long start = System.nanoTime();
+		String fast = cache.get(agent);
+		long fastTime = System.nanoTime() - start;
+		String reference;
+		start = System.nanoTime();
+		try
+		{
+			reference = apply(agent);
+		}
+		catch(RegexTimeoutException e)
+		{
+			return;
+		}
+		verifier.record(Verifier.Check.NORMALISE, agent,
+			fast == null ? cached : fast, fastTime,
+			reference, System.nanoTime() - start);
+	}
+
+	/**
+	 * @return Description of the rules, one per line
+	 */
+	String getDescription()
+	{
+		StringBuilder out = new StringBuilder();
+		for(Rule rule : rules)
+		{
+			out.append(rule).append('\n');
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,154 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+
+/**
+ * Input stream that returns only one in every N fixed-size blocks of a file,
+ * seeking past the others so they are never read. Each line belongs to the
+ * block in which it starts, so only whole lines are returned and, if every
+ * block is sampled, each line is returned exactly once.
+ */
+class BlockSampleInputStream extends InputStream
+{
+	/** Size of each block in bytes */
+	final static int BLOCKSIZE = 1024 * 1024;
+
+	private RandomAccessFile file;
+	private long length;
+	private int every;
+
+	private long blockStart = 0;
+	private byte[] data = new byte[BLOCKSIZE + 1], extra = new byte[4096];
+	private byte[] source = null;
+	private int pos = 0, end = 0;
+
+	/**
+	 * @param f File to read
+	 * @param every Read one block in this many
+	 * @throws IOException Any error opening file
+	 */
+	BlockSampleInputStream(File f, int every) throws IOException
+	{
+		this.file = new RandomAccessFile(f, "r");
+		this.length = file.length();
+		this.every = every;
+	}
+
+	/**
+	 * Reads the next sampled block into the buffer.
+	 * @return False if there are no more blocks
+	 * @throws IOException Any error reading
+	 */
+	private boolean nextBlock() throws IOException
+	{
+		while(blockStart < length)
+		{
+			long start = blockStart;
+			blockStart += (long)BLOCKSIZE * every;
+
+			// Read from the byte before the block so that we can tell whether the
+			// block starts on a new line
+			long readFrom = Math.max(0, start - 1);
+			int size = (int)Math.min(BLOCKSIZE + (start - readFrom), length - readFrom);
+			file.seek(readFrom);
+			file.readFully(data, 0, size);
+
+			// Skip the partial line that belongs to the previous block
+			pos = 0;
+			if(start > 0)
+			{
+				while(pos < size && data[pos] != '\n')
+				{
+					pos++;
+				}
+				pos++;
+			}
+
+			// If no line starts within this block, skip it
+			if(pos < size)
+			{
+				source = data;
+				end = size;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Continues reading the line that crosses the end of the block, up to and
+	 * including its newline.
+	 * @throws IOException Any error reading
+	 */
+	private void continueLine() throws IOException
+	{
+		long position = file.getFilePointer();
+		int size = (int)Math.min(extra.length, length - position);
+		file.readFully(extra, 0, size);
+		int lineEnd = 0;
+		while(lineEnd < size && extra[lineEnd] != '\n')
+		{
+			lineEnd++;
+		}
+		if(lineEnd < size)
+		{
+			lineEnd++;
+			file.seek(position + lineEnd);
+		}
+		source = extra;
+		pos = 0;
+		end = lineEnd;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		byte[] b = new byte[1];
+		return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		while(pos == end)
+		{
+			if(source != null && source[end-1] != '\n'
+				&& file.getFilePointer() < length)
+			{
+				continueLine();
+			}
+			else if(!nextBlock())
+			{
+				return -1;
+			}
+		}
+		int count = Math.min(len, end - pos);
+		System.arraycopy(source, pos, b, off, count);
+		pos += count;
+		return count;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
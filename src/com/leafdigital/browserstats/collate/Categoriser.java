@@ -20,10 +20,13 @@ package com.leafdigital.browserstats.collate;
 
 import java.util.LinkedList;
 
+import com.leafdigital.browserstats.shared.*;
+
 /** Class that categorises log lines according to one or more rules. */
 public class Categoriser
 {
 	private LinkedList<Category> categories = new LinkedList<Category>();
+	private RegexLimit regexLimit = new RegexLimit(0);
 
 	void addCategory(Category c)
 	{
@@ -31,14 +34,61 @@ public class Categoriser
 	}
 
 	/**
+	 * @param regexLimit Time limit for category regular expressions
+	 */
+	void setRegexLimit(RegexLimit regexLimit)
+	{
+		this.regexLimit = regexLimit;
+	}
+
+	/**
+	 * @return True if there are no categories
+	 */
+	boolean isEmpty()
+	{
+		return categories.isEmpty();
+	}
+
+	/**
+	 * @param cache Cache used to remember results of category tests
+	 */
+	void setCache(MatchCache cache)
+	{
+		for(Category c : categories)
+		{
+			c.setCache(cache);
+		}
+	}
+
+	/**
+	 * @param line Log line
+	 * @return Category for line (Category.NONE if none match)
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	public Category categorise(LogLine line) throws RegexTimeoutException
+	{
+		for(Category c : categories)
+		{
+			if(c.match(line, regexLimit))
+			{
+				return c;
+			}
+		}
+		return Category.NONE;
+	}
+
+	/**
+	 * As {@link #categorise(LogLine)}, but without any cache or other
+	 * optimisation, for checking that they give the same result.
 	 * @param line Log line
 	 * @return Category for line (Category.NONE if none match)
+	 * @throws RegexTimeoutException If a regular expression takes too long
 	 */
-	public Category categorise(LogLine line)
+	Category categoriseReference(LogLine line) throws RegexTimeoutException
 	{
 		for(Category c : categories)
 		{
-			if(c.match(line))
+			if(c.matchReference(line, regexLimit))
 			{
 				return c;
 			}
@@ -21,6 +21,8 @@ package com.leafdigital.browserstats.collate;
 import java.util.regex.*;
 
 import com.leafdigital.browserstats.collate.LogLine.Field;
+import com.leafdigital.browserstats.shared.RegexLimit;
+import com.leafdigital.browserstats.shared.RegexTimeoutException;
 
 /** Category assigned to a line. */
 public class Category
@@ -33,15 +35,14 @@ public class Category
 	private String name;
 	private Field field;
 	private Pattern regex;
+	private IpRanges ranges;
+	private MatchCache.Slot slot;
 
 	/**
 	 * @param name Category name
-	 * @param field Description of which field the category applies too
-	 * @param regex Regular expression
-	 * @throws IllegalArgumentException
+	 * @throws IllegalArgumentException If the name is invalid
 	 */
-	Category(String name, String field, String regex)
-		throws IllegalArgumentException
+	private Category(String name) throws IllegalArgumentException
 	{
 		this.name = name;
 		if(!this.name.matches("[a-z0-9]*"))
@@ -49,6 +50,18 @@ public class Category
 			throw new IllegalArgumentException(
 				"Invalid category name (lower-case letters and digits only): " + name);
 		}
+	}
+
+	/**
+	 * @param name Category name
+	 * @param field Description of which field the category applies too
+	 * @param regex Regular expression
+	 * @throws IllegalArgumentException
+	 */
+	Category(String name, String field, String regex)
+		throws IllegalArgumentException
+	{
+		this(name);
 		this.field = Field.get(field);
 		try
 		{
@@ -61,6 +74,20 @@ public class Category
 		}
 	}
 
+	/**
+	 * Constructs a category that matches lines where the IP address is within
+	 * any of the given ranges.
+	 * @param name Category name
+	 * @param ranges IP address ranges
+	 * @throws IllegalArgumentException If the name is invalid
+	 */
+	Category(String name, IpRanges ranges) throws IllegalArgumentException
+	{
+		this(name);
+		this.field = Field.IP;
+		this.ranges = ranges;
+	}
+
 	/** @return Name */
 	public String getName()
 	{
@@ -69,11 +96,70 @@ public class Category
 
 	/**
 	 * @param line Log line
+	 * @param limit Time limit for regular expression
 	 * @return True if the given line falls into this category
+	 * @throws RegexTimeoutException If the regular expression takes too long
 	 */
-	public boolean match(LogLine line)
+	public boolean match(LogLine line, RegexLimit limit)
+		throws RegexTimeoutException
 	{
-		return regex.matcher(line.get(field)).find();
+		if(ranges != null)
+		{
+			return ranges.contains(line.getIp());
+		}
+		String value = line.get(field);
+		if(slot == null)
+		{
+			return limit.find(regex, value);
+		}
+		int known = slot.lookup(value);
+		if(known != -1)
+		{
+			return known == 1;
+		}
+		boolean result = limit.find(regex, value);
+		slot.store(value, result);
+		return result;
+	}
+
+	/**
+	 * As {@link #match(LogLine, RegexLimit)}, but without the cache or the
+	 * IP range trie, for checking that they give the same result.
+	 * @param line Log line
+	 * @param limit Time limit for regular expression
+	 * @return True if the given line falls into this category
+	 * @throws RegexTimeoutException If the regular expression takes too long
+	 */
+	boolean matchReference(LogLine line, RegexLimit limit)
+		throws RegexTimeoutException
+	{
+		if(ranges != null)
+		{
+			return ranges.containsReference(line.getIp());
+		}
+		return limit.find(regex, line.get(field));
+	}
+
+	/**
+	 * Uses a cache to remember results of the regular expression.
+	 * @param cache Cache
+	 */
+	void setCache(MatchCache cache)
+	{
+		if(regex != null)
+		{
+			slot = cache.register(field);
+		}
+	}
+
+	/** @return Description of the category including field and regex */
+	String getDescription()
+	{
+		if(ranges != null)
+		{
+			return name + " " + field + " ranges " + ranges;
+		}
+		return name + " " + field + " " + regex.pattern();
 	}
 
 	@Override
@@ -21,10 +21,11 @@ package com.leafdigital.browserstats.collate;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.*;
 
-import com.leafdigital.browserstats.collate.LogLine.Field;
-import com.leafdigital.browserstats.shared.CommandLineTool;
+import com.leafdigital.browserstats.identify.AgentIdentifier;
+import com.leafdigital.browserstats.shared.*;
 
 /**
  * Main class for collator utility which processes server log files.
@@ -34,17 +35,36 @@ public class Collate extends CommandLineTool
 	private final static Pattern REGEX_ISO_DATE =
 		Pattern.compile("[0-9]{4}-[0-9]{2}-[0-9]{2}");
 
-	/** Time periods for output. */
+	private final static Pattern REGEX_LATENESS =
+		Pattern.compile("([0-9]{1,9})(s|m|h|d|lines)");
+
+	/** Time periods for output, in order from finest to coarsest. */
 	public enum TimePeriod
 	{
 		/** One output file per day */
-		DAILY,
+		DAILY(10),
 		/** One output file per month */
-		MONTHLY,
+		MONTHLY(7),
 		/** One output file per year */
-		YEARLY,
+		YEARLY(4),
 		/** Single output file */
-		ALL
+		ALL(0);
+
+		private int length;
+		TimePeriod(int length)
+		{
+			this.length = length;
+		}
+
+		/**
+		 * Gets the name of the period that includes a date or a finer period.
+		 * @param isoDate Date in ISO format, or name of a finer period
+		 * @return Period name e.g. 2009-07 for monthly, or null in ALL mode
+		 */
+		String getPeriod(String isoDate)
+		{
+			return length == 0 ? null : isoDate.substring(0, length);
+		}
 	};
 
 	/** Special test constants to check options. */
@@ -74,50 +94,69 @@ public class Collate extends CommandLineTool
 		}
 	};
 
-	private static class LineMatcher
-	{
-		private LogLine.Field field;
-		private Pattern regex;
-
-		private LineMatcher(Field field, Pattern regex)
-		{
-			this.field = field;
-			this.regex = regex;
-		}
-
-		private boolean match(LogLine line)
-		{
-			return regex.matcher(line.get(field)).find();
-		}
-	}
-
-	private final static LineMatcher DEFAULTEXCLUDE = new LineMatcher(
-		LogLine.Field.PATH, Pattern.compile("(?:j(?:s|pe?g)|png|gif|css|ico)(?:\\?|$)"));
+	private final static LineMatcher DEFAULTEXCLUDE =
+		LineMatcher.createDefaultPathExclude();
 
-	private final static LineMatcher DEFAULTEXCLUDE2 = new LineMatcher(
-		LogLine.Field.AGENT, Pattern.compile("^(?:null|-)?$"));
+	private final static LineMatcher DEFAULTEXCLUDE2 =
+		LineMatcher.createDefaultAgentExclude();
 
-	private final static LineMatcher DEFAULTINCLUDE = new LineMatcher(
-		LogLine.Field.STATUS, Pattern.compile("^200$"));
+	private final static LineMatcher DEFAULTINCLUDE =
+		LineMatcher.createDefaultStatusInclude();
 
 	private StandardFormats formats;
 
 	private File folder = new File(".");
 	private String prefix = "log";
-	private TimePeriod period = TimePeriod.ALL;
+	private EnumSet<TimePeriod> periods = EnumSet.noneOf(TimePeriod.class);
 	private boolean stdout = false;
 	private boolean lenient = false;
 	private String encoding = "UTF-8";
 	private String from = null, to = null;
 	private LogFormat format;
 	private Categoriser categoriser = new Categoriser();
+	private AgentNormaliser normaliser = new AgentNormaliser();
 	private boolean unordered = false;
 	private boolean overwrite = false;
 	private boolean verbose = false;
 	private LinkedList<LineMatcher> includes = null, excludes = null;
 	private TestType test = null;
 	private String[] testParams = null;
-	private boolean customFormat = false;
+	private boolean customFormat = false, jsonFormat = false;
+	private boolean splitHosts = false;
+	private LinkedHashMap<String, Long> windows =
+		new LinkedHashMap<String, Long>();
+	private long windowEvery = 0;
+	private int prefetch = InputPrefetcher.DEFAULT_AHEAD;
+	private long lateness = AgentCounter.DEFAULT_LATENESS;
+	private boolean latenessLines = false, lateFiles = false;
+	private boolean interleave = false;
+	private int sample = 1, sampleBlocks = 1;
+	private int visitMinutes = 0;
+	private int compressLevel = 0;
+	private RegexLimit regexLimit = new RegexLimit(0);
+	private int parseThreads = 1;
+	private SyslogListener listener = null;
+	private int listenThreads = 1;
+	private int matchCacheSize = 0;
+	private MatchCache matchCache = null;
+	private ParseProfiler profiler = null;
+	private Verifier verifier = null;
+	private boolean identify = false, userAgents = false;
+	private AgentIdentifier identifier = null;
+	private RegexLimit identifyLimit = null;
+	private File verifyFile = null;
+
+	private File cacheFolder = null;
+
+	// Updated from parser threads
+	private AtomicInteger filtered = new AtomicInteger(),
+		unsampled = new AtomicInteger();
+
+	// Statistics for all input
+	private long totalLines, invalidLines, wrongTimeLines, ioBlockTime,
+		ioIdleTime, maxRam;
+	private int lineCount;
+	private List<String> tuningLog = new LinkedList<String>();
 
 	/**
 	 * @param args Command-line arguments
@@ -143,6 +182,29 @@ public class Collate extends CommandLineTool
 		}
 	}
 
+	/**
+	 * @param m Match of {@link #REGEX_LATENESS} with a unit of time
+	 * @return Amount in seconds
+	 */
+	private static long getSeconds(Matcher m)
+	{
+		long seconds = Long.parseLong(m.group(1));
+		char unit = m.group(2).charAt(0);
+		if(unit == 'd')
+		{
+			seconds *= 24;
+		}
+		if(unit == 'd' || unit == 'h')
+		{
+			seconds *= 60;
+		}
+		if(unit == 'd' || unit == 'h' || unit == 'm')
+		{
+			seconds *= 60;
+		}
+		return seconds;
+	}
+
 	@Override
 	protected int processArg(String[] args, int i)
 	{
@@ -184,22 +246,22 @@ public class Collate extends CommandLineTool
 		}
 		if(args[i].equals("-daily"))
 		{
-			period = TimePeriod.DAILY;
+			periods.add(TimePeriod.DAILY);
 			return 1;
 		}
 		if(args[i].equals("-monthly"))
 		{
-			period = TimePeriod.MONTHLY;
+			periods.add(TimePeriod.MONTHLY);
 			return 1;
 		}
 		if(args[i].equals("-yearly"))
 		{
-			period = TimePeriod.YEARLY;
+			periods.add(TimePeriod.YEARLY);
 			return 1;
 		}
 		if(args[i].equals("-single"))
 		{
-			period = TimePeriod.ALL;
+			periods.add(TimePeriod.ALL);
 			return 1;
 		}
 		if(args[i].equals("-overwrite"))
@@ -222,11 +284,275 @@ public class Collate extends CommandLineTool
 			unordered = true;
 			return 1;
 		}
+		if(args[i].equals("-lateness"))
+		{
+			checkArgs(args, i, 1);
+			Matcher m = REGEX_LATENESS.matcher(args[i+1]);
+			if(!m.matches() || Long.parseLong(m.group(1)) == 0)
+			{
+				throw new IllegalArgumentException("Invalid -lateness: " + args[i+1]);
+			}
+			latenessLines = m.group(2).equals("lines");
+			lateness = latenessLines ? Long.parseLong(m.group(1)) : getSeconds(m);
+			return 2;
+		}
+		if(args[i].equals("-window"))
+		{
+			checkArgs(args, i, 1);
+			Matcher m = REGEX_LATENESS.matcher(args[i+1]);
+			if(!m.matches() || Long.parseLong(m.group(1)) == 0
+				|| m.group(2).equals("lines"))
+			{
+				throw new IllegalArgumentException("Invalid -window: " + args[i+1]);
+			}
+			windows.put(args[i+1], getSeconds(m));
+			return 2;
+		}
+		if(args[i].equals("-windowevery"))
+		{
+			checkArgs(args, i, 1);
+			Matcher m = REGEX_LATENESS.matcher(args[i+1]);
+			if(!m.matches() || Long.parseLong(m.group(1)) == 0
+				|| m.group(2).equals("lines"))
+			{
+				throw new IllegalArgumentException("Invalid -windowevery: "
+					+ args[i+1]);
+			}
+			windowEvery = getSeconds(m);
+			return 2;
+		}
+		if(args[i].equals("-interleave"))
+		{
+			interleave = true;
+			return 1;
+		}
+		if(args[i].equals("-latefiles"))
+		{
+			lateFiles = true;
+			return 1;
+		}
+		if(args[i].equals("-splitby"))
+		{
+			checkArgs(args, i, 1);
+			if(!args[i+1].equals("host"))
+			{
+				throw new IllegalArgumentException("Invalid -splitby value (only "
+					+ "'host' is supported): " + args[i+1]);
+			}
+			splitHosts = true;
+			return 2;
+		}
 		if(args[i].equals("-verbose"))
 		{
 			verbose = true;
 			return 1;
 		}
+		if(args[i].equals("-prefetch"))
+		{
+			checkArgs(args, i, 1);
+			try
+			{
+				prefetch = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				prefetch = -1;
+			}
+			if(prefetch < 1)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -prefetch file count: " + args[i+1]);
+			}
+			return 2;
+		}
+		if(args[i].equals("-cache"))
+		{
+			checkArgs(args, i, 1);
+			cacheFolder = new File(args[i+1]);
+			return 2;
+		}
+		if(args[i].equals("-parsethreads"))
+		{
+			checkArgs(args, i, 1);
+			try
+			{
+				parseThreads = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				parseThreads = 0;
+			}
+			if(parseThreads < 1)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -parsethreads count: " + args[i+1]);
+			}
+			return 2;
+		}
+		if(args[i].equals("-listen"))
+		{
+			checkArgs(args, i, 1);
+			if(listener == null)
+			{
+				listener = new SyslogListener();
+			}
+			listener.addEndpoint(args[i+1]);
+			return 2;
+		}
+		if(args[i].equals("-listenthreads"))
+		{
+			checkArgs(args, i, 1);
+			try
+			{
+				listenThreads = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				listenThreads = 0;
+			}
+			if(listenThreads < 1)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -listenthreads count: " + args[i+1]);
+			}
+			return 2;
+		}
+		if(args[i].equals("-matchcache"))
+		{
+			checkArgs(args, i, 1);
+			try
+			{
+				matchCacheSize = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				matchCacheSize = -1;
+			}
+			if(matchCacheSize < 0)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -matchcache size: " + args[i+1]);
+			}
+			return 2;
+		}
+		if(args[i].equals("-profile"))
+		{
+			checkArgs(args, i, 1);
+			int keep;
+			try
+			{
+				keep = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				keep = -1;
+			}
+			if(keep < 0)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -profile count: " + args[i+1]);
+			}
+			profiler = new ParseProfiler(keep);
+			return 2;
+		}
+		if(args[i].equals("-verify"))
+		{
+			checkArgs(args, i, 1);
+			int every;
+			try
+			{
+				every = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				every = -1;
+			}
+			if(every < 1)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -verify frequency: " + args[i+1]);
+			}
+			verifier = new Verifier(every);
+			return 2;
+		}
+		if(args[i].equals("-verifyfile"))
+		{
+			checkArgs(args, i, 1);
+			verifyFile = new File(args[i+1]);
+			return 2;
+		}
+		if(args[i].equals("-sample") || args[i].equals("-sampleblocks"))
+		{
+			checkArgs(args, i, 1);
+			int value;
+			try
+			{
+				value = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				value = 0;
+			}
+			if(value < 1)
+			{
+				throw new IllegalArgumentException(
+					"Invalid " + args[i] + " rate: " + args[i+1]);
+			}
+			if(args[i].equals("-sample"))
+			{
+				sample = value;
+			}
+			else
+			{
+				sampleBlocks = value;
+			}
+			return 2;
+		}
+		if(args[i].equals("-visits"))
+		{
+			checkArgs(args, i, 1);
+			try
+			{
+				visitMinutes = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				visitMinutes = 0;
+			}
+			if(visitMinutes < 1)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -visits minutes: " + args[i+1]);
+			}
+			return 2;
+		}
+		if(args[i].equals("-regexlimit"))
+		{
+			checkArgs(args, i, 1);
+			regexLimit = RegexLimit.parse(args[i+1]);
+			return 2;
+		}
+		if(args[i].equals("-identify"))
+		{
+			identify = true;
+			return 1;
+		}
+		if(args[i].equals("-useragents"))
+		{
+			userAgents = true;
+			return 1;
+		}
+		if(args[i].equals("-gzip"))
+		{
+			compressLevel = Gzip.DEFAULT_LEVEL;
+			return 1;
+		}
+		if(args[i].equals("-gziplevel"))
+		{
+			checkArgs(args, i, 1);
+			compressLevel = Gzip.parseLevel(args[i+1]);
+			return 2;
+		}
 		if(args[i].equals("-encoding"))
 		{
 			checkArgs(args, i, 1);
@@ -242,6 +568,8 @@ public class Collate extends CommandLineTool
 		{
 			checkArgs(args, i, 1);
 			format = formats.getFormat(args[i+1]);
+			customFormat = false;
+			jsonFormat = false;
 			return 2;
 		}
 		if(args[i].equals("-test"))
@@ -271,8 +599,29 @@ public class Collate extends CommandLineTool
 			format = new LogFormat(args[i+1], args[i+2], args[i+3], args[i+4],
 				args[i+5], args[i+6], args[i+7], args[i+8], args[i+9]);
 			customFormat = true;
+			jsonFormat = false;
 			return 8;
 		}
+		if(args[i].equals("-jsonformat"))
+		{
+			checkArgs(args, i, 6);
+			format = new JsonLogFormat(args[i+1], args[i+2], args[i+3], args[i+4],
+				args[i+5], args[i+6]);
+			customFormat = false;
+			jsonFormat = true;
+			return 7;
+		}
+		if(args[i].equals("-customhost"))
+		{
+			checkArgs(args, i, 1);
+			if(!customFormat && !jsonFormat)
+			{
+				throw new IllegalArgumentException(
+					"Cannot use -customhost except with -customformat or -jsonformat");
+			}
+			format.setHostField(args[i+1]);
+			return 2;
+		}
 		if(args[i].equals("-customskip"))
 		{
 			checkArgs(args, i, 1);
@@ -291,54 +640,110 @@ public class Collate extends CommandLineTool
 			categoriser.addCategory(c);
 			return 4;
 		}
-		if(args[i].equals("-include"))
+		if(args[i].equals("-normalise"))
 		{
 			checkArgs(args, i, 2);
+			normaliser.addRule(args[i+1], args[i+2]);
+			return 3;
+		}
+		if(args[i].equals("-normalisefile"))
+		{
+			checkArgs(args, i, 1);
 			try
 			{
-				LineMatcher matcher = new LineMatcher(
-					LogLine.Field.get(args[i+1]),Pattern.compile(args[i+2]));
-				if(includes==null)
+				normaliser.addFile(new File(args[i+1]));
+			}
+			catch(IOException e)
+			{
+				throw new IllegalArgumentException(
+					"Error reading -normalisefile: " + e.getMessage());
+			}
+			return 2;
+		}
+		if(args[i].equals("-iprange") || args[i].equals("-iprangefile"))
+		{
+			checkArgs(args, i, 2);
+			IpRanges ranges = new IpRanges();
+			if(args[i].equals("-iprange"))
+			{
+				for(String range : args[i+2].split(","))
 				{
-					includes = new LinkedList<LineMatcher>();
+					ranges.add(range.trim());
 				}
-				includes.add(matcher);
 			}
-			catch(PatternSyntaxException e)
+			else
 			{
-				throw new IllegalArgumentException(
-					"Invalid -include regex: " + args[i+2]);
+				try
+				{
+					ranges.addFile(new File(args[i+2]));
+				}
+				catch(IOException e)
+				{
+					throw new IllegalArgumentException(
+						"Error reading -iprangefile: " + e.getMessage());
+				}
+			}
+			categoriser.addCategory(new Category(args[i+1], ranges));
+			return 3;
+		}
+		if(args[i].equals("-include"))
+		{
+			checkArgs(args, i, 2);
+			LogLine.Field field;
+			try
+			{
+				field = LogLine.Field.get(args[i+1]);
 			}
 			catch(IllegalArgumentException e)
 			{
 				throw new IllegalArgumentException(
 					"Invalid -include field: " + args[i+1]);
 			}
+			LineMatcher matcher;
+			try
+			{
+				matcher = LineMatcher.create(field, args[i+2]);
+			}
+			catch(IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException(
+					"Invalid -include expression (" + e.getMessage() + ")");
+			}
+			if(includes==null)
+			{
+				includes = new LinkedList<LineMatcher>();
+			}
+			includes.add(matcher);
 			return 3;
 		}
 		if(args[i].equals("-exclude"))
 		{
 			checkArgs(args, i, 2);
+			LogLine.Field field;
 			try
 			{
-				LineMatcher matcher = new LineMatcher(
-					LogLine.Field.get(args[i+1]),Pattern.compile(args[i+2]));
-				if(excludes==null)
-				{
-					excludes = new LinkedList<LineMatcher>();
-				}
-				excludes.add(matcher);
+				field = LogLine.Field.get(args[i+1]);
 			}
-			catch(PatternSyntaxException e)
+			catch(IllegalArgumentException e)
 			{
 				throw new IllegalArgumentException(
-					"Invalid -exclude regex: " + args[i+2]);
+					"Invalid -exclude field: " + args[i+1]);
+			}
+			LineMatcher matcher;
+			try
+			{
+				matcher = LineMatcher.create(field, args[i+2]);
 			}
 			catch(IllegalArgumentException e)
 			{
 				throw new IllegalArgumentException(
-					"Invalid -exclude field: " + args[i+1]);
+					"Invalid -exclude expression (" + e.getMessage() + ")");
+			}
+			if(excludes==null)
+			{
+				excludes = new LinkedList<LineMatcher>();
 			}
+			excludes.add(matcher);
 			return 3;
 		}
 		return 0;
@@ -347,18 +752,91 @@ public class Collate extends CommandLineTool
 	@Override
 	protected void validateArgs() throws IllegalArgumentException
 	{
-		if(stdout && period!=TimePeriod.ALL)
+		if(periods.isEmpty())
 		{
-			throw new IllegalArgumentException(
-				"Cannot specify -stdout with -daily or -monthly or -yearly");
+			periods.add(TimePeriod.ALL);
 		}
-
-		if(includes==null)
+		if(sampleBlocks > 1 && getInputFiles() == null)
 		{
-			includes = new LinkedList<LineMatcher>();
-			includes.add(DEFAULTINCLUDE);
+			throw new IllegalArgumentException(
+				"Cannot specify -sampleblocks with -stdin");
 		}
-		if(excludes==null)
+		if(listener != null)
+		{
+			if(getInputFiles() == null || getInputFiles().length > 0)
+			{
+				throw new IllegalArgumentException(
+					"Cannot specify input files or -stdin with -listen");
+			}
+			if(sampleBlocks > 1 || cacheFolder != null || test != null)
+			{
+				throw new IllegalArgumentException(
+					"Cannot specify -sampleblocks, -cache or -test with -listen");
+			}
+			// A bad line from one sender should not stop everything
+			lenient = true;
+		}
+		if(splitHosts)
+		{
+			if(!format.hasHost())
+			{
+				throw new IllegalArgumentException("Cannot specify -splitby host "
+					+ "unless the log format includes the host (see -customhost)");
+			}
+			if(cacheFolder != null)
+			{
+				throw new IllegalArgumentException(
+					"Cannot specify -cache with -splitby");
+			}
+		}
+		if(!windows.isEmpty() && cacheFolder != null)
+		{
+			throw new IllegalArgumentException("Cannot specify -cache with -window");
+		}
+		if(windowEvery > 0 && windows.isEmpty())
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -windowevery without -window");
+		}
+		if(userAgents && !identify)
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -useragents without -identify");
+		}
+		if(verifyFile != null && verifier == null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -verifyfile without -verify");
+		}
+		if(parseThreads > 1 && interleave)
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -parsethreads with -interleave");
+		}
+		if(cacheFolder != null)
+		{
+			if(getInputFiles() == null)
+			{
+				throw new IllegalArgumentException("Cannot specify -cache with -stdin");
+			}
+			if(interleave)
+			{
+				throw new IllegalArgumentException(
+					"Cannot specify -cache with -interleave");
+			}
+			if(visitMinutes > 0)
+			{
+				throw new IllegalArgumentException(
+					"Cannot specify -cache with -visits");
+			}
+		}
+
+		if(includes==null)
+		{
+			includes = new LinkedList<LineMatcher>();
+			includes.add(DEFAULTINCLUDE);
+		}
+		if(excludes==null)
 		{
 			excludes = new LinkedList<LineMatcher>();
 			excludes.add(DEFAULTEXCLUDE);
@@ -366,12 +844,45 @@ public class Collate extends CommandLineTool
 		}
 	}
 
-	private boolean include(LogLine line)
+	private boolean include(LogLine line) throws RegexTimeoutException
+	{
+		boolean include = false;
+		for(LineMatcher matcher : includes)
+		{
+			if(matcher.match(line, regexLimit))
+			{
+				include = true;
+				break;
+			}
+		}
+		if(!include)
+		{
+			return false;
+		}
+		for(LineMatcher matcher : excludes)
+		{
+			if(matcher.match(line, regexLimit))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * As {@link #include(LogLine)}, but without any cache or other
+	 * optimisation, for checking that they give the same result. For the
+	 * default filters this uses the original regular expressions.
+	 * @param line Line
+	 * @return True if line passes -include and -exclude
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	private boolean includeReference(LogLine line) throws RegexTimeoutException
 	{
 		boolean include = false;
 		for(LineMatcher matcher : includes)
 		{
-			if(matcher.match(line))
+			if(matcher.matchReference(line, regexLimit))
 			{
 				include = true;
 				break;
@@ -383,7 +894,7 @@ public class Collate extends CommandLineTool
 		}
 		for(LineMatcher matcher : excludes)
 		{
-			if(matcher.match(line))
+			if(matcher.matchReference(line, regexLimit))
 			{
 				return false;
 			}
@@ -391,9 +902,126 @@ public class Collate extends CommandLineTool
 		return true;
 	}
 
+	/**
+	 * Checks the filter and category of a line against the reference versions.
+	 * The line's category was already worked out during parsing; it is worked
+	 * out again here only for timing.
+	 * @param line Line
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	private void verify(LogLine line) throws RegexTimeoutException
+	{
+		long start = System.nanoTime();
+		boolean fast = include(line);
+		long fastTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		boolean reference = includeReference(line);
+		verifier.record(Verifier.Check.FILTER, line.getLine(), fast, fastTime,
+			reference, System.nanoTime() - start);
+
+		if(categoriser.isEmpty())
+		{
+			return;
+		}
+		start = System.nanoTime();
+		categoriser.categorise(line);
+		fastTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		Category category = categoriser.categoriseReference(line);
+		verifier.record(Verifier.Check.CATEGORY, line.getLine(),
+			line.getCategory(), fastTime, category, System.nanoTime() - start);
+	}
+
+	/**
+	 * Decides whether a line is counted, keeping track of the lines that are
+	 * not. May be called from several parser threads at once.
+	 * @param line Line
+	 * @return True if line should be counted
+	 */
+	private boolean accept(LogLine line)
+	{
+		if(sample > 1 && !inSample(line))
+		{
+			unsampled.incrementAndGet();
+			return false;
+		}
+		try
+		{
+			if(verifier != null && verifier.select())
+			{
+				verify(line);
+			}
+			if(!include(line))
+			{
+				filtered.incrementAndGet();
+				return false;
+			}
+		}
+		catch(RegexTimeoutException e)
+		{
+			// Already recorded by the limit
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Decides whether a line is in the sample. All lines from the same IP
+	 * address are either in or out, so that the sample still contains whole
+	 * visits.
+	 * @param line Line
+	 * @return True if line should be counted
+	 */
+	private boolean inSample(LogLine line)
+	{
+		// Mix the hash (MurmurHash3 finaliser) so that similar addresses are
+		// spread across the sample
+		int h = line.getIp().hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return (h & 0x7fffffff) % sample == 0;
+	}
+
 	@Override
 	protected void go()
 	{
+		format.setRegexLimit(regexLimit);
+		categoriser.setRegexLimit(regexLimit);
+		if(matchCacheSize > 0)
+		{
+			matchCache = new MatchCache(matchCacheSize);
+			categoriser.setCache(matchCache);
+			for(LineMatcher matcher : includes)
+			{
+				matcher.setCache(matchCache);
+			}
+			for(LineMatcher matcher : excludes)
+			{
+				matcher.setCache(matchCache);
+			}
+		}
+		if(!normaliser.isEmpty())
+		{
+			normaliser.setRegexLimit(regexLimit);
+			normaliser.setVerifier(verifier);
+			format.setNormaliser(normaliser);
+		}
+		if(verifyFile != null)
+		{
+			try
+			{
+				verifier.setSampleFile(verifyFile);
+			}
+			catch(IOException e)
+			{
+				System.err.println("\n\nError opening -verifyfile:\n\n"
+					+ e.getMessage());
+				return;
+			}
+		}
 		if(test!=null)
 		{
 			switch(test)
@@ -407,22 +1035,70 @@ public class Collate extends CommandLineTool
 			}
 		}
 		// Construct counter
-		AgentCounter counter = new AgentCounter(folder, prefix, period,
+		AgentCounter counter = new AgentCounter(folder, prefix, periods,
 			unordered, overwrite, categoriser.getCategories(), stdout);
+		counter.setLateness(lateness, latenessLines);
+		counter.setLateFiles(lateFiles);
+		counter.setScale(sample * sampleBlocks);
+		if(visitMinutes > 0)
+		{
+			counter.setVisits(visitMinutes);
+		}
+		counter.setCompression(compressLevel);
+		if(splitHosts)
+		{
+			counter.setSplitByHost();
+		}
+		if(identify)
+		{
+			// Agent matching has its own limit so that timeouts are not counted
+			// as skipped lines
+			identifyLimit = new RegexLimit(regexLimit.getMilliseconds());
+			try
+			{
+				identifier = new AgentIdentifier(identifyLimit);
+			}
+			catch(IOException e)
+			{
+				System.err.println("\n\n" + e.getMessage());
+				return;
+			}
+			counter.setIdentify(identifier, userAgents);
+		}
+		for(Map.Entry<String, Long> window : windows.entrySet())
+		{
+			counter.addWindow(window.getKey(), window.getValue());
+		}
+		if(windowEvery > 0)
+		{
+			counter.startWindowTimer(windowEvery);
+		}
 
-		long maxRam = 0;
-		int count = 0;
-		int filtered = 0;
 		long startTime = System.currentTimeMillis();
 
+		// Lines are filtered as they are parsed (except in test modes, which
+		// need to see all lines)
+		LogReader.Filter filter = null;
+		if(test == null)
+		{
+			filter = new LogReader.Filter()
+			{
+				@Override
+				public boolean accept(LogLine line)
+				{
+					return Collate.this.accept(line);
+				}
+			};
+		}
+
 		try
 		{
-			// Process files
-			LogReader reader = new LogReader(
-				format, encoding, lenient, getInputFiles(), categoriser, from, to);
-			try
+			if(test!=null)
 			{
-				if(test!=null)
+				LogReader reader = new LogReader(
+					format, encoding, lenient, getInputFiles(), categoriser, from, to,
+					prefetch, interleave, sampleBlocks, parseThreads, null, null);
+				try
 				{
 					switch(test)
 					{
@@ -436,45 +1112,72 @@ public class Collate extends CommandLineTool
 						testIncludes(reader, false);
 						break;
 					}
-					return;
 				}
+				finally
+				{
+					reader.close();
+				}
+				if(reader.getException() != null)
+				{
+					throw reader.getException();
+				}
+				return;
+			}
 
-				for(LogLine line : reader)
+			// Process files
+			PartialCache cache = null;
+			if(listener != null)
+			{
+				if(!listen(counter, filter))
 				{
-					boolean filter = !include(line);
-					if(filter)
-					{
-						filtered++;
-					}
-					else
+					return;
+				}
+			}
+			else if(cacheFolder == null)
+			{
+				if(!collate(getInputFiles(), counter, filter, null))
+				{
+					return;
+				}
+			}
+			else
+			{
+				cache = new PartialCache(cacheFolder, getCacheConfig(),
+					periods.iterator().next(), categoriser.getCategories());
+				for(File f : getInputFiles())
+				{
+					File cacheFile = cache.getCacheFile(f);
+					PartialCache.Partial partial = cache.load(cacheFile);
+					if(partial != null)
 					{
 						try
 						{
-							counter.process(line);
+							partial.addTo(counter);
 						}
 						catch(IOException e)
 						{
 							System.err.println("\n\nError writing output:\n\n" + e.getMessage());
 							return;
 						}
+						continue;
 					}
-					// About every 1024 lines, check RAM
-					if((count & 0x3ff) == 0)
+
+					partial = cache.newPartial();
+					if(!collate(new File[] { f }, counter, filter, partial))
+					{
+						return;
+					}
+					try
+					{
+						cache.save(cacheFile, partial);
+					}
+					catch(IOException e)
 					{
-						maxRam = Math.max(maxRam, Runtime.getRuntime().totalMemory()
-							- Runtime.getRuntime().freeMemory());
+						System.err.println("\n\nError writing cache (continuing):\n\n"
+							+ e.getMessage());
 					}
-					count++;
 				}
 			}
-			finally
-			{
-				reader.close();
-			}
-			if(reader.getException() != null)
-			{
-				throw reader.getException();
-			}
 
 			// Flush output
 			try
@@ -490,28 +1193,122 @@ public class Collate extends CommandLineTool
 			// Output information
 			if(!stdout)
 			{
-				System.err.println("Total lines read: " + reader.getTotalLines());
-				if(reader.getInvalidLines() > 0)
+				System.err.println("Total lines read: " + totalLines);
+				if(listener != null)
 				{
-					System.err.println("Skipped (invalid): " + reader.getInvalidLines());
+					System.err.println("Syslog messages received: "
+						+ listener.getReceived() + " (" + listener.getConnections()
+						+ " TCP connections)");
+					if(listener.getInvalid() > 0)
+					{
+						System.err.println("Syslog messages invalid: "
+							+ listener.getInvalid());
+					}
+					if(listener.getDropped() > 0)
+					{
+						System.err.println("Syslog messages dropped (queue full): "
+							+ listener.getDropped());
+					}
+				}
+				if(cache != null)
+				{
+					System.err.println("Files from cache: " + cache.getHits() + " ("
+						+ cache.getHitLines() + " counted lines)");
+					System.err.println("Files not in cache: " + cache.getMisses());
+				}
+				if(invalidLines > 0)
+				{
+					System.err.println("Skipped (invalid): " + invalidLines);
+				}
+				if(wrongTimeLines > 0)
+				{
+					System.err.println("Skipped (date out of range): " + wrongTimeLines);
+				}
+				if(filtered.get() > 0)
+				{
+					System.err.println("Skipped (include/exclude): " + filtered.get());
 				}
-				if(reader.getWrongTimeLines() > 0)
+				if(unsampled.get() > 0)
 				{
-					System.err.println("Skipped (date out of range): " + reader.getWrongTimeLines());
+					System.err.println("Skipped (not in sample): " + unsampled.get());
 				}
-				if(filtered > 0)
+				if(counter.getLateLines() > 0)
 				{
-					System.err.println("Skipped (include/exclude): " + filtered);
+					System.err.println((lateFiles ? "Written to .late files"
+						: "Skipped") + " (arrived after period closed): "
+						+ counter.getLateLines());
 				}
 				if(verbose)
 				{
 					System.err.println();
 					System.err.println("Total time: " + (System.currentTimeMillis()-startTime) + " ms");
 					System.err.println("I/O blocks (processing waits for I/O): "
-						+ reader.getIoBlockTime() + "ms");
+						+ ioBlockTime + "ms");
 					System.err.println("I/O idles (I/O waits for processing): "
-						+ reader.getIoIdleTime() + "ms");
+						+ ioIdleTime + "ms");
+					for(String decision : tuningLog)
+					{
+						System.err.println("Read buffer tuning: " + decision);
+					}
+					if(identifier != null)
+					{
+						System.err.println("Agents identified: "
+							+ identifier.getMatches() + " (" + identifier.getCacheHits()
+							+ " remembered from an earlier period)");
+					}
+					if(counter.getSpillCount() > 0)
+					{
+						System.err.println("Counts moved to disk to save memory: "
+							+ counter.getSpillCount());
+					}
+					if(matchCache != null)
+					{
+						for(String statistics : matchCache.getStatistics())
+						{
+							System.err.println("Match cache for " + statistics);
+						}
+					}
 					System.err.println("Max RAM usage: " + ((maxRam+(512*1024))/(1024*1024)) + " MB");
+					if(visitMinutes > 0)
+					{
+						System.err.println("Peak visitors held: " + counter.getPeakVisitors());
+					}
+				}
+			}
+			// Lines lost to the time limit are always reported, even with -stdout
+			if(regexLimit.getTimeouts() > 0)
+			{
+				System.err.println("Skipped (regex time limit): "
+					+ regexLimit.getTimeouts());
+				for(String offender : regexLimit.getTopOffenders(5))
+				{
+					System.err.println("  " + offender);
+				}
+			}
+			if(identifyLimit != null && identifyLimit.getTimeouts() > 0)
+			{
+				System.err.println("Unidentified agents (regex time limit): "
+					+ identifyLimit.getTimeouts());
+				for(String offender : identifyLimit.getTopOffenders(5))
+				{
+					System.err.println("  " + offender);
+				}
+			}
+			if(profiler != null)
+			{
+				System.err.println();
+				for(String text : profiler.getReport())
+				{
+					System.err.println(text);
+				}
+			}
+			if(verifier != null)
+			{
+				verifier.close();
+				System.err.println();
+				for(String text : verifier.getReport())
+				{
+					System.err.println(text);
 				}
 			}
 		}
@@ -522,6 +1319,150 @@ public class Collate extends CommandLineTool
 		}
 	}
 
+	/**
+	 * Receives lines over syslog and counts them, until the process is
+	 * stopped (e.g. with Ctrl-C). Output is then completed before exiting.
+	 * @param counter Counter
+	 * @param filter Filter that decides which lines are counted
+	 * @return False if there was an error writing output (already reported)
+	 * @throws IOException Any error listening
+	 */
+	private boolean listen(AgentCounter counter, LogReader.Filter filter)
+		throws IOException
+	{
+		listener.start(encoding, listenThreads);
+		final Thread main = Thread.currentThread();
+		Thread hook = new Thread("Collate shutdown")
+		{
+			@Override
+			public void run()
+			{
+				// Stop receiving, then wait for the main thread to write output
+				listener.close();
+				try
+				{
+					main.join();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(hook);
+		if(!stdout)
+		{
+			System.err.println("Listening on " + listener + " (Ctrl-C to finish)");
+		}
+		try
+		{
+			return collate(null, counter, filter, null);
+		}
+		finally
+		{
+			listener.close();
+		}
+	}
+
+	/**
+	 * Reads input files and counts their lines.
+	 * @param files Input files, or null for stdin (or the syslog listener)
+	 * @param counter Counter
+	 * @param filter Filter that decides which lines are counted
+	 * @param partial If not null, lines are also counted into this so that
+	 *   they can be cached
+	 * @return False if there was an error writing output (already reported)
+	 * @throws IOException Any error reading input
+	 */
+	private boolean collate(File[] files, AgentCounter counter,
+		LogReader.Filter filter, PartialCache.Partial partial) throws IOException
+	{
+		LogReader reader;
+		if(listener != null)
+		{
+			reader = new LogReader(format, lenient, listener, categoriser, from, to,
+				parseThreads, filter, profiler);
+		}
+		else
+		{
+			reader = new LogReader(
+				format, encoding, lenient, files, categoriser, from, to,
+				prefetch, interleave, sampleBlocks, parseThreads, filter, profiler);
+		}
+		try
+		{
+			for(LogLine line : reader)
+			{
+				try
+				{
+					counter.process(line);
+				}
+				catch(IOException e)
+				{
+					System.err.println("\n\nError writing output:\n\n" + e.getMessage());
+					return false;
+				}
+				if(partial != null)
+				{
+					partial.count(line);
+				}
+				// About every 1024 lines, check RAM
+				if((lineCount & 0x3ff) == 0)
+				{
+					maxRam = Math.max(maxRam, Runtime.getRuntime().totalMemory()
+						- Runtime.getRuntime().freeMemory());
+				}
+				lineCount++;
+			}
+		}
+		finally
+		{
+			reader.close();
+			totalLines += reader.getTotalLines();
+			invalidLines += reader.getInvalidLines();
+			wrongTimeLines += reader.getWrongTimeLines();
+			ioBlockTime += reader.getIoBlockTime();
+			ioIdleTime += reader.getIoIdleTime();
+			tuningLog.addAll(reader.getTuningLog());
+		}
+		if(reader.getException() != null)
+		{
+			throw reader.getException();
+		}
+		return true;
+	}
+
+	/**
+	 * @return Description of all options that affect the counts for an input
+	 *   file, used to identify entries in the cache
+	 */
+	private String getCacheConfig()
+	{
+		StringBuilder config = new StringBuilder();
+		config.append("format ").append(format.getDescription()).append('\n');
+		config.append("encoding ").append(encoding).append('\n');
+		config.append("lenient ").append(lenient).append('\n');
+		config.append("from ").append(from).append('\n');
+		config.append("to ").append(to).append('\n');
+		config.append("period ").append(periods.iterator().next()).append('\n');
+		config.append("sample ").append(sample).append('\n');
+		config.append("sampleblocks ").append(sampleBlocks).append('\n');
+		config.append("regexlimit ").append(regexLimit.getMilliseconds()).append('\n');
+		config.append("normalise ").append(normaliser.getDescription()).append('\n');
+		for(Category c : categoriser.getCategories())
+		{
+			config.append("category ").append(c.getDescription()).append('\n');
+		}
+		for(LineMatcher matcher : includes)
+		{
+			config.append("include ").append(matcher).append('\n');
+		}
+		for(LineMatcher matcher : excludes)
+		{
+			config.append("exclude ").append(matcher).append('\n');
+		}
+		return config.toString();
+	}
+
 	private void testParse(LogReader reader)
 	{
 		for(LogLine line : reader)
@@ -538,7 +1479,16 @@ public class Collate extends CommandLineTool
 		HashSet<String> values = new HashSet<String>();
 		for(LogLine line : reader)
 		{
-			if(include(line) == includes)
+			boolean include;
+			try
+			{
+				include = include(line);
+			}
+			catch(RegexTimeoutException e)
+			{
+				continue;
+			}
+			if(include == includes)
 			{
 				String value = line.get(field);
 				if(values.add(value))
@@ -572,11 +1522,15 @@ public class Collate extends CommandLineTool
 		{
 			System.out.println("No match.");
 		}
+		catch(RegexTimeoutException e)
+		{
+			System.out.println("No match (regex time limit exceeded).");
+		}
 	}
 
 	@Override
 	protected boolean requiresInput()
 	{
-		return test != TestType.SELFTEST;
+		return test != TestType.SELFTEST && listener == null;
 	}
 }
@@ -0,0 +1,474 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads a sequence of input files on a single persistent thread. Data is
+ * read into a pool of reusable buffers, and up to a given number of files
+ * (including the one currently being parsed) are open and read at once, so
+ * that moving to the next file costs nothing on the parse thread.
+ * <p>
+ * The number and size of buffers are tuned while running. About once a
+ * second, the time the parse thread spent waiting for data (block time) and
+ * the time the read thread spent waiting for free buffers (idle time) are
+ * compared. If parsing keeps blocking on I/O (e.g. on network storage), the
+ * buffers grow; if I/O is mostly idle (e.g. fast local storage with a slow
+ * parse), they shrink to release memory. Each decision is logged.
+ */
+public class InputPrefetcher implements Runnable
+{
+	/** Default number of files open at once, including the current one */
+	final static int DEFAULT_AHEAD = 4;
+
+	/** Default maximum number of buffers in pool */
+	final static int DEFAULT_BUFFERS = 64;
+
+	/** Initial size of each buffer */
+	private final static int BUFFERSIZE = 65536;
+
+	/** Limits for tuning */
+	private final static int MIN_BUFFERSIZE = 16384, MAX_BUFFERSIZE = 1048576,
+		MIN_BUFFERS = 4, MAX_MEMORY = 64 * 1048576;
+
+	/** Time between tuning checks (ms) */
+	private final static long TUNE_INTERVAL = 1000;
+
+	/**
+	 * Proportion of time the parse thread must block, or the read thread must
+	 * idle, for buffers to grow or shrink respectively
+	 */
+	private final static double GROW_BLOCKED = 0.05, SHRINK_IDLE = 0.5;
+
+	private File[] files;
+	private int ahead, sampleBlocks;
+
+	private Object synch = new Object();
+
+	// All these variables may only be accessed when synchronized
+	private LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+	private int allocatedBuffers = 0;
+	private LinkedList<ThreadedInputStream> ready =
+		new LinkedList<ThreadedInputStream>();
+	private int openStreams = 0;
+	private boolean finished, close, closed;
+
+	private long blockTime = 0, idleTime = 0;
+	private int maxBuffers, bufferSize = BUFFERSIZE;
+	private long startTime, lastTuneTime, lastBlockTime, lastIdleTime;
+	private LinkedList<String> tuningLog = new LinkedList<String>();
+
+	/**
+	 * Starts reading.
+	 * @param files Files to read in order, or null to read stdin
+	 * @param ahead Number of files that may be open and read at once,
+	 *   including the one currently being parsed (at least 1)
+	 * @param maxBuffers Maximum number of buffers in pool
+	 * @param sampleBlocks Read only one in this many blocks of each file (1 to
+	 *   read everything; ignored for stdin)
+	 */
+	InputPrefetcher(File[] files, int ahead, int maxBuffers, int sampleBlocks)
+	{
+		this.files = files;
+		this.ahead = ahead;
+		this.maxBuffers = maxBuffers;
+		this.sampleBlocks = sampleBlocks;
+		startTime = System.currentTimeMillis();
+		lastTuneTime = startTime;
+
+		Thread t = new Thread(this, "InputPrefetcher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	@Override
+	public void run()
+	{
+		try
+		{
+			int count = files == null ? 1 : files.length;
+			for(int i=0; i<count; i++)
+			{
+				ThreadedInputStream stream;
+				synchronized(synch)
+				{
+					// Wait until we are allowed to open another file
+					while(openStreams >= ahead && !close)
+					{
+						long before = System.currentTimeMillis();
+						synch.wait();
+						idleTime += System.currentTimeMillis() - before;
+					}
+					if(close)
+					{
+						return;
+					}
+					stream = new ThreadedInputStream(this);
+					ready.addLast(stream);
+					openStreams++;
+					synch.notifyAll();
+				}
+
+				InputStream input = null;
+				try
+				{
+					if(files == null)
+					{
+						input = System.in;
+					}
+					else if(sampleBlocks > 1)
+					{
+						input = new BlockSampleInputStream(files[i], sampleBlocks);
+					}
+					else
+					{
+						input = new FileInputStream(files[i]);
+					}
+					readStream(input, stream);
+				}
+				catch(IOException e)
+				{
+					synchronized(synch)
+					{
+						stream.fail(e);
+						synch.notifyAll();
+					}
+				}
+				finally
+				{
+					if(input != null)
+					{
+						try
+						{
+							input.close();
+						}
+						catch(IOException e)
+						{
+						}
+					}
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+		}
+		finally
+		{
+			synchronized(synch)
+			{
+				finished = true;
+				closed = true;
+				synch.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Reads a single input into buffers for the given stream.
+	 * @param input Input stream
+	 * @param stream Stream that receives the buffers
+	 * @throws IOException Any error reading
+	 * @throws InterruptedException If interrupted
+	 */
+	private void readStream(InputStream input, ThreadedInputStream stream)
+		throws IOException, InterruptedException
+	{
+		while(true)
+		{
+			byte[] buffer = takeBuffer();
+			if(buffer == null)
+			{
+				// Closing
+				return;
+			}
+
+			// Read from stream into that buffer
+			int pos = 0;
+			boolean eof = false;
+			while(pos < buffer.length)
+			{
+				int read = input.read(buffer, pos, buffer.length-pos);
+				if(read == -1)
+				{
+					eof = true;
+					break;
+				}
+				pos += read;
+			}
+
+			synchronized(synch)
+			{
+				if(stream.isClosed())
+				{
+					// Parse thread gave up on this file, so don't bother reading it
+					releaseBuffer(buffer);
+					return;
+				}
+				if(pos > 0)
+				{
+					stream.add(buffer, pos);
+				}
+				else
+				{
+					releaseBuffer(buffer);
+				}
+				if(eof)
+				{
+					stream.end();
+				}
+				synch.notifyAll();
+				tune();
+			}
+			if(eof)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the buffers should grow or shrink, if it is time to do so.
+	 * Must be called while synchronized.
+	 */
+	private void tune()
+	{
+		long now = System.currentTimeMillis();
+		long interval = now - lastTuneTime;
+		if(interval < TUNE_INTERVAL)
+		{
+			return;
+		}
+		double blocked = (double)(blockTime - lastBlockTime) / interval;
+		double idle = (double)(idleTime - lastIdleTime) / interval;
+		lastTuneTime = now;
+		lastBlockTime = blockTime;
+		lastIdleTime = idleTime;
+
+		int newSize = bufferSize, newBuffers = maxBuffers;
+		String reason;
+		if(blocked > GROW_BLOCKED && idle < GROW_BLOCKED)
+		{
+			// Parse thread is waiting for I/O: read further ahead, in bigger
+			// chunks, up to a memory limit
+			newSize = Math.min(bufferSize * 2, MAX_BUFFERSIZE);
+			if((long)maxBuffers * newSize > MAX_MEMORY)
+			{
+				newSize = bufferSize;
+			}
+			newBuffers = Math.max(maxBuffers,
+				Math.min(maxBuffers * 2, MAX_MEMORY / newSize));
+			reason = "parse waiting for I/O";
+		}
+		else if(idle > SHRINK_IDLE && blocked < GROW_BLOCKED / 5)
+		{
+			// I/O is keeping up easily: release memory
+			newSize = Math.max(bufferSize / 2, MIN_BUFFERSIZE);
+			newBuffers = Math.max(maxBuffers / 2, MIN_BUFFERS);
+			reason = "I/O mostly idle";
+		}
+		else
+		{
+			return;
+		}
+		if(newSize == bufferSize && newBuffers == maxBuffers)
+		{
+			return;
+		}
+
+		tuningLog.add(String.format(
+			"%.1fs: %s (blocked %d%%, idle %d%%), buffers %d x %dKB -> %d x %dKB",
+			(now - startTime) / 1000.0, reason, Math.round(blocked * 100),
+			Math.round(idle * 100), maxBuffers, bufferSize / 1024,
+			newBuffers, newSize / 1024));
+		bufferSize = newSize;
+		maxBuffers = newBuffers;
+
+		// Drop spare buffers that are no longer wanted
+		for(Iterator<byte[]> i = freeBuffers.iterator(); i.hasNext();)
+		{
+			byte[] buffer = i.next();
+			if(buffer.length != bufferSize || allocatedBuffers > maxBuffers)
+			{
+				i.remove();
+				allocatedBuffers--;
+			}
+		}
+	}
+
+	/**
+	 * Obtains a buffer from the pool, waiting if they are all in use.
+	 * @return Buffer or null if the prefetcher is closing
+	 * @throws InterruptedException If interrupted
+	 */
+	private byte[] takeBuffer() throws InterruptedException
+	{
+		int size;
+		synchronized(synch)
+		{
+			while(freeBuffers.isEmpty() && allocatedBuffers >= maxBuffers && !close)
+			{
+				long before = System.currentTimeMillis();
+				synch.wait();
+				idleTime += System.currentTimeMillis() - before;
+			}
+			if(close)
+			{
+				return null;
+			}
+			if(!freeBuffers.isEmpty())
+			{
+				return freeBuffers.removeFirst();
+			}
+			allocatedBuffers++;
+			size = bufferSize;
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Returns a buffer to the pool, or discards it if the buffers have been
+	 * tuned since it was allocated. Must be called while synchronized.
+	 * @param buffer Buffer
+	 */
+	void releaseBuffer(byte[] buffer)
+	{
+		if(buffer.length != bufferSize || allocatedBuffers > maxBuffers)
+		{
+			allocatedBuffers--;
+		}
+		else
+		{
+			freeBuffers.addLast(buffer);
+		}
+		synch.notifyAll();
+	}
+
+	/**
+	 * Called by a stream when the parse thread has finished with it. Must be
+	 * called while synchronized.
+	 */
+	void streamClosed()
+	{
+		openStreams--;
+		synch.notifyAll();
+	}
+
+	/** @return Object used to synchronize all stream access */
+	Object getSynch()
+	{
+		return synch;
+	}
+
+	/**
+	 * Records time the parse thread spent waiting for data. Must be called
+	 * while synchronized.
+	 * @param time Time in milliseconds
+	 */
+	void addBlockTime(long time)
+	{
+		blockTime += time;
+	}
+
+	/**
+	 * Obtains the next input stream, waiting for the read thread to open it
+	 * if necessary.
+	 * @return Next stream or null if there are no more
+	 * @throws IOException If interrupted
+	 */
+	ThreadedInputStream next() throws IOException
+	{
+		synchronized(synch)
+		{
+			while(ready.isEmpty() && !finished)
+			{
+				try
+				{
+					long before = System.currentTimeMillis();
+					synch.wait();
+					blockTime += System.currentTimeMillis() - before;
+				}
+				catch(InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			if(ready.isEmpty())
+			{
+				return null;
+			}
+			return ready.removeFirst();
+		}
+	}
+
+	/**
+	 * Stops the read thread and waits for it to exit. When reading stdin, does
+	 * not wait, as the thread may be blocked reading; it is a daemon thread,
+	 * so it will not prevent the process from exiting.
+	 */
+	void close()
+	{
+		synchronized(synch)
+		{
+			close = true;
+			synch.notifyAll();
+			while(!closed && files != null)
+			{
+				try
+				{
+					synch.wait();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Total time (ms) where I/O thread idled waiting for existing buffers
+	 *   to be used
+	 */
+	public long getIdleTime()
+	{
+		synchronized(synch)
+		{
+			return idleTime;
+		}
+	}
+
+	/** @return Descriptions of each change made by tuning the buffers */
+	public List<String> getTuningLog()
+	{
+		synchronized(synch)
+		{
+			return new LinkedList<String>(tuningLog);
+		}
+	}
+
+	/** @return Total time (ms) spent waiting for I/O */
+	public long getBlockTime()
+	{
+		synchronized(synch)
+		{
+			return blockTime;
+		}
+	}
+}
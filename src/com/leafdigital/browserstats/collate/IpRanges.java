@@ -0,0 +1,521 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Set of IPv4 and IPv6 address ranges in CIDR notation (e.g. 10.0.0.0/8,
+ * 2001:db8::/32). Ranges are stored in binary prefix tries, so looking up
+ * an address takes at most one step per bit of the address however many
+ * ranges there are.
+ */
+class IpRanges
+{
+	/** Addresses that may be passed to InetAddress without a DNS lookup */
+	private final static Pattern REGEX_LITERAL = Pattern.compile(
+		"[0-9]{1,3}(\\.[0-9]{1,3}){3}|\\[?[0-9a-fA-F:.]*:[0-9a-fA-F:.]*\\]?");
+
+	private Trie v4 = new Trie(), v6 = new Trie();
+	private TreeSet<String> descriptions = new TreeSet<String>();
+
+	/** Ranges as address bytes and prefix length, for the reference check */
+	private LinkedList<byte[]> referenceAddresses = new LinkedList<byte[]>();
+	private LinkedList<Integer> referencePrefixes = new LinkedList<Integer>();
+
+	/**
+	 * Binary trie of address prefixes. Addresses are held left-aligned in two
+	 * longs (an IPv4 address uses the top 32 bits of the first). Each node
+	 * has two child pointers in the nodes array: 0 means no child and FULL
+	 * means every address below that point is in the set.
+	 */
+	private static class Trie
+	{
+		private final static int FULL = -1;
+
+		private int[] nodes = new int[64];
+		private int nodeCount = 1;
+		private boolean all;
+
+		private static int bit(long high, long low, int index)
+		{
+			return (int)(index < 64 ? high >>> (63 - index)
+				: low >>> (127 - index)) & 1;
+		}
+
+		void add(long high, long low, int prefix)
+		{
+			if(prefix == 0)
+			{
+				all = true;
+				return;
+			}
+			int node = 0;
+			for(int i=0; i<prefix; i++)
+			{
+				int index = node * 2 + bit(high, low, i);
+				int child = nodes[index];
+				if(child == FULL)
+				{
+					// Already covered by a larger range
+					return;
+				}
+				if(i == prefix - 1)
+				{
+					nodes[index] = FULL;
+					return;
+				}
+				if(child == 0)
+				{
+					if(nodeCount * 2 == nodes.length)
+					{
+						nodes = Arrays.copyOf(nodes, nodes.length * 2);
+					}
+					child = nodeCount++;
+					nodes[index] = child;
+				}
+				node = child;
+			}
+		}
+
+		boolean contains(long high, long low, int bits)
+		{
+			if(all)
+			{
+				return true;
+			}
+			int node = 0;
+			for(int i=0; i<bits; i++)
+			{
+				int child = nodes[node * 2 + bit(high, low, i)];
+				if(child == FULL)
+				{
+					return true;
+				}
+				if(child == 0)
+				{
+					return false;
+				}
+				node = child;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Adds a range.
+	 * @param cidr Range in CIDR notation; a single address (without /) is
+	 *   also allowed
+	 * @throws IllegalArgumentException If the range is not valid
+	 */
+	void add(String cidr) throws IllegalArgumentException
+	{
+		String address = cidr;
+		int prefix = -1;
+		int slash = cidr.indexOf('/');
+		if(slash != -1)
+		{
+			address = cidr.substring(0, slash);
+			try
+			{
+				prefix = Integer.parseInt(cidr.substring(slash + 1));
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid IP range: " + cidr);
+			}
+			// Checked here because -1 means no prefix below
+			if(prefix < 0)
+			{
+				throw new IllegalArgumentException("Invalid IP range: " + cidr);
+			}
+		}
+
+		int referencePrefix = -1;
+		long v4Address = parseIpv4(address, 0, address.length());
+		if(v4Address != -1)
+		{
+			if(prefix == -1)
+			{
+				prefix = 32;
+			}
+			if(prefix < 0 || prefix > 32)
+			{
+				throw new IllegalArgumentException("Invalid IP range: " + cidr);
+			}
+			v4.add(v4Address << 32, 0, prefix);
+		}
+		else
+		{
+			long[] v6Address = parseIpv6(address);
+			if(v6Address == null)
+			{
+				throw new IllegalArgumentException("Invalid IP range: " + cidr);
+			}
+			if(prefix == -1)
+			{
+				prefix = 128;
+			}
+			if(prefix < 0 || prefix > 128)
+			{
+				throw new IllegalArgumentException("Invalid IP range: " + cidr);
+			}
+			if(v6Address[0] == 0 && (v6Address[1] >>> 32) == 0xffff && prefix >= 96)
+			{
+				// IPv4-mapped range (::ffff:10.0.0.0/104) is the same as an IPv4 range
+				v4.add(v6Address[1] << 32, 0, prefix - 96);
+				referencePrefix = prefix - 96;
+			}
+			else
+			{
+				v6.add(v6Address[0], v6Address[1], prefix);
+			}
+		}
+		descriptions.add(address + "/" + prefix);
+		try
+		{
+			byte[] bytes = InetAddress.getByName(address).getAddress();
+			if(v4Address == -1 && referencePrefix == -1 && bytes.length == 4)
+			{
+				// Java turns IPv4-mapped addresses into 4 bytes; put a short
+				// IPv6 prefix back as IPv6
+				bytes = toMapped(bytes);
+			}
+			referenceAddresses.add(bytes);
+			referencePrefixes.add(referencePrefix == -1 ? prefix : referencePrefix);
+		}
+		catch(UnknownHostException e)
+		{
+			throw new IllegalArgumentException("Invalid IP range: " + cidr);
+		}
+	}
+
+	/**
+	 * Adds all ranges from a file, one per line. Blank lines and lines
+	 * beginning # are ignored.
+	 * @param f File
+	 * @throws IOException Any error reading the file
+	 * @throws IllegalArgumentException If any range is not valid
+	 */
+	void addFile(File f) throws IOException, IllegalArgumentException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(f), "UTF-8"));
+		try
+		{
+			while(true)
+			{
+				String line = reader.readLine();
+				if(line == null)
+				{
+					break;
+				}
+				line = line.trim();
+				if(line.equals("") || line.startsWith("#"))
+				{
+					continue;
+				}
+				add(line);
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	/**
+	 * @param ip IP address text
+	 * @return True if the address is within one of the ranges (false if it
+	 *   is not a valid address)
+	 */
+	boolean contains(String ip)
+	{
+		long v4Address = parseIpv4(ip, 0, ip.length());
+		if(v4Address != -1)
+		{
+			return v4.contains(v4Address << 32, 0, 32);
+		}
+		long[] v6Address = parseIpv6(ip);
+		if(v6Address == null)
+		{
+			return false;
+		}
+		// IPv4-mapped addresses (::ffff:1.2.3.4) also match IPv4 ranges
+		if(v6Address[0] == 0 && (v6Address[1] >>> 32) == 0xffff
+			&& v4.contains(v6Address[1] << 32, 0, 32))
+		{
+			return true;
+		}
+		return v6.contains(v6Address[0], v6Address[1], 128);
+	}
+
+	/**
+	 * As {@link #contains(String)}, but uses the standard Java address parser
+	 * and compares against each range in turn. Used to check the trie.
+	 * @param ip IP address text
+	 * @return True if the address is within one of the ranges
+	 */
+	boolean containsReference(String ip)
+	{
+		if(!REGEX_LITERAL.matcher(ip).matches())
+		{
+			return false;
+		}
+		byte[] address;
+		try
+		{
+			address = InetAddress.getByName(ip).getAddress();
+		}
+		catch(UnknownHostException e)
+		{
+			return false;
+		}
+		if(containsReference(address))
+		{
+			return true;
+		}
+		// Java turns IPv4-mapped addresses into 4 bytes, but as in contains,
+		// they also match IPv6 ranges
+		if(address.length == 4 && ip.indexOf(':') != -1)
+		{
+			return containsReference(toMapped(address));
+		}
+		return false;
+	}
+
+	/**
+	 * @param address IPv4 address bytes
+	 * @return Equivalent IPv4-mapped IPv6 address bytes (::ffff:a.b.c.d)
+	 */
+	private static byte[] toMapped(byte[] address)
+	{
+		byte[] mapped = new byte[16];
+		mapped[10] = (byte)0xff;
+		mapped[11] = (byte)0xff;
+		System.arraycopy(address, 0, mapped, 12, 4);
+		return mapped;
+	}
+
+	/**
+	 * Compares an address against each range in turn.
+	 * @param address Address bytes (4 or 16)
+	 * @return True if the address is within one of the ranges of that length
+	 */
+	private boolean containsReference(byte[] address)
+	{
+		Iterator<Integer> prefixes = referencePrefixes.iterator();
+		for(byte[] range : referenceAddresses)
+		{
+			int prefix = prefixes.next();
+			if(range.length != address.length || prefix > address.length * 8)
+			{
+				continue;
+			}
+			int bit = 0;
+			while(bit < prefix)
+			{
+				int mask = 0x80 >> (bit & 7);
+				if((range[bit >> 3] & mask) != (address[bit >> 3] & mask))
+				{
+					break;
+				}
+				bit++;
+			}
+			if(bit == prefix)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** @return Number of ranges */
+	int size()
+	{
+		return descriptions.size();
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder result = new StringBuilder();
+		for(String description : descriptions)
+		{
+			if(result.length() > 0)
+			{
+				result.append(',');
+			}
+			result.append(description);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Parses an IPv4 address in dotted decimal.
+	 * @param ip Text
+	 * @param start Start position of address
+	 * @param end End position of address
+	 * @return Address, or -1 if not a valid address
+	 */
+	private static long parseIpv4(String ip, int start, int end)
+	{
+		long value = 0;
+		int part = 0, parts = 0, digits = 0;
+		for(int i=start; i<=end; i++)
+		{
+			char c = i < end ? ip.charAt(i) : '.';
+			if(c >= '0' && c <= '9' && digits < 3)
+			{
+				part = part * 10 + (c - '0');
+				digits++;
+			}
+			else if(c == '.' && digits > 0 && part < 256 && parts < 4)
+			{
+				value = (value << 8) | part;
+				parts++;
+				part = 0;
+				digits = 0;
+			}
+			else
+			{
+				return -1;
+			}
+		}
+		return parts == 4 ? value : -1;
+	}
+
+	/**
+	 * Parses an IPv6 address, including the :: abbreviation, a trailing
+	 * dotted IPv4 part, and optional square brackets or zone (%eth0).
+	 * @param ip Text
+	 * @return Address as two longs (high bits first), or null if not valid
+	 */
+	private static long[] parseIpv6(String ip)
+	{
+		int start = 0, end = ip.length();
+		if(end > 1 && ip.charAt(0) == '[' && ip.charAt(end - 1) == ']')
+		{
+			start++;
+			end--;
+		}
+		int zone = ip.indexOf('%', start);
+		if(zone != -1 && zone < end)
+		{
+			end = zone;
+		}
+
+		// Read up to 8 groups, noting where :: appears
+		int[] groups = new int[8];
+		int count = 0, gap = -1;
+		int pos = start;
+		if(ip.startsWith("::", pos))
+		{
+			gap = 0;
+			pos += 2;
+		}
+		while(pos < end)
+		{
+			// Find end of this group
+			int groupEnd = pos;
+			while(groupEnd < end && ip.charAt(groupEnd) != ':')
+			{
+				groupEnd++;
+			}
+			if(groupEnd == end && ip.lastIndexOf('.', end - 1) >= pos)
+			{
+				// Trailing IPv4 part
+				long v4Address = parseIpv4(ip, pos, end);
+				if(v4Address == -1 || count > 6)
+				{
+					return null;
+				}
+				groups[count++] = (int)(v4Address >>> 16);
+				groups[count++] = (int)(v4Address & 0xffff);
+				pos = end;
+				break;
+			}
+			if(groupEnd == pos || groupEnd - pos > 4 || count == 8)
+			{
+				return null;
+			}
+			int value = 0;
+			for(int i=pos; i<groupEnd; i++)
+			{
+				int digit = Character.digit(ip.charAt(i), 16);
+				if(digit == -1)
+				{
+					return null;
+				}
+				value = (value << 4) | digit;
+			}
+			groups[count++] = value;
+			pos = groupEnd;
+			if(pos < end)
+			{
+				// Skip : or ::
+				pos++;
+				if(pos < end && ip.charAt(pos) == ':')
+				{
+					if(gap != -1)
+					{
+						return null;
+					}
+					gap = count;
+					pos++;
+				}
+				else if(pos == end)
+				{
+					// Trailing single :
+					return null;
+				}
+			}
+		}
+
+		// Expand :: to fill 8 groups
+		if(gap == -1)
+		{
+			if(count != 8)
+			{
+				return null;
+			}
+		}
+		else
+		{
+			if(count == 8)
+			{
+				return null;
+			}
+			int missing = 8 - count;
+			System.arraycopy(groups, gap, groups, gap + missing, count - gap);
+			Arrays.fill(groups, gap, gap + missing, 0);
+		}
+
+		long high = 0, low = 0;
+		for(int i=0; i<4; i++)
+		{
+			high = (high << 16) | groups[i];
+			low = (low << 16) | groups[i + 4];
+		}
+		return new long[] { high, low };
+	}
+}
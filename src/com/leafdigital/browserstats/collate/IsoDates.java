@@ -0,0 +1,94 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+/**
+ * Fast conversion between ISO date/time strings and numbers of days or
+ * seconds since 1970. Time zones are ignored throughout.
+ */
+class IsoDates
+{
+	/** Number of seconds in a day */
+	final static long SECONDS_PER_DAY = 24 * 60 * 60;
+
+	/**
+	 * @param isoDate Date in ISO YYYY-MM-DD format
+	 * @param isoTime Time in ISO HH:mm:ss format
+	 * @return Time in seconds since 1970
+	 */
+	static long getSeconds(String isoDate, String isoTime)
+	{
+		long days = getDays(Integer.parseInt(isoDate.substring(0, 4)),
+			Integer.parseInt(isoDate.substring(5, 7)),
+			Integer.parseInt(isoDate.substring(8, 10)));
+		return days * SECONDS_PER_DAY
+			+ Integer.parseInt(isoTime.substring(0, 2)) * 3600
+			+ Integer.parseInt(isoTime.substring(3, 5)) * 60
+			+ Integer.parseInt(isoTime.substring(6, 8));
+	}
+
+	/**
+	 * @param year Year
+	 * @param month Month (1-12)
+	 * @param day Day of month
+	 * @return Number of days since 1970-01-01
+	 */
+	static long getDays(int year, int month, int day)
+	{
+		// Count from March so that the leap day is at the end of the year
+		if(month <= 2)
+		{
+			year--;
+		}
+		long era = (year >= 0 ? year : year - 399) / 400;
+		long yearOfEra = year - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * @param days Number of days since 1970-01-01
+	 * @return Date in ISO format
+	 */
+	static String getIsoDate(long days)
+	{
+		days += 719468;
+		long era = (days >= 0 ? days : days - 146096) / 146097;
+		long dayOfEra = days - era * 146097;
+		long yearOfEra =
+			(dayOfEra - dayOfEra/1460 + dayOfEra/36524 - dayOfEra/146096) / 365;
+		long dayOfYear = dayOfEra - (365*yearOfEra + yearOfEra/4 - yearOfEra/100);
+		long monthIndex = (5*dayOfYear + 2) / 153;
+		long day = dayOfYear - (153*monthIndex + 2)/5 + 1;
+		long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return String.format("%04d-%02d-%02d", year, month, day);
+	}
+
+	/**
+	 * @param seconds Number of seconds since midnight
+	 * @return Time in ISO HH:mm:ss format
+	 */
+	static String getIsoTime(long seconds)
+	{
+		return String.format("%02d:%02d:%02d",
+			seconds / 3600, (seconds / 60) % 60, seconds % 60);
+	}
+}
@@ -0,0 +1,468 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.text.*;
+import java.util.Arrays;
+
+/**
+ * Format for logs with one JSON object per line. Rather than building a tree
+ * for each line, the line is scanned once; values for keys that aren't
+ * required are skipped, and escapes are only decoded in required values.
+ */
+public class JsonLogFormat extends LogFormat
+{
+	/** Timestamp format for ISO 8601 values, e.g. 2009-07-16T20:17:46+01:00 */
+	final static String TIME_ISO = "iso";
+	/** Timestamp format for seconds since 1970 (UTC), e.g. 1247775466.123 */
+	final static String TIME_EPOCH = "epoch";
+
+	private final static int IP = 0, TIME = 1, AGENT = 2, PATH = 3, STATUS = 4,
+		HOST = 5;
+
+	private String[] keys;
+	private String timeFormatPattern;
+	private SimpleDateFormat timeFormat, isoDateFormat, isoTimeFormat;
+
+	/**
+	 * @param ipKey Key of value that contains IP address or other unique
+	 *   identifier
+	 * @param timeKey Key of value that contains date and time
+	 * @param agentKey Key of value that contains user agent
+	 * @param pathKey Key of value that contains path
+	 * @param statusKey Key of value that contains HTTP status code
+	 * @param timeFormat 'iso', 'epoch', or a SimpleDateFormat pattern
+	 * @throws IllegalArgumentException If any of the arguments are invalid
+	 */
+	JsonLogFormat(String ipKey, String timeKey, String agentKey,
+		String pathKey, String statusKey, String timeFormat)
+		throws IllegalArgumentException
+	{
+		keys = new String[] { ipKey, timeKey, agentKey, pathKey, statusKey };
+		timeFormatPattern = timeFormat;
+		if(!timeFormat.equals(TIME_ISO) && !timeFormat.equals(TIME_EPOCH))
+		{
+			try
+			{
+				this.timeFormat = new SimpleDateFormat(timeFormat);
+			}
+			catch(IllegalArgumentException e)
+			{
+				throw new IllegalArgumentException("Invalid time format: " + timeFormat);
+			}
+			isoDateFormat = new SimpleDateFormat("yyyy-MM-dd");
+			isoTimeFormat = new SimpleDateFormat("HH:mm:ss");
+		}
+	}
+
+	/**
+	 * Sets the key containing the host name, for logs that include it.
+	 * @param hostKey Key
+	 */
+	@Override
+	void setHostField(String hostKey)
+	{
+		keys = Arrays.copyOf(keys, HOST + 1);
+		keys[HOST] = hostKey;
+	}
+
+	@Override
+	boolean hasHost()
+	{
+		return keys.length > HOST;
+	}
+
+	@Override
+	void setSkip(String skip) throws IllegalArgumentException
+	{
+		throw new IllegalArgumentException("JSON formats do not support <skip>");
+	}
+
+	@Override
+	LogFormat copy()
+	{
+		JsonLogFormat copy = (JsonLogFormat)super.copy();
+		if(timeFormat != null)
+		{
+			copy.timeFormat = (SimpleDateFormat)timeFormat.clone();
+			copy.isoDateFormat = (SimpleDateFormat)isoDateFormat.clone();
+			copy.isoTimeFormat = (SimpleDateFormat)isoTimeFormat.clone();
+		}
+		return copy;
+	}
+
+	@Override
+	String getDescription()
+	{
+		return "json " + Arrays.toString(keys) + " " + timeFormatPattern;
+	}
+
+	@Override
+	boolean matches(String line)
+	{
+		try
+		{
+			return parse(line, new Categoriser()) != null;
+		}
+		catch(IllegalArgumentException e)
+		{
+			return false;
+		}
+	}
+
+	@Override
+	Object match(String line) throws IllegalArgumentException
+	{
+		String[] values = new String[keys.length];
+		int remaining = keys.length;
+
+		int pos = skipSpace(line, 0);
+		if(pos == line.length() || line.charAt(pos) != '{')
+		{
+			throw new IllegalArgumentException("Not a JSON object");
+		}
+		pos = skipSpace(line, pos + 1);
+		if(pos < line.length() && line.charAt(pos) == '}')
+		{
+			pos = line.length();
+		}
+		while(remaining > 0 && pos < line.length())
+		{
+			// Read key
+			if(line.charAt(pos) != '"')
+			{
+				throw new IllegalArgumentException("Expected JSON key at " + pos);
+			}
+			int keyStart = pos + 1;
+			int keyEnd = skipString(line, pos);
+			int index = findKey(line, keyStart, keyEnd - 1);
+			pos = skipSpace(line, keyEnd);
+			if(pos == line.length() || line.charAt(pos) != ':')
+			{
+				throw new IllegalArgumentException("Expected : at " + pos);
+			}
+			pos = skipSpace(line, pos + 1);
+			if(pos == line.length())
+			{
+				throw new IllegalArgumentException("Missing JSON value");
+			}
+
+			// Read or skip value
+			int valueEnd = skipValue(line, pos);
+			if(index != -1 && values[index] == null)
+			{
+				values[index] = getValue(line, pos, valueEnd);
+				remaining--;
+			}
+			pos = skipSpace(line, valueEnd);
+			if(pos == line.length())
+			{
+				throw new IllegalArgumentException("Unterminated JSON object");
+			}
+			char separator = line.charAt(pos);
+			if(separator == '}')
+			{
+				break;
+			}
+			if(separator != ',')
+			{
+				throw new IllegalArgumentException("Expected , or } at " + pos);
+			}
+			pos = skipSpace(line, pos + 1);
+		}
+		return values;
+	}
+
+	@Override
+	LogLine convert(String line, Object match) throws IllegalArgumentException
+	{
+		String[] values = (String[])match;
+		if(values[TIME] == null)
+		{
+			throw new IllegalArgumentException("Missing time value: " + keys[TIME]);
+		}
+		String isoDate, isoTime;
+		if(timeFormat == null && timeFormatPattern.equals(TIME_ISO))
+		{
+			String time = values[TIME];
+			if(time.length() < 19 || time.charAt(4) != '-' || time.charAt(7) != '-'
+				|| time.charAt(13) != ':' || time.charAt(16) != ':')
+			{
+				throw new IllegalArgumentException("Invalid time format: " + time);
+			}
+			isoDate = time.substring(0, 10);
+			isoTime = time.substring(11, 19);
+		}
+		else if(timeFormat == null)
+		{
+			long seconds;
+			try
+			{
+				seconds = (long)Math.floor(Double.parseDouble(values[TIME]));
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IllegalArgumentException("Invalid time format: "
+					+ values[TIME]);
+			}
+			long days = seconds / IsoDates.SECONDS_PER_DAY;
+			if(seconds % IsoDates.SECONDS_PER_DAY < 0)
+			{
+				days--;
+			}
+			isoDate = IsoDates.getIsoDate(days);
+			isoTime = IsoDates.getIsoTime(seconds - days * IsoDates.SECONDS_PER_DAY);
+		}
+		else
+		{
+			try
+			{
+				java.util.Date date = timeFormat.parse(values[TIME]);
+				isoDate = isoDateFormat.format(date);
+				isoTime = isoTimeFormat.format(date);
+			}
+			catch(ParseException e)
+			{
+				throw new IllegalArgumentException("Invalid time format: "
+					+ values[TIME]);
+			}
+		}
+
+		for(int i=0; i<values.length; i++)
+		{
+			if(values[i] == null)
+			{
+				values[i] = "";
+			}
+		}
+		return new LogLine(line, normaliseAgent(values[AGENT]),
+			isoDate, isoTime, values[IP], values[PATH], values[STATUS],
+			keys.length > HOST ? values[HOST] : "");
+	}
+
+	/**
+	 * @param line Line
+	 * @param start Start of key (after quote)
+	 * @param end End of key (position of closing quote)
+	 * @return Index of key in required keys, or -1 if not required
+	 */
+	private int findKey(String line, int start, int end)
+	{
+		int length = end - start;
+		for(int i=0; i<keys.length; i++)
+		{
+			if(keys[i].length() == length
+				&& line.regionMatches(start, keys[i], 0, length))
+			{
+				return i;
+			}
+		}
+		int backslash = line.indexOf('\\', start);
+		if(backslash != -1 && backslash < end)
+		{
+			// Rare case: key includes escapes
+			String key = unescape(line, start, end);
+			for(int i=0; i<keys.length; i++)
+			{
+				if(keys[i].equals(key))
+				{
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	private static int skipSpace(String line, int pos)
+	{
+		while(pos < line.length())
+		{
+			char c = line.charAt(pos);
+			if(c != ' ' && c != '\t' && c != '\r' && c != '\n')
+			{
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param line Line
+	 * @param pos Position of opening quote
+	 * @return Position after closing quote
+	 * @throws IllegalArgumentException If string is not terminated
+	 */
+	private static int skipString(String line, int pos)
+		throws IllegalArgumentException
+	{
+		for(pos++; pos < line.length(); pos++)
+		{
+			char c = line.charAt(pos);
+			if(c == '"')
+			{
+				return pos + 1;
+			}
+			if(c == '\\')
+			{
+				pos++;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated JSON string");
+	}
+
+	/**
+	 * @param line Line
+	 * @param pos Start of value
+	 * @return Position after end of value
+	 * @throws IllegalArgumentException If value is not terminated
+	 */
+	private static int skipValue(String line, int pos)
+		throws IllegalArgumentException
+	{
+		char c = line.charAt(pos);
+		if(c == '"')
+		{
+			return skipString(line, pos);
+		}
+		if(c == '{' || c == '[')
+		{
+			int depth = 0;
+			while(pos < line.length())
+			{
+				c = line.charAt(pos);
+				if(c == '"')
+				{
+					pos = skipString(line, pos);
+					continue;
+				}
+				if(c == '{' || c == '[')
+				{
+					depth++;
+				}
+				else if(c == '}' || c == ']')
+				{
+					depth--;
+					if(depth == 0)
+					{
+						return pos + 1;
+					}
+				}
+				pos++;
+			}
+			throw new IllegalArgumentException("Unterminated JSON value");
+		}
+		// Number, true, false, null
+		while(pos < line.length())
+		{
+			c = line.charAt(pos);
+			if(c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t')
+			{
+				break;
+			}
+			pos++;
+		}
+		return pos;
+	}
+
+	/**
+	 * @param line Line
+	 * @param start Start of value
+	 * @param end Position after end of value
+	 * @return Value as string (with escapes decoded and quotes removed)
+	 */
+	private static String getValue(String line, int start, int end)
+	{
+		if(line.charAt(start) == '"')
+		{
+			int close = end - 1;
+			int backslash = line.indexOf('\\', start);
+			if(backslash == -1 || backslash > close)
+			{
+				return line.substring(start + 1, close);
+			}
+			return unescape(line, start + 1, close);
+		}
+		String value = line.substring(start, end);
+		return value.equals("null") ? "" : value;
+	}
+
+	/**
+	 * Decodes escapes within a string. As well as standard JSON escapes, this
+	 * handles the \xNN escapes written by nginx without escape=json.
+	 * @param line Line
+	 * @param start Start of string (after quote)
+	 * @param end End of string (position of closing quote)
+	 * @return Decoded string
+	 * @throws IllegalArgumentException If an escape is invalid
+	 */
+	private static String unescape(String line, int start, int end)
+		throws IllegalArgumentException
+	{
+		StringBuilder result = new StringBuilder(end - start);
+		for(int pos = start; pos < end; pos++)
+		{
+			char c = line.charAt(pos);
+			if(c != '\\')
+			{
+				result.append(c);
+				continue;
+			}
+			pos++;
+			c = line.charAt(pos);
+			switch(c)
+			{
+			case 'b' : result.append('\b'); break;
+			case 'f' : result.append('\f'); break;
+			case 'n' : result.append('\n'); break;
+			case 'r' : result.append('\r'); break;
+			case 't' : result.append('\t'); break;
+			case 'u' :
+				result.append((char)parseHex(line, pos + 1, 4));
+				pos += 4;
+				break;
+			case 'x' :
+				result.append((char)parseHex(line, pos + 1, 2));
+				pos += 2;
+				break;
+			default:
+				result.append(c);
+				break;
+			}
+		}
+		return result.toString();
+	}
+
+	private static int parseHex(String line, int pos, int digits)
+		throws IllegalArgumentException
+	{
+		if(pos + digits > line.length())
+		{
+			throw new IllegalArgumentException("Invalid JSON escape");
+		}
+		try
+		{
+			return Integer.parseInt(line.substring(pos, pos + digits), 16);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid JSON escape");
+		}
+	}
+}
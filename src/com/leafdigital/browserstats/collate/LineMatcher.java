@@ -0,0 +1,608 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.*;
+import java.util.regex.*;
+
+import com.leafdigital.browserstats.collate.LogLine.Field;
+import com.leafdigital.browserstats.shared.*;
+
+/**
+ * Test against one field of a log line, used for -include and -exclude.
+ * Expressions are normally regular expressions, but some common tests have
+ * a typed form that is compiled to a much faster check:
+ * <ul>
+ * <li>range:200-299,304 - numeric ranges or values</li>
+ * <li>prefix:/images/,/static/ - starts with any of the values</li>
+ * <li>suffix:.js,.css - ends with any of the values (for path, ignoring any
+ *   query string)</li>
+ * <li>cidr:10.0.0.0/8,2001:db8::/32 - IP address ranges</li>
+ * <li>empty: - empty, "-" or "null"</li>
+ * <li>regex:... - regular expression (only needed if the expression would
+ *   otherwise start with one of the above)</li>
+ * </ul>
+ */
+abstract class LineMatcher
+{
+	private Field field;
+	private String expression;
+	private MatchCache.Slot slot;
+
+	/**
+	 * @param field Field to test
+	 * @param expression Expression (for display)
+	 */
+	private LineMatcher(Field field, String expression)
+	{
+		this.field = field;
+		this.expression = expression;
+	}
+
+	/**
+	 * Compiles an expression.
+	 * @param field Field to test
+	 * @param expression Expression
+	 * @return Matcher
+	 * @throws IllegalArgumentException If the expression is invalid
+	 */
+	static LineMatcher create(Field field, String expression)
+		throws IllegalArgumentException
+	{
+		if(expression.startsWith("range:"))
+		{
+			return new RangeMatcher(field, expression);
+		}
+		if(expression.startsWith("prefix:") || expression.startsWith("suffix:"))
+		{
+			return new AffixMatcher(field, expression);
+		}
+		if(expression.startsWith("cidr:"))
+		{
+			return new CidrMatcher(field, expression);
+		}
+		if(expression.startsWith("empty:"))
+		{
+			return new EmptyMatcher(field, expression);
+		}
+		return new RegexMatcher(field, expression);
+	}
+
+	/**
+	 * @return Default exclude for resource paths, matching exactly the same
+	 *   values as the regular expression it replaces
+	 */
+	static LineMatcher createDefaultPathExclude()
+	{
+		return new DefaultPathMatcher();
+	}
+
+	/**
+	 * @return Default exclude for missing agents, matching exactly the same
+	 *   values as the regular expression it replaces
+	 */
+	static LineMatcher createDefaultAgentExclude()
+	{
+		return new DefaultAgentMatcher();
+	}
+
+	/**
+	 * @return Default include for status 200, matching exactly the same
+	 *   values as the regular expression it replaces
+	 */
+	static LineMatcher createDefaultStatusInclude()
+	{
+		return new DefaultStatusMatcher();
+	}
+
+	/**
+	 * @param line Log line
+	 * @param limit Time limit for regular expressions
+	 * @return True if the line matches
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	boolean match(LogLine line, RegexLimit limit) throws RegexTimeoutException
+	{
+		String value = line.get(field);
+		if(slot == null)
+		{
+			return match(value, limit);
+		}
+		int known = slot.lookup(value);
+		if(known != -1)
+		{
+			return known == 1;
+		}
+		boolean result = match(value, limit);
+		slot.store(value, result);
+		return result;
+	}
+
+	/**
+	 * Tests a line without using the cache or any optimised form of the test,
+	 * for checking that the optimised version gives the same result.
+	 * @param line Log line
+	 * @param limit Time limit for regular expressions
+	 * @return True if the line matches
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	boolean matchReference(LogLine line, RegexLimit limit)
+		throws RegexTimeoutException
+	{
+		return matchReference(line.get(field), limit);
+	}
+
+	/**
+	 * @param value Value of field
+	 * @param limit Time limit for regular expressions
+	 * @return True if the value matches, using the simplest possible test
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	boolean matchReference(String value, RegexLimit limit)
+		throws RegexTimeoutException
+	{
+		return match(value, limit);
+	}
+
+	/**
+	 * Uses a cache to remember results, if this type of test is slow enough
+	 * to benefit.
+	 * @param cache Cache
+	 */
+	void setCache(MatchCache cache)
+	{
+		if(isSlow())
+		{
+			slot = cache.register(field);
+		}
+	}
+
+	/**
+	 * @return True if the test is slow enough that results should be cached
+	 */
+	boolean isSlow()
+	{
+		return false;
+	}
+
+	/**
+	 * @param value Value of field
+	 * @param limit Time limit for regular expressions
+	 * @return True if the value matches
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	abstract boolean match(String value, RegexLimit limit)
+		throws RegexTimeoutException;
+
+	@Override
+	public String toString()
+	{
+		return field + " " + expression;
+	}
+
+	/**
+	 * Splits the comma-separated values of a typed expression.
+	 * @param expression Expression
+	 * @return Values after the type prefix
+	 * @throws IllegalArgumentException If there are no values, or an empty one
+	 */
+	private static String[] getValues(String expression)
+		throws IllegalArgumentException
+	{
+		String[] values =
+			expression.substring(expression.indexOf(':') + 1).split(",", -1);
+		for(String value : values)
+		{
+			if(value.length() == 0)
+			{
+				throw new IllegalArgumentException("Missing value: " + expression);
+			}
+		}
+		return values;
+	}
+
+	/** Regular expression (found anywhere in the value). */
+	private static class RegexMatcher extends LineMatcher
+	{
+		private Pattern regex;
+
+		private RegexMatcher(Field field, String expression)
+			throws IllegalArgumentException
+		{
+			super(field, expression);
+			if(expression.startsWith("regex:"))
+			{
+				expression = expression.substring(6);
+			}
+			try
+			{
+				regex = Pattern.compile(expression);
+			}
+			catch(PatternSyntaxException e)
+			{
+				throw new IllegalArgumentException("Invalid regex: " + expression);
+			}
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit) throws RegexTimeoutException
+		{
+			return limit.find(regex, value);
+		}
+
+		@Override
+		boolean isSlow()
+		{
+			return true;
+		}
+	}
+
+	/** Numeric ranges. */
+	private static class RangeMatcher extends LineMatcher
+	{
+		private final static Pattern REGEX_NUMBER = Pattern.compile("[0-9]{1,9}");
+
+		private int[] lows, highs;
+
+		private RangeMatcher(Field field, String expression)
+			throws IllegalArgumentException
+		{
+			super(field, expression);
+			String[] values = getValues(expression);
+			lows = new int[values.length];
+			highs = new int[values.length];
+			for(int i=0; i<values.length; i++)
+			{
+				int dash = values[i].indexOf('-');
+				lows[i] = parse(dash == -1 ? values[i] : values[i].substring(0, dash));
+				highs[i] = dash == -1 ? lows[i] : parse(values[i].substring(dash + 1));
+				if(lows[i] == -1 || highs[i] == -1 || highs[i] < lows[i])
+				{
+					throw new IllegalArgumentException("Invalid range: " + values[i]);
+				}
+			}
+		}
+
+		/**
+		 * Parses a non-negative number without creating an exception if it
+		 * isn't one.
+		 * @param value Text
+		 * @return Number, or -1 if not a number
+		 */
+		private static int parse(String value)
+		{
+			if(value.length() == 0 || value.length() > 9)
+			{
+				return -1;
+			}
+			int result = 0;
+			for(int i=0; i<value.length(); i++)
+			{
+				char c = value.charAt(i);
+				if(c < '0' || c > '9')
+				{
+					return -1;
+				}
+				result = result * 10 + (c - '0');
+			}
+			return result;
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit)
+		{
+			int number = parse(value);
+			if(number == -1)
+			{
+				return false;
+			}
+			for(int i=0; i<lows.length; i++)
+			{
+				if(number >= lows[i] && number <= highs[i])
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		boolean matchReference(String value, RegexLimit limit)
+		{
+			if(!REGEX_NUMBER.matcher(value).matches())
+			{
+				return false;
+			}
+			int number = Integer.parseInt(value);
+			for(int i=0; i<lows.length; i++)
+			{
+				if(number >= lows[i] && number <= highs[i])
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** Set of prefixes or suffixes. */
+	private static class AffixMatcher extends LineMatcher
+	{
+		private boolean suffix, stripQuery;
+		private HashSet<String> values = new HashSet<String>();
+		private int[] lengths;
+		private String[] valueList;
+
+		private AffixMatcher(Field field, String expression)
+			throws IllegalArgumentException
+		{
+			super(field, expression);
+			suffix = expression.startsWith("suffix:");
+			stripQuery = suffix && field == Field.PATH;
+			TreeSet<Integer> distinctLengths = new TreeSet<Integer>();
+			valueList = getValues(expression);
+			for(String value : valueList)
+			{
+				values.add(value);
+				distinctLengths.add(value.length());
+			}
+			lengths = new int[distinctLengths.size()];
+			int i = 0;
+			for(int length : distinctLengths)
+			{
+				lengths[i++] = length;
+			}
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit)
+		{
+			int end = value.length();
+			if(stripQuery)
+			{
+				int question = value.indexOf('?');
+				if(question != -1)
+				{
+					end = question;
+				}
+			}
+			// One hash lookup for each different length of prefix/suffix
+			for(int length : lengths)
+			{
+				if(length > end)
+				{
+					break;
+				}
+				if(values.contains(suffix ? value.substring(end - length, end)
+					: value.substring(0, length)))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		boolean matchReference(String value, RegexLimit limit)
+		{
+			if(stripQuery && value.indexOf('?') != -1)
+			{
+				value = value.substring(0, value.indexOf('?'));
+			}
+			for(String test : valueList)
+			{
+				if(suffix ? value.endsWith(test) : value.startsWith(test))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** IP address ranges. */
+	private static class CidrMatcher extends LineMatcher
+	{
+		private IpRanges ranges = new IpRanges();
+
+		private CidrMatcher(Field field, String expression)
+			throws IllegalArgumentException
+		{
+			super(field, expression);
+			for(String value : getValues(expression))
+			{
+				ranges.add(value);
+			}
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit)
+		{
+			return ranges.contains(value);
+		}
+
+		@Override
+		boolean matchReference(String value, RegexLimit limit)
+		{
+			return ranges.containsReference(value);
+		}
+	}
+
+	/** Missing value: empty, "-" or "null". */
+	private static class EmptyMatcher extends LineMatcher
+	{
+		private EmptyMatcher(Field field, String expression)
+			throws IllegalArgumentException
+		{
+			super(field, expression);
+			if(!expression.equals("empty:"))
+			{
+				throw new IllegalArgumentException(
+					"Unexpected value after empty: " + expression);
+			}
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit)
+		{
+			return value.length() == 0 || value.equals("-") || value.equals("null");
+		}
+
+		@Override
+		boolean matchReference(String value, RegexLimit limit)
+		{
+			return value.matches("(-|null)?");
+		}
+	}
+
+	/**
+	 * Fast version of a built-in regular expression. The reference test is
+	 * the regular expression itself, so -verify checks the fast version
+	 * against the original behaviour.
+	 */
+	private static abstract class DefaultMatcher extends LineMatcher
+	{
+		private Pattern regex;
+
+		private DefaultMatcher(Field field, String regex)
+		{
+			super(field, regex);
+			this.regex = Pattern.compile(regex);
+		}
+
+		@Override
+		boolean matchReference(String value, RegexLimit limit)
+			throws RegexTimeoutException
+		{
+			return limit.find(regex, value);
+		}
+
+		/**
+		 * Checks whether a value ends with a line terminator, in which case $
+		 * can also match before it and the fast tests use the regular
+		 * expression instead.
+		 * @param value Value
+		 * @return True if the last character is a line terminator
+		 */
+		static boolean endsWithTerminator(String value)
+		{
+			if(value.length() == 0)
+			{
+				return false;
+			}
+			char c = value.charAt(value.length() - 1);
+			return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+				|| c == '\u2029';
+		}
+	}
+
+	/** Resource types, found before a ? or at the end of the path. */
+	private static class DefaultPathMatcher extends DefaultMatcher
+	{
+		private final static String[] TYPES =
+			{ "js", "jpg", "jpeg", "png", "gif", "css", "ico" };
+
+		private DefaultPathMatcher()
+		{
+			super(Field.PATH, "(?:j(?:s|pe?g)|png|gif|css|ico)(?:\\?|$)");
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit) throws RegexTimeoutException
+		{
+			if(endsWithTerminator(value))
+			{
+				return matchReference(value, limit);
+			}
+			if(endsWithType(value, value.length()))
+			{
+				return true;
+			}
+			for(int question = value.indexOf('?'); question != -1;
+				question = value.indexOf('?', question + 1))
+			{
+				if(endsWithType(value, question))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * @param value Value
+		 * @param end End position (exclusive)
+		 * @return True if the part of the value before end ends with a type
+		 */
+		private static boolean endsWithType(String value, int end)
+		{
+			for(String type : TYPES)
+			{
+				if(end >= type.length()
+					&& value.regionMatches(end - type.length(), type, 0, type.length()))
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/** Missing agent: empty, "-" or "null". */
+	private static class DefaultAgentMatcher extends DefaultMatcher
+	{
+		private DefaultAgentMatcher()
+		{
+			super(Field.AGENT, "^(?:null|-)?$");
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit) throws RegexTimeoutException
+		{
+			if(endsWithTerminator(value))
+			{
+				return matchReference(value, limit);
+			}
+			return value.length() == 0 || value.equals("-") || value.equals("null");
+		}
+	}
+
+	/** Status 200. */
+	private static class DefaultStatusMatcher extends DefaultMatcher
+	{
+		private DefaultStatusMatcher()
+		{
+			super(Field.STATUS, "^200$");
+		}
+
+		@Override
+		boolean match(String value, RegexLimit limit) throws RegexTimeoutException
+		{
+			if(!value.startsWith("200"))
+			{
+				return false;
+			}
+			if(value.length() == 3)
+			{
+				return true;
+			}
+			return endsWithTerminator(value) && matchReference(value, limit);
+		}
+	}
+}
@@ -0,0 +1,238 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits input into lines working directly on bytes, which is faster than
+ * decoding everything to characters and then looking for line breaks.
+ * Line breaks are found eight bytes at a time by treating the buffer as
+ * longs, and blank lines are skipped without being decoded. Only lines
+ * that are actually returned are converted to strings.
+ * <p>
+ * Lines end in the same way as for BufferedReader.readLine: LF, CR, or
+ * CR LF. This only works for character sets where these are always the
+ * single bytes 0x0a and 0x0d (e.g. UTF-8 and ISO-8859-1); see
+ * {@link #supports(Charset)}.
+ */
+class LineSplitter
+{
+	/** Initial buffer size; it grows if a line is longer than this */
+	private final static int BUFFERSIZE = 65536;
+
+	private final static long LINEFEEDS = 0x0a0a0a0a0a0a0a0aL,
+		RETURNS = 0x0d0d0d0d0d0d0d0dL,
+		LOWBITS = 0x0101010101010101L,
+		HIGHBITS = 0x8080808080808080L;
+
+	private InputStream in;
+	private Charset charset;
+
+	private byte[] buffer = new byte[BUFFERSIZE];
+	private ByteBuffer words;
+	private int pos, limit;
+	/** Position up to which the buffer is known to contain no line break */
+	private int scanned;
+	private boolean eof;
+
+	/**
+	 * @param charset Character set
+	 * @return True if the character set can be split by this class
+	 */
+	static boolean supports(Charset charset)
+	{
+		try
+		{
+			return Arrays.equals("\n".getBytes(charset.name()), new byte[] { '\n' })
+				&& Arrays.equals(" \r\t".getBytes(charset.name()),
+					new byte[] { ' ', '\r', '\t' });
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			return false;
+		}
+		catch(UnsupportedOperationException e)
+		{
+			// Decode-only character set
+			return false;
+		}
+	}
+
+	/**
+	 * @param in Input stream
+	 * @param charset Character set (must be supported)
+	 */
+	LineSplitter(InputStream in, Charset charset)
+	{
+		this.in = in;
+		this.charset = charset;
+		words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Reads the next line that isn't blank (empty or only whitespace).
+	 * Lines end with LF, CR, or CR LF.
+	 * @return Line or null at end of input
+	 * @throws IOException Any error reading
+	 */
+	String readLine() throws IOException
+	{
+		while(true)
+		{
+			int lineBreak = findLineBreak(scanned, limit);
+			int start = pos, end;
+			if(lineBreak != -1)
+			{
+				if(buffer[lineBreak] == '\r' && lineBreak + 1 == limit && !eof)
+				{
+					// Need the next byte to tell whether this is CR LF
+					scanned = lineBreak;
+					fill();
+					continue;
+				}
+				end = lineBreak;
+				pos = lineBreak + 1;
+				if(buffer[lineBreak] == '\r' && pos < limit && buffer[pos] == '\n')
+				{
+					pos++;
+				}
+			}
+			else if(eof)
+			{
+				if(pos == limit)
+				{
+					return null;
+				}
+				end = limit;
+				pos = limit;
+			}
+			else
+			{
+				// Don't search the same data again after refilling
+				scanned = limit;
+				fill();
+				continue;
+			}
+			scanned = pos;
+
+			if(!isBlank(start, end))
+			{
+				return new String(buffer, start, end - start, charset);
+			}
+		}
+	}
+
+	/**
+	 * Moves unprocessed data to the start of the buffer (growing it if it is
+	 * full) and reads more.
+	 * @throws IOException Any error reading
+	 */
+	private void fill() throws IOException
+	{
+		int remaining = limit - pos;
+		if(remaining == buffer.length)
+		{
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			words = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		else
+		{
+			System.arraycopy(buffer, pos, buffer, 0, remaining);
+		}
+		scanned -= pos;
+		pos = 0;
+		limit = remaining;
+		int read = in.read(buffer, limit, buffer.length - limit);
+		if(read == -1)
+		{
+			eof = true;
+		}
+		else
+		{
+			limit += read;
+		}
+	}
+
+	/**
+	 * Finds the next line feed or carriage return. Each long is XORed with
+	 * line feeds (and separately with carriage returns) so that matching
+	 * bytes become zero, then the standard test for a zero byte
+	 * ((x - 0x01..) & ~x & 0x80..) marks them; in little-endian order the
+	 * lowest marked byte is the first match.
+	 * @param start Start position
+	 * @param end End position (exclusive)
+	 * @return Position of line break or -1 if none
+	 */
+	private int findLineBreak(int start, int end)
+	{
+		int i = start;
+		for(; i + 8 <= end; i += 8)
+		{
+			long word = words.getLong(i);
+			long lf = word ^ LINEFEEDS, cr = word ^ RETURNS;
+			long found = ((lf - LOWBITS) & ~lf | (cr - LOWBITS) & ~cr) & HIGHBITS;
+			if(found != 0)
+			{
+				return i + (Long.numberOfTrailingZeros(found) >>> 3);
+			}
+		}
+		for(; i < end; i++)
+		{
+			if(buffer[i] == '\n' || buffer[i] == '\r')
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Checks whether part of the buffer contains only whitespace (as defined
+	 * by String.trim). In the supported character sets, no byte of a
+	 * multi-byte character is 0x20 or below, so this gives the same result as
+	 * decoding first.
+	 * @param start Start position
+	 * @param end End position (exclusive)
+	 * @return True if blank
+	 */
+	private boolean isBlank(int start, int end)
+	{
+		for(int i=start; i<end; i++)
+		{
+			if((buffer[i] & 0xff) > ' ')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the input stream.
+	 * @throws IOException Any error closing
+	 */
+	void close() throws IOException
+	{
+		in.close();
+	}
+}
@@ -22,14 +22,19 @@ import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
+import com.leafdigital.browserstats.shared.*;
+
 /** Format describing method of reading log lines. */
-public class LogFormat
+public class LogFormat implements Cloneable
 {
 	private Pattern regex, skip;
-	private int ipField, dateField, timeField, agentField, pathField, statusField;
+	private int ipField, dateField, timeField, agentField, pathField, statusField,
+		hostField;
 	private SimpleDateFormat dateFormat, timeFormat, isoDateFormat, isoTimeFormat;
 	private boolean decodeAgent;
 	private Collection<Sample> samples = new LinkedList<Sample>();
+	private RegexLimit regexLimit = new RegexLimit(0);
+	private AgentNormaliser normaliser;
 
 	/**
 	 * Records information about a sample line.
@@ -50,7 +55,7 @@ public class LogFormat
 		 */
 		boolean test()
 		{
-			if(regex.matcher(line).find())
+			if(matches(line))
 			{
 				return true;
 			}
@@ -59,6 +64,13 @@ public class LogFormat
 		}
 	}
 
+	/**
+	 * Constructor for subclasses that do not use a regular expression.
+	 */
+	protected LogFormat()
+	{
+	}
+
 	/**
 	 * @param regex Regular expression to parse line
 	 * @param ipField Index of field that contains IP address or other unique
@@ -187,6 +199,106 @@ public class LogFormat
 		this.samples.add(new Sample(name, sample));
 	}
 
+	/**
+	 * Sets the field containing the host name, for formats that include it.
+	 * @param hostField Field index
+	 * @throws IllegalArgumentException If the field is invalid
+	 */
+	void setHostField(String hostField) throws IllegalArgumentException
+	{
+		this.hostField = parseInt(hostField, "Invalid host field index");
+		if(this.hostField <= 0 || this.hostField > regex.matcher("").groupCount())
+		{
+			throw new IllegalArgumentException("Host field index out of range: "
+				+ this.hostField);
+		}
+	}
+
+	/**
+	 * @return True if lines in this format include a host name
+	 */
+	boolean hasHost()
+	{
+		return hostField != 0;
+	}
+
+	/**
+	 * Sets the time limit for regular expressions used when parsing lines.
+	 * @param regexLimit Limit
+	 */
+	void setRegexLimit(RegexLimit regexLimit)
+	{
+		this.regexLimit = regexLimit;
+	}
+
+	/**
+	 * Sets rules used to rewrite user agents as lines are parsed.
+	 * @param normaliser Normaliser or null for none
+	 */
+	void setNormaliser(AgentNormaliser normaliser)
+	{
+		this.normaliser = normaliser;
+	}
+
+	/**
+	 * Applies the normalisation rules (if any) to an agent.
+	 * @param agent Agent string
+	 * @return Normalised agent string
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	String normaliseAgent(String agent) throws RegexTimeoutException
+	{
+		return normaliser == null ? agent : normaliser.normalise(agent);
+	}
+
+	/**
+	 * Creates a copy of this format for use on another thread. (The date
+	 * formats used in parsing cannot be shared between threads.)
+	 * @return Copy of format
+	 */
+	LogFormat copy()
+	{
+		LogFormat copy;
+		try
+		{
+			copy = (LogFormat)clone();
+		}
+		catch(CloneNotSupportedException e)
+		{
+			throw new Error(e);
+		}
+		if(dateFormat != null)
+		{
+			copy.dateFormat = (SimpleDateFormat)dateFormat.clone();
+			copy.timeFormat = (SimpleDateFormat)timeFormat.clone();
+			copy.isoDateFormat = (SimpleDateFormat)isoDateFormat.clone();
+			copy.isoTimeFormat = (SimpleDateFormat)isoTimeFormat.clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * @return Description of everything that affects how lines are parsed
+	 */
+	String getDescription()
+	{
+		return regex.pattern() + "\n" + (skip == null ? "" : skip.pattern())
+			+ "\n" + ipField + "," + dateField + "," + timeField + ","
+			+ agentField + (decodeAgent ? "+" : "") + "," + pathField + ","
+			+ statusField + (hostField == 0 ? "" : "," + hostField) + "\n"
+			+ dateFormat.toPattern() + "\n" + timeFormat.toPattern();
+	}
+
+	/**
+	 * Checks whether a sample line matches the format.
+	 * @param line Line text
+	 * @return True if line matches
+	 */
+	boolean matches(String line)
+	{
+		return regex.matcher(line).find();
+	}
+
 	/**
 	 * Parses a single line from the log file.
 	 * @param line Line text
@@ -194,20 +306,59 @@ public class LogFormat
 	 * @return Line in processed form, or null if the line is to be skipped
 	 * @throws IllegalArgumentException If the input line does not match
 	 *   the specified format
+	 * @throws RegexTimeoutException If a regular expression takes too long
 	 */
-	LogLine parse(String line, Categoriser c) throws IllegalArgumentException
+	final LogLine parse(String line, Categoriser c)
+		throws IllegalArgumentException, RegexTimeoutException
 	{
-		if(skip!=null && skip.matcher(line).find())
+		Object match = match(line);
+		if(match == null)
 		{
 			return null;
 		}
+		LogLine result = convert(line, match);
+		result.initCategory(c.categorise(result));
+		return result;
+	}
 
-		Matcher m = regex.matcher(line);
-		if(!m.find())
+	/**
+	 * First stage of parsing: splits the line into fields.
+	 * @param line Line text
+	 * @return Fields in a form understood by {@link #convert(String, Object)},
+	 *   or null if the line is to be skipped
+	 * @throws IllegalArgumentException If the input line does not match
+	 *   the specified format
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	Object match(String line) throws IllegalArgumentException,
+		RegexTimeoutException
+	{
+		if(skip!=null && regexLimit.find(skip, line))
+		{
+			return null;
+		}
+
+		Matcher m = regex.matcher(regexLimit.wrap(line));
+		if(!regexLimit.find(m))
 		{
 			throw new IllegalArgumentException("Doesn't match <line> regex");
 		}
+		return m;
+	}
 
+	/**
+	 * Second stage of parsing: converts dates and other fields. The line is
+	 * not yet categorised.
+	 * @param line Line text
+	 * @param match Result of {@link #match(String)}
+	 * @return Line in processed form
+	 * @throws IllegalArgumentException If a field is invalid
+	 * @throws RegexTimeoutException If a regular expression takes too long
+	 */
+	LogLine convert(String line, Object match) throws IllegalArgumentException,
+		RegexTimeoutException
+	{
+		Matcher m = (Matcher)match;
 		String isoDate;
 		try
 		{
@@ -238,6 +389,7 @@ public class LogFormat
 		{
 			agent = agent.replace('+', ' ');
 		}
+		agent = normaliseAgent(agent);
 		String ip = m.group(ipField);
 		if(ip == null)
 		{
@@ -253,9 +405,12 @@ public class LogFormat
 		{
 			status = "";
 		}
-		LogLine result = new LogLine(line, agent, isoDate, isoTime, ip, path, status);
-		result.initCategory(c.categorise(result));
-		return result;
+		String host = hostField == 0 ? null : m.group(hostField);
+		if(host == null)
+		{
+			host = "";
+		}
+		return new LogLine(line, agent, isoDate, isoTime, ip, path, status, host);
 	}
 
 	boolean selfTest()
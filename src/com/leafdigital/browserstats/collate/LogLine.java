@@ -38,6 +38,8 @@ public class LogLine
 		PATH("path"),
 		/** HTTP status code */
 		STATUS("status"),
+		/** Host name (virtual host), if the format includes it */
+		HOST("host"),
 		/** Entire line */
 		LINE("line");
 
@@ -60,7 +62,7 @@ public class LogLine
 		}
 	}
 
-	private String line, userAgent, isoDate, isoTime, ip, path, status;
+	private String line, userAgent, isoDate, isoTime, ip, path, status, host;
 	private Category category;
 
 	/**
@@ -71,9 +73,10 @@ public class LogLine
 	 * @param ip IP address (or other unique identifier)
 	 * @param path Path
 	 * @param status Status code
+	 * @param host Host name (empty string if not known)
 	 */
 	LogLine(String line, String userAgent, String isoDate, String isoTime,
-		String ip, String path, String status)
+		String ip, String path, String status, String host)
 	{
 		if(line == null)
 		{
@@ -110,6 +113,11 @@ public class LogLine
 			throw new NullPointerException("Status may not be null");
 		}
 		this.status = status;
+		if(host == null)
+		{
+			throw new NullPointerException("Host may not be null");
+		}
+		this.host = host;
 	}
 
 	/**
@@ -173,6 +181,12 @@ public class LogLine
 		return status;
 	}
 
+	/** @return Host name (empty string if not known) */
+	public String getHost()
+	{
+		return host;
+	}
+
 	/**
 	 * Gets the specified field from this line.
 	 * @param field Field
@@ -194,6 +208,8 @@ public class LogLine
 			return path;
 		case STATUS:
 			return status;
+		case HOST:
+			return host;
 		default:
 			return line;
 		}
@@ -19,17 +19,97 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.browserstats.collate;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.*;
 
-/** Handles reading of log files / input */
+import com.leafdigital.browserstats.shared.RegexTimeoutException;
+
+/**
+ * Handles reading of log files / input. Files are normally read one after
+ * another; in interleave mode, all files are read at once and their lines
+ * are merged in time order. Lines may be parsed on several threads (see
+ * {@link ParsePipeline}).
+ */
 public class LogReader implements Iterable<LogLine>
 {
-	private int fileIndex = -1;
+	/** Buffers for each file when files are interleaved */
+	private final static int INTERLEAVE_BUFFERS = 8;
+
+	/**
+	 * Decides which lines are returned. When parsing on several threads, this
+	 * may be called from any of them at once.
+	 */
+	interface Filter
+	{
+		/**
+		 * @param line Parsed line
+		 * @return True to return the line, false to skip it
+		 */
+		boolean accept(LogLine line);
+	}
+
+	/**
+	 * Counts of lines handled. When parsing on several threads, each batch
+	 * has its own counts which are added to the total as the batch is used.
+	 */
+	static class LineCounts
+	{
+		private int invalid, wrongTime, timeout, processed;
+		private LinkedList<String> messages;
+
+		/**
+		 * @param holdMessages True to hold messages about invalid lines until
+		 *   the counts are added to another, false to display them immediately
+		 */
+		LineCounts(boolean holdMessages)
+		{
+			if(holdMessages)
+			{
+				messages = new LinkedList<String>();
+			}
+		}
+
+		private void invalid(String message)
+		{
+			invalid++;
+			if(messages == null)
+			{
+				System.err.println(message);
+			}
+			else
+			{
+				messages.add(message);
+			}
+		}
+
+		/**
+		 * Adds other counts to these, displaying any messages held.
+		 * @param other Counts to add
+		 */
+		void add(LineCounts other)
+		{
+			invalid += other.invalid;
+			wrongTime += other.wrongTime;
+			timeout += other.timeout;
+			processed += other.processed;
+			if(other.messages != null)
+			{
+				for(String message : other.messages)
+				{
+					System.err.println(message);
+				}
+				other.messages.clear();
+			}
+		}
+	}
+
 	private BufferedReader reader = null;
-	private ThreadedInputStream stream;
+	private LineSplitter splitter = null;
+	private InputPrefetcher prefetcher;
+	private SyslogListener listener;
+	private ParsePipeline pipeline;
 
-	private int invalidLines = 0, wrongTimeLines = 0, processedLines = 0;
-	private long ioIdleTime=0, ioBlockTime=0;
+	private LineCounts counts = new LineCounts(false);
 
 	private LogFormat format;
 	private String encoding;
@@ -37,12 +117,17 @@ public class LogReader implements Iterable<LogLine>
 	private File[] files;
 	private Categoriser categoriser;
 	private String from, to;
+	private Filter filter;
+	private ParseProfiler profiler;
 
 	private LogLine nextLine;
 	private IOException ioException;
 
 	private Iterator<LogLine> iterator;
 
+	private LogReader[] interleaved;
+	private PriorityQueue<LogReader> interleaveQueue;
+
 	/**
 	 *
 	 * @param format Format of log lines
@@ -52,12 +137,152 @@ public class LogReader implements Iterable<LogLine>
 	 * @param categoriser Categoriser
 	 * @param from ISO date to skip lines before (null if none)
 	 * @param to ISO date to skip lines after (null if none)
+	 * @param prefetch Number of files open at once, including the current one
+	 * @param interleave True to read all files at once, merging lines in
+	 *   time order
+	 * @param sampleBlocks Read only one in this many blocks of each file (1 to
+	 *   read everything)
+	 * @param threads Number of threads used to parse lines (1 to parse on the
+	 *   calling thread); ignored when interleaving
+	 * @param filter Filter that decides which lines are returned, or null to
+	 *   return all lines
+	 * @param profiler Profiler that records the time taken to parse each line,
+	 *   or null if not profiling
 	 * @throws IOException If there is a problem opening data
 	 */
 	LogReader(LogFormat format, String encoding, boolean lenient,
 		File[] files, Categoriser categoriser, String from,
-		String to)
+		String to, int prefetch, boolean interleave, int sampleBlocks,
+		int threads, Filter filter, ParseProfiler profiler)
 		throws IOException
+	{
+		this.filter = filter;
+		this.profiler = profiler;
+		if(interleave && files != null && files.length > 1)
+		{
+			initInterleaved(format, encoding, lenient, files, categoriser, from, to,
+				sampleBlocks);
+			return;
+		}
+		init(format, encoding, lenient, files, categoriser, from, to,
+			new InputPrefetcher(files, prefetch, InputPrefetcher.DEFAULT_BUFFERS,
+			sampleBlocks), threads);
+	}
+
+	/**
+	 * Constructs a reader for lines received over syslog.
+	 * @param format Format of log lines
+	 * @param lenient True to ignore malformed lines
+	 * @param listener Listener that receives lines (must be started)
+	 * @param categoriser Categoriser
+	 * @param from ISO date to skip lines before (null if none)
+	 * @param to ISO date to skip lines after (null if none)
+	 * @param threads Number of threads used to parse lines (1 to parse on the
+	 *   calling thread)
+	 * @param filter Filter that decides which lines are returned, or null to
+	 *   return all lines
+	 * @param profiler Profiler that records the time taken to parse each line,
+	 *   or null if not profiling
+	 * @throws IOException If there is a problem receiving data
+	 */
+	LogReader(LogFormat format, boolean lenient, SyslogListener listener,
+		Categoriser categoriser, String from, String to, int threads,
+		Filter filter, ParseProfiler profiler) throws IOException
+	{
+		this.filter = filter;
+		this.profiler = profiler;
+		this.listener = listener;
+		init(format, null, lenient, null, categoriser, from, to, null, threads);
+	}
+
+	/**
+	 * Sets up a reader that interleaves lines from each file.
+	 * @param format Format of log lines
+	 * @param encoding Character encoding
+	 * @param lenient True to ignore malformed lines
+	 * @param files Array of files
+	 * @param categoriser Categoriser
+	 * @param from ISO date to skip lines before (null if none)
+	 * @param to ISO date to skip lines after (null if none)
+	 * @param sampleBlocks Read only one in this many blocks of each file
+	 * @throws IOException If there is a problem opening data
+	 */
+	private void initInterleaved(LogFormat format, String encoding,
+		boolean lenient, File[] files, Categoriser categoriser, String from,
+		String to, int sampleBlocks) throws IOException
+	{
+		interleaved = new LogReader[files.length];
+		interleaveQueue = new PriorityQueue<LogReader>(files.length,
+			new Comparator<LogReader>()
+			{
+				@Override
+				public int compare(LogReader o1, LogReader o2)
+				{
+					int result = o1.nextLine.getIsoDate().compareTo(
+						o2.nextLine.getIsoDate());
+					if(result == 0)
+					{
+						result = o1.nextLine.getIsoTime().compareTo(
+							o2.nextLine.getIsoTime());
+					}
+					return result;
+				}
+			});
+		try
+		{
+			for(int i=0; i<files.length; i++)
+			{
+				interleaved[i] = new LogReader();
+				interleaved[i].filter = filter;
+				interleaved[i].profiler = profiler;
+				interleaved[i].init(format, encoding, lenient, new File[] { files[i] },
+					categoriser, from, to,
+					new InputPrefetcher(new File[] { files[i] }, 1, INTERLEAVE_BUFFERS,
+					sampleBlocks), 1);
+				if(interleaved[i].nextLine != null)
+				{
+					interleaveQueue.add(interleaved[i]);
+				}
+			}
+			nextLine = readInterleavedLine();
+			iterator = new LogIterator();
+		}
+		catch(IOException e)
+		{
+			close();
+			throw e;
+		}
+		catch(RuntimeException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Constructor used for each file when interleaving.
+	 */
+	private LogReader()
+	{
+	}
+
+	/**
+	 * Sets up a reader for files (or stdin) one after another.
+	 * @param format Format of log lines
+	 * @param encoding Character encoding
+	 * @param lenient True to ignore malformed lines
+	 * @param files Array of files or null to use stdin
+	 * @param categoriser Categoriser
+	 * @param from ISO date to skip lines before (null if none)
+	 * @param to ISO date to skip lines after (null if none)
+	 * @param prefetcher Prefetcher that reads the files (null if using a
+	 *   syslog listener)
+	 * @param threads Number of threads used to parse lines
+	 * @throws IOException If there is a problem opening data
+	 */
+	private void init(LogFormat format, String encoding, boolean lenient,
+		File[] files, Categoriser categoriser, String from,
+		String to, InputPrefetcher prefetcher, int threads) throws IOException
 	{
 		this.format = format;
 		this.lenient = lenient;
@@ -66,10 +291,18 @@ public class LogReader implements Iterable<LogLine>
 		this.categoriser = categoriser;
 		this.from = from;
 		this.to = to;
+		this.prefetcher = prefetcher;
 
 		try
 		{
-			openNext();
+			if(prefetcher != null)
+			{
+				openNext();
+			}
+			if(threads > 1)
+			{
+				pipeline = new ParsePipeline(this, format, threads);
+			}
 			nextLine = readLine();
 			iterator = new LogIterator();
 		}
@@ -87,10 +320,42 @@ public class LogReader implements Iterable<LogLine>
 
 	private LogLine readLine() throws IOException
 	{
+		if(pipeline != null)
+		{
+			return pipeline.next();
+		}
+		while(true)
+		{
+			String line = readRawLine();
+			if(line == null)
+			{
+				return null;
+			}
+			LogLine result = parseLine(line, format, counts);
+			if(result != null)
+			{
+				return result;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next line of text, moving on to the next file if necessary.
+	 * When parsing on several threads, this is only called from the thread
+	 * that reads the input.
+	 * @return Line or null if there are no more lines
+	 * @throws IOException Any error reading
+	 */
+	String readRawLine() throws IOException
+	{
+		if(listener != null)
+		{
+			return listener.readLine();
+		}
 		while(true)
 		{
 			// Try to read a line
-			String line = reader.readLine();
+			String line = splitter != null ? splitter.readLine() : reader.readLine();
 
 			// If EOF, try next file
 			if(line==null)
@@ -99,54 +364,217 @@ public class LogReader implements Iterable<LogLine>
 				if(!openNext()) return null;
 				continue;
 			}
+			return line;
+		}
+	}
+
+	/**
+	 * Parses a line, checks it is within the date range, and applies the
+	 * filter. This may be called from several threads at once.
+	 * @param line Line text
+	 * @param format Format to use (each thread must have its own copy)
+	 * @param counts Counts to update
+	 * @return Line or null if it is skipped
+	 * @throws IOException If the line is invalid and lenient mode is off
+	 */
+	LogLine parseLine(String line, LogFormat format, LineCounts counts)
+		throws IOException
+	{
+		if(profiler != null)
+		{
+			return parseLineProfiled(line, format, counts);
+		}
 
-			// If line is empty, skip it
-			if(line.trim().equals(""))
+		// If line is empty, skip it
+		if(isBlank(line))
+		{
+			return null;
+		}
+
+		// Parse line
+		LogLine result;
+		try
+		{
+			result = format.parse(line, categoriser);
+			if(result==null)
 			{
-				continue;
+				// Format wants to skip this line
+				return null;
 			}
+		}
+		catch(IllegalArgumentException e)
+		{
+			invalid(line, e, counts);
+			return null;
+		}
+		catch(RegexTimeoutException e)
+		{
+			// Already recorded by the limit; skip the line
+			counts.timeout++;
+			return null;
+		}
+
+		if(!inRange(result, counts))
+		{
+			return null;
+		}
+		if(filter != null && !filter.accept(result))
+		{
+			return null;
+		}
+		return result;
+	}
 
-			// Parse line
+	/**
+	 * As {@link #parseLine(String, LogFormat, LineCounts)}, but times each
+	 * stage of parsing and records it in the profiler.
+	 * @param line Line text
+	 * @param format Format to use (each thread must have its own copy)
+	 * @param counts Counts to update
+	 * @return Line or null if it is skipped
+	 * @throws IOException If the line is invalid and lenient mode is off
+	 */
+	private LogLine parseLineProfiled(String line, LogFormat format,
+		LineCounts counts) throws IOException
+	{
+		if(isBlank(line))
+		{
+			return null;
+		}
+
+		ParseProfiler.Timing timing = new ParseProfiler.Timing();
+		try
+		{
 			LogLine result;
 			try
 			{
-				result = format.parse(line, categoriser);
-				if(result==null)
+				Object match = format.match(line);
+				timing.next();
+				if(match == null)
 				{
-					// Format wants to skip this line
-					continue;
+					return null;
 				}
+				result = format.convert(line, match);
+				timing.next();
+				result.initCategory(categoriser.categorise(result));
+				timing.next();
 			}
 			catch(IllegalArgumentException e)
 			{
-				if(lenient)
-				{
-					invalidLines++;
-					// Print out invalid line (with a few extra spaces)
-					System.err.println("\n\nSkipping invalid input line (" + e.getMessage()
-						+ "):\n[" + line + "]\n");
-					continue;
-				}
-				else
-				{
-					throw new IOException("Invalid input line (" + e.getMessage() +
-						")\n[" + line + "]\n\nUse -lenient flag to skip invalid lines");
-				}
+				invalid(line, e, counts);
+				return null;
+			}
+			catch(RegexTimeoutException e)
+			{
+				counts.timeout++;
+				return null;
 			}
 
-			// Skip lines outside date range
-			if( (from!=null && result.getIsoDate().compareTo(from) < 0)
-				|| (to!=null && result.getIsoDate().compareTo(to) > 0))
+			if(!inRange(result, counts))
 			{
-				wrongTimeLines++;
-				continue;
+				return null;
 			}
+			boolean accept = filter == null || filter.accept(result);
+			timing.next();
+			return accept ? result : null;
+		}
+		finally
+		{
+			profiler.record(line, timing);
+		}
+	}
 
-			processedLines++;
-			return result;
+	/**
+	 * Handles an invalid line.
+	 * @param line Line text
+	 * @param e Exception describing the problem
+	 * @param counts Counts to update
+	 * @throws IOException If lenient mode is off
+	 */
+	private void invalid(String line, IllegalArgumentException e,
+		LineCounts counts) throws IOException
+	{
+		if(lenient)
+		{
+			// Print out invalid line (with a few extra spaces)
+			counts.invalid("\n\nSkipping invalid input line (" + e.getMessage()
+				+ "):\n[" + line + "]\n");
+		}
+		else
+		{
+			throw new IOException("Invalid input line (" + e.getMessage() +
+				")\n[" + line + "]\n\nUse -lenient flag to skip invalid lines");
 		}
 	}
 
+	/**
+	 * Checks a line is within the date range, and counts it as processed if
+	 * so.
+	 * @param result Parsed line
+	 * @param counts Counts to update
+	 * @return True if the line is within range
+	 */
+	private boolean inRange(LogLine result, LineCounts counts)
+	{
+		if( (from!=null && result.getIsoDate().compareTo(from) < 0)
+			|| (to!=null && result.getIsoDate().compareTo(to) > 0))
+		{
+			counts.wrongTime++;
+			return false;
+		}
+		counts.processed++;
+		return true;
+	}
+
+	/**
+	 * @param line Line
+	 * @return True if the line is empty or only whitespace
+	 */
+	private static boolean isBlank(String line)
+	{
+		for(int i=0; i<line.length(); i++)
+		{
+			if(line.charAt(i) > ' ')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds counts from a batch of lines parsed on another thread.
+	 * @param batchCounts Counts to add
+	 */
+	void addCounts(LineCounts batchCounts)
+	{
+		counts.add(batchCounts);
+	}
+
+	/**
+	 * Reads the earliest line from any of the interleaved files.
+	 * @return Line or null if all files have finished
+	 * @throws IOException Any error reading
+	 */
+	private LogLine readInterleavedLine() throws IOException
+	{
+		LogReader earliest = interleaveQueue.poll();
+		if(earliest == null)
+		{
+			return null;
+		}
+		LogLine result = earliest.iterator.next();
+		if(earliest.ioException != null)
+		{
+			throw earliest.ioException;
+		}
+		if(earliest.nextLine != null)
+		{
+			interleaveQueue.add(earliest);
+		}
+		return result;
+	}
+
 	/**
 	 * Opens the next file/input stream.
 	 * @return True if the next stream has been opened, false otherwise
@@ -156,62 +584,134 @@ public class LogReader implements Iterable<LogLine>
 	{
 		closeReader();
 
-		fileIndex++;
-		if(files==null)
+		ThreadedInputStream stream = prefetcher.next();
+		if(stream == null)
 		{
-			if(fileIndex > 0)
-			{
-				return false;
-			}
-			stream = new ThreadedInputStream(System.in);
+			return false;
+		}
+		Charset charset = Charset.forName(encoding);
+		if(LineSplitter.supports(charset))
+		{
+			splitter = new LineSplitter(stream, charset);
 		}
 		else
 		{
-			if(fileIndex >= files.length)
-			{
-				return false;
-			}
-			stream = new ThreadedInputStream(new FileInputStream(files[fileIndex]));
+			reader = new BufferedReader(new InputStreamReader(stream, charset));
 		}
-		reader = new BufferedReader(new InputStreamReader(stream, encoding));
 		return true;
 	}
 
 	/** @return Number of invalid lines skipped (if lenient mode is on) */
 	public int getInvalidLines()
 	{
-		return invalidLines;
+		int total = counts.invalid;
+		if(interleaved != null)
+		{
+			for(LogReader reader : interleaved)
+			{
+				total += reader.getInvalidLines();
+			}
+		}
+		return total;
 	}
 
 	/** @return Number of lines that were outside the date range (if date range given) */
 	public int getWrongTimeLines()
 	{
-		return wrongTimeLines;
+		int total = counts.wrongTime;
+		if(interleaved != null)
+		{
+			for(LogReader reader : interleaved)
+			{
+				total += reader.getWrongTimeLines();
+			}
+		}
+		return total;
+	}
+
+	/** @return Number of lines skipped because a regex took too long */
+	public int getTimeoutLines()
+	{
+		int total = counts.timeout;
+		if(interleaved != null)
+		{
+			for(LogReader reader : interleaved)
+			{
+				total += reader.getTimeoutLines();
+			}
+		}
+		return total;
 	}
 
 	/** @return Number of lines processed */
 	public int getProcessedLines()
 	{
-		return processedLines;
+		int total = counts.processed;
+		if(interleaved != null)
+		{
+			for(LogReader reader : interleaved)
+			{
+				total += reader.getProcessedLines();
+			}
+		}
+		return total;
 	}
 
 	/** @return Total lines handled, including those skipped */
 	public int getTotalLines()
 	{
-		return processedLines + invalidLines + wrongTimeLines;
+		return getProcessedLines() + getInvalidLines() + getWrongTimeLines()
+			+ getTimeoutLines();
 	}
 
 	/** @return Time in milliseconds that IO was idle (waiting for main thread
 	 * to use up existing buffers) */
 	public long getIoIdleTime()
 	{
-		return ioIdleTime;
+		if(interleaved != null)
+		{
+			long total = 0;
+			for(LogReader reader : interleaved)
+			{
+				total += reader.getIoIdleTime();
+			}
+			return total;
+		}
+		return prefetcher == null ? 0 : prefetcher.getIdleTime();
 	}
 
 	/** @return Time in milliseconds that IO blocked */
 	public long getIoBlockTime()
 	{
-		return ioBlockTime;
+		if(interleaved != null)
+		{
+			long total = 0;
+			for(LogReader reader : interleaved)
+			{
+				total += reader.getIoBlockTime();
+			}
+			return total;
+		}
+		return prefetcher == null ? 0 : prefetcher.getBlockTime();
+	}
+
+	/** @return Descriptions of changes made while tuning read buffers */
+	public List<String> getTuningLog()
+	{
+		if(interleaved != null)
+		{
+			List<String> log = new LinkedList<String>();
+			for(LogReader reader : interleaved)
+			{
+				log.addAll(reader.getTuningLog());
+			}
+			return log;
+		}
+		if(prefetcher == null)
+		{
+			return new LinkedList<String>();
+		}
+		return prefetcher.getTuningLog();
 	}
 
 	/** @return IO exception that terminated reading, or null if none) */
@@ -239,7 +739,7 @@ public class LogReader implements Iterable<LogLine>
 
 			try
 			{
-				nextLine = readLine();
+				nextLine = interleaved != null ? readInterleavedLine() : readLine();
 			}
 			catch(IOException e)
 			{
@@ -268,27 +768,46 @@ public class LogReader implements Iterable<LogLine>
 	 */
 	public void close()
 	{
+		if(interleaved != null)
+		{
+			for(LogReader reader : interleaved)
+			{
+				if(reader != null)
+				{
+					reader.close();
+				}
+			}
+			return;
+		}
+		if(pipeline != null)
+		{
+			pipeline.close();
+		}
 		closeReader();
+		if(prefetcher != null)
+		{
+			prefetcher.close();
+		}
 	}
 
 	private void closeReader()
 	{
-		if(reader==null)
-		{
-			return;
-		}
 		try
 		{
-			ioIdleTime += stream.getIdleTime();
-			ioBlockTime += stream.getBlockTime();
-			reader.close();
-			reader = null;
-			stream = null;
+			if(splitter != null)
+			{
+				splitter.close();
+			}
+			if(reader != null)
+			{
+				reader.close();
+			}
 		}
 		catch(IOException e)
 		{
 		}
 		reader = null;
+		splitter = null;
 	}
 }
 
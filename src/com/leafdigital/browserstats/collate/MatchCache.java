@@ -0,0 +1,212 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+
+import com.leafdigital.browserstats.collate.LogLine.Field;
+
+/**
+ * Remembers the results of regular expression tests (from -include,
+ * -exclude and -category) for each distinct value of a field, since the
+ * same paths and agents occur over and over again.
+ * <p>
+ * There is one cache per field. Each value maps to a set of bits holding
+ * the results of every test on that field that has been run for the value
+ * so far. Caches are bounded using two generations: new values go into the
+ * current generation, and when that is full it replaces the previous one
+ * (which is discarded). Values found in the previous generation are moved
+ * back to the current one, so frequently-used values are kept.
+ * <p>
+ * All methods may be called from several threads at once.
+ */
+class MatchCache
+{
+	/** Maximum number of tests per field (each uses two bits of a long) */
+	private final static int MAX_SLOTS = 32;
+
+	private int generationSize;
+	private EnumMap<Field, FieldCache> caches =
+		new EnumMap<Field, FieldCache>(Field.class);
+
+	/** Cache for one field. */
+	private static class FieldCache
+	{
+		private Field field;
+		private int slots;
+		private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+		private volatile ConcurrentHashMap<String, AtomicLong> current =
+			new ConcurrentHashMap<String, AtomicLong>(), previous = current;
+		private AtomicInteger currentSize = new AtomicInteger();
+
+		private FieldCache(Field field)
+		{
+			this.field = field;
+		}
+	}
+
+	/** Position of one test within a field cache. */
+	class Slot
+	{
+		private FieldCache cache;
+		private int index;
+
+		private Slot(FieldCache cache, int index)
+		{
+			this.cache = cache;
+			this.index = index;
+		}
+
+		/**
+		 * Looks up a stored result.
+		 * @param value Field value
+		 * @return 1 if the test matched, 0 if it didn't, -1 if not known
+		 */
+		int lookup(String value)
+		{
+			AtomicLong entry = getEntry(cache, value, false);
+			if(entry != null)
+			{
+				long bits = entry.get();
+				if((bits & (1L << index)) != 0)
+				{
+					cache.hits.incrementAndGet();
+					return (int)(bits >>> (MAX_SLOTS + index)) & 1;
+				}
+			}
+			cache.misses.incrementAndGet();
+			return -1;
+		}
+
+		/**
+		 * Stores a result.
+		 * @param value Field value
+		 * @param result Result of test
+		 */
+		void store(String value, boolean result)
+		{
+			AtomicLong entry = getEntry(cache, value, true);
+			long add = (1L << index) | (result ? 1L << (MAX_SLOTS + index) : 0);
+			while(true)
+			{
+				long bits = entry.get();
+				if(entry.compareAndSet(bits, bits | add))
+				{
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param size Maximum number of values cached for each field
+	 */
+	MatchCache(int size)
+	{
+		generationSize = Math.max(1, size / 2);
+	}
+
+	/**
+	 * Reserves space to cache the results of a test.
+	 * @param field Field tested
+	 * @return Slot to use, or null if the test cannot be cached
+	 */
+	synchronized Slot register(Field field)
+	{
+		if(field == Field.LINE)
+		{
+			// Every line is different
+			return null;
+		}
+		FieldCache cache = caches.get(field);
+		if(cache == null)
+		{
+			cache = new FieldCache(field);
+			caches.put(field, cache);
+		}
+		if(cache.slots == MAX_SLOTS)
+		{
+			return null;
+		}
+		return new Slot(cache, cache.slots++);
+	}
+
+	/**
+	 * Gets the entry for a value.
+	 * @param cache Field cache
+	 * @param value Value
+	 * @param create True to create the entry if it doesn't exist
+	 * @return Entry or null if not found (and create is false)
+	 */
+	private AtomicLong getEntry(FieldCache cache, String value, boolean create)
+	{
+		ConcurrentHashMap<String, AtomicLong> current = cache.current;
+		AtomicLong entry = current.get(value);
+		if(entry != null)
+		{
+			return entry;
+		}
+		entry = cache.previous.get(value);
+		if(entry == null)
+		{
+			if(!create)
+			{
+				return null;
+			}
+			entry = new AtomicLong();
+		}
+
+		// Start a new generation if this one is full. (If several threads do
+		// this at once, some entries may be lost, which does no harm.)
+		if(cache.currentSize.incrementAndGet() > generationSize)
+		{
+			synchronized(cache)
+			{
+				if(cache.current == current)
+				{
+					cache.previous = current;
+					cache.current = new ConcurrentHashMap<String, AtomicLong>();
+					cache.currentSize.set(1);
+				}
+			}
+			current = cache.current;
+		}
+		AtomicLong existing = current.putIfAbsent(value, entry);
+		return existing == null ? entry : existing;
+	}
+
+	/**
+	 * @return Descriptions of hit rate for each field
+	 */
+	List<String> getStatistics()
+	{
+		List<String> result = new LinkedList<String>();
+		for(FieldCache cache : caches.values())
+		{
+			long hits = cache.hits.get(), total = hits + cache.misses.get();
+			result.add(cache.field.toString().toLowerCase() + ": " + hits + " hits, "
+				+ (total - hits) + " misses ("
+				+ (total == 0 ? 0 : (hits * 1000 / total) / 10.0) + "% hits)");
+		}
+		return result;
+	}
+}
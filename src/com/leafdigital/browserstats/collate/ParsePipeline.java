@@ -0,0 +1,309 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.concurrent.*;
+
+/**
+ * Parses lines on several threads. A reader thread splits the input into
+ * batches of lines; a pool of parser threads parses (and filters) each batch;
+ * and the results are returned in the original order, so that lines reach
+ * the counter exactly as they would if parsed on one thread.
+ * <p>
+ * Queues between the stages are bounded, so that reading does not get too
+ * far ahead of parsing and parsing does not get too far ahead of counting.
+ */
+class ParsePipeline
+{
+	/** Number of lines in each batch */
+	final static int BATCH_LINES = 2048;
+
+	/** Number of batches that may be waiting or complete, per parser thread */
+	private final static int BATCHES_PER_THREAD = 2;
+
+	private LogReader source;
+	private Thread readerThread;
+	private Thread[] parserThreads;
+
+	private BlockingQueue<Batch> unparsed;
+
+	// These variables may only be accessed when synchronized
+	private HashMap<Integer, Batch> parsed = new HashMap<Integer, Batch>();
+	private int nextSequence = 0;
+	private int maxAhead;
+	private boolean closed;
+
+	// These variables are used only by the consuming thread
+	private Batch current;
+	private int currentPos;
+	private boolean finished;
+
+	/** Batch of lines passed between stages. */
+	private static class Batch
+	{
+		private int sequence;
+		private String[] lines;
+		private int lineCount;
+		private boolean last;
+
+		private LogLine[] results;
+		private int resultCount;
+		private LogReader.LineCounts counts;
+		private IOException ioException;
+		private RuntimeException runtimeException;
+
+		private Batch(int sequence)
+		{
+			this.sequence = sequence;
+			lines = new String[BATCH_LINES];
+		}
+
+		/** Marker that tells a parser thread to stop */
+		private Batch()
+		{
+		}
+	}
+
+	/**
+	 * Starts the pipeline threads.
+	 * @param source Reader that supplies and parses lines
+	 * @param format Log format
+	 * @param threads Number of parser threads
+	 */
+	ParsePipeline(LogReader source, LogFormat format, int threads)
+	{
+		this.source = source;
+		maxAhead = threads * BATCHES_PER_THREAD;
+		unparsed = new ArrayBlockingQueue<Batch>(maxAhead + threads);
+
+		parserThreads = new Thread[threads];
+		for(int i=0; i<threads; i++)
+		{
+			final LogFormat threadFormat = format.copy();
+			parserThreads[i] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					parse(threadFormat);
+				}
+			}, "Log parser " + (i+1));
+			parserThreads[i].setDaemon(true);
+			parserThreads[i].start();
+		}
+
+		readerThread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				read();
+			}
+		}, "Log batch reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+
+	/**
+	 * Reader thread: splits input into batches.
+	 */
+	private void read()
+	{
+		try
+		{
+			int sequence = 0;
+			while(true)
+			{
+				Batch batch = new Batch(sequence++);
+				try
+				{
+					while(batch.lineCount < BATCH_LINES)
+					{
+						String line = source.readRawLine();
+						if(line == null)
+						{
+							batch.last = true;
+							break;
+						}
+						batch.lines[batch.lineCount++] = line;
+					}
+				}
+				catch(IOException e)
+				{
+					batch.ioException = e;
+					batch.last = true;
+				}
+				unparsed.put(batch);
+				if(batch.last)
+				{
+					break;
+				}
+			}
+			for(int i=0; i<parserThreads.length; i++)
+			{
+				unparsed.put(new Batch());
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// Pipeline has been closed
+		}
+	}
+
+	/**
+	 * Parser thread: parses batches and passes them on in order.
+	 * @param format Format (owned by this thread)
+	 */
+	private void parse(LogFormat format)
+	{
+		try
+		{
+			while(true)
+			{
+				Batch batch = unparsed.take();
+				if(batch.lines == null)
+				{
+					return;
+				}
+
+				batch.results = new LogLine[batch.lineCount];
+				batch.counts = new LogReader.LineCounts(true);
+				try
+				{
+					for(int i=0; i<batch.lineCount; i++)
+					{
+						LogLine result = source.parseLine(batch.lines[i], format,
+							batch.counts);
+						if(result != null)
+						{
+							batch.results[batch.resultCount++] = result;
+						}
+					}
+				}
+				catch(IOException e)
+				{
+					batch.ioException = e;
+				}
+				catch(RuntimeException e)
+				{
+					batch.runtimeException = e;
+				}
+				batch.lines = null;
+
+				synchronized(this)
+				{
+					// Wait if too far ahead of the consumer
+					while(batch.sequence - nextSequence >= maxAhead && !closed)
+					{
+						wait();
+					}
+					if(closed)
+					{
+						return;
+					}
+					parsed.put(batch.sequence, batch);
+					notifyAll();
+				}
+			}
+		}
+		catch(InterruptedException e)
+		{
+			// Pipeline has been closed
+		}
+	}
+
+	/**
+	 * Gets the next line in the original order.
+	 * @return Line or null if there are no more lines
+	 * @throws IOException Any error reading or parsing
+	 */
+	LogLine next() throws IOException
+	{
+		while(true)
+		{
+			if(finished)
+			{
+				return null;
+			}
+			if(current != null)
+			{
+				if(currentPos < current.resultCount)
+				{
+					return current.results[currentPos++];
+				}
+
+				// Batch used up
+				source.addCounts(current.counts);
+				if(current.ioException != null || current.runtimeException != null
+					|| current.last)
+				{
+					finished = true;
+					close();
+					if(current.ioException != null)
+					{
+						throw current.ioException;
+					}
+					if(current.runtimeException != null)
+					{
+						throw current.runtimeException;
+					}
+					return null;
+				}
+			}
+
+			synchronized(this)
+			{
+				while(!parsed.containsKey(nextSequence))
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+				current = parsed.remove(nextSequence);
+				nextSequence++;
+				notifyAll();
+			}
+			currentPos = 0;
+		}
+	}
+
+	/**
+	 * Stops all threads.
+	 */
+	void close()
+	{
+		synchronized(this)
+		{
+			closed = true;
+			notifyAll();
+		}
+		readerThread.interrupt();
+		for(Thread thread : parserThreads)
+		{
+			thread.interrupt();
+		}
+	}
+}
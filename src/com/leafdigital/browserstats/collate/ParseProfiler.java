@@ -0,0 +1,315 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Records how long each line takes to parse, for finding out whether a slow
+ * run is caused by a few unusual lines. Times are held in a log-linear
+ * histogram (each power of two is split into 8 buckets, so values are
+ * accurate to within 12.5%) along with the slowest few lines and the time
+ * taken by each stage of parsing them.
+ * <p>
+ * This may be used from several threads at once.
+ */
+class ParseProfiler
+{
+	/** Stages of parsing a line, in order. */
+	enum Stage
+	{
+		/** Splitting the line into fields (regular expression or JSON) */
+		REGEX("regex"),
+		/** Converting dates and other fields, including -normalise */
+		DATE("date"),
+		/** Assigning the category */
+		CATEGORY("category"),
+		/** Date range, -include/-exclude and sampling */
+		FILTER("filter");
+
+		private String name;
+
+		Stage(String name)
+		{
+			this.name = name;
+		}
+
+		/** @return Name for display */
+		String getName()
+		{
+			return name;
+		}
+	}
+
+	private final static Stage[] STAGES = Stage.values();
+
+	private final static int SUB_BITS = 3, SUB_BUCKETS = 1 << SUB_BITS;
+
+	/** Maximum length of captured lines */
+	private final static int MAX_TEXT = 300;
+
+	private AtomicLongArray histogram = new AtomicLongArray(64 * SUB_BUCKETS);
+	private AtomicLongArray stageTotals = new AtomicLongArray(STAGES.length);
+	private AtomicLong max = new AtomicLong();
+
+	private int keep;
+	private PriorityQueue<SlowLine> slowest;
+	/** Once enough lines are kept, only lines slower than this are added */
+	private volatile long threshold = 0;
+
+	/** Timing of a line while it is being parsed. */
+	static class Timing
+	{
+		private long[] times = new long[STAGES.length];
+		private int stage = 0;
+		private long last = System.nanoTime();
+
+		/** Marks the end of the current stage. */
+		void next()
+		{
+			long now = System.nanoTime();
+			times[stage++] = now - last;
+			last = now;
+		}
+	}
+
+	/** A slow line. */
+	private static class SlowLine implements Comparable<SlowLine>
+	{
+		private String text;
+		private long[] times;
+		private long total;
+
+		private SlowLine(String text, long[] times, long total)
+		{
+			this.text = text.length() > MAX_TEXT
+				? text.substring(0, MAX_TEXT) + "..." : text;
+			this.times = times;
+			this.total = total;
+		}
+
+		@Override
+		public int compareTo(SlowLine o)
+		{
+			return total < o.total ? -1 : total > o.total ? 1 : 0;
+		}
+	}
+
+	/**
+	 * @param keep Number of slowest lines to keep
+	 */
+	ParseProfiler(int keep)
+	{
+		this.keep = keep;
+		slowest = new PriorityQueue<SlowLine>(keep + 1);
+	}
+
+	/**
+	 * Records the time taken for a line. If parsing stopped part way through
+	 * a stage (e.g. because the line was invalid), the time since the last
+	 * stage ended is added to that stage.
+	 * @param line Line text
+	 * @param timing Timing started when the line was read
+	 */
+	void record(String line, Timing timing)
+	{
+		if(timing.stage < STAGES.length)
+		{
+			timing.times[timing.stage] += System.nanoTime() - timing.last;
+		}
+		long total = 0;
+		for(int i=0; i<STAGES.length; i++)
+		{
+			total += timing.times[i];
+			stageTotals.addAndGet(i, timing.times[i]);
+		}
+		histogram.incrementAndGet(getBucket(total));
+		while(true)
+		{
+			long previous = max.get();
+			if(total <= previous || max.compareAndSet(previous, total))
+			{
+				break;
+			}
+		}
+
+		if(total > threshold && keep > 0)
+		{
+			synchronized(slowest)
+			{
+				slowest.add(new SlowLine(line, timing.times, total));
+				if(slowest.size() > keep)
+				{
+					slowest.remove();
+					threshold = slowest.peek().total;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param nanos Time in nanoseconds
+	 * @return Histogram bucket
+	 */
+	static int getBucket(long nanos)
+	{
+		if(nanos < SUB_BUCKETS)
+		{
+			return (int)Math.max(0, nanos);
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int)((nanos >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @param bucket Histogram bucket
+	 * @return Lowest time (nanoseconds) in the bucket
+	 */
+	static long getBucketStart(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+		{
+			return bucket;
+		}
+		int shift = (bucket >> SUB_BITS) - 1;
+		return (long)(SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+	}
+
+	/**
+	 * @param nanos Time in nanoseconds
+	 * @return Time in microseconds or milliseconds for display
+	 */
+	private static String format(long nanos)
+	{
+		if(nanos < 1000000)
+		{
+			return String.format("%.1f", nanos / 1000.0) + "us";
+		}
+		return String.format("%.1f", nanos / 1000000.0) + "ms";
+	}
+
+	/**
+	 * @return Lines of text describing the results: percentiles, histogram,
+	 *   time in each stage, and the slowest lines
+	 */
+	List<String> getReport()
+	{
+		LinkedList<String> report = new LinkedList<String>();
+		long[] counts = new long[histogram.length()];
+		long lines = 0;
+		for(int i=0; i<counts.length; i++)
+		{
+			counts[i] = histogram.get(i);
+			lines += counts[i];
+		}
+		if(lines == 0)
+		{
+			return report;
+		}
+
+		// Percentiles (upper end of the bucket that contains each)
+		double[] percentiles = { 50, 90, 99, 99.9, 99.99 };
+		String[] labels = { "50%", "90%", "99%", "99.9%", "99.99%" };
+		StringBuilder summary = new StringBuilder("Parse time per line:");
+		long cumulative = 0;
+		int next = 0;
+		for(int i=0; i<counts.length && next<percentiles.length; i++)
+		{
+			cumulative += counts[i];
+			while(next < percentiles.length
+				&& cumulative >= lines * percentiles[next] / 100.0)
+			{
+				summary.append(" " + labels[next] + " <"
+					+ format(getBucketStart(i + 1)) + ",");
+				next++;
+			}
+		}
+		summary.append(" max " + format(max.get()));
+		report.add(summary.toString());
+
+		// Histogram, merging the buckets for each power of two
+		long largest = 0;
+		long[] groups = new long[counts.length / SUB_BUCKETS];
+		for(int i=0; i<counts.length; i++)
+		{
+			groups[i / SUB_BUCKETS] += counts[i];
+			largest = Math.max(largest, groups[i / SUB_BUCKETS]);
+		}
+		for(int group=0; group<groups.length; group++)
+		{
+			if(groups[group] == 0)
+			{
+				continue;
+			}
+			StringBuilder bar = new StringBuilder();
+			for(long j=0; j<(groups[group] * 40 + largest - 1) / largest; j++)
+			{
+				bar.append('#');
+			}
+			report.add("  " + format(getBucketStart(group * SUB_BUCKETS)) + " - "
+				+ format(getBucketStart((group + 1) * SUB_BUCKETS)) + ": "
+				+ groups[group] + " " + bar);
+		}
+
+		// Time in each stage
+		long total = 0;
+		for(int i=0; i<STAGES.length; i++)
+		{
+			total += stageTotals.get(i);
+		}
+		StringBuilder stages = new StringBuilder("Parse time by stage:");
+		for(int i=0; i<STAGES.length; i++)
+		{
+			stages.append(" " + STAGES[i].getName() + " "
+				+ Math.round(stageTotals.get(i) * 100.0 / Math.max(1, total)) + "%");
+		}
+		report.add(stages.toString());
+
+		// Slowest lines, slowest first
+		SlowLine[] lineList;
+		synchronized(slowest)
+		{
+			lineList = slowest.toArray(new SlowLine[slowest.size()]);
+		}
+		Arrays.sort(lineList, Collections.reverseOrder());
+		if(lineList.length > 0)
+		{
+			report.add("Slowest lines:");
+		}
+		for(SlowLine line : lineList)
+		{
+			int slowStage = 0;
+			StringBuilder times = new StringBuilder();
+			for(int i=0; i<STAGES.length; i++)
+			{
+				if(line.times[i] > line.times[slowStage])
+				{
+					slowStage = i;
+				}
+				times.append(i == 0 ? "" : ", ").append(STAGES[i].getName())
+					.append(' ').append(format(line.times[i]));
+			}
+			report.add("  " + format(line.total) + " (slowest: "
+				+ STAGES[slowStage].getName() + "; " + times + ")");
+			report.add("    [" + line.text + "]");
+		}
+		return report;
+	}
+}
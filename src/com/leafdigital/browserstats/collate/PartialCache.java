@@ -0,0 +1,339 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import com.leafdigital.browserstats.collate.Collate.TimePeriod;
+import com.leafdigital.browserstats.shared.Gzip;
+
+/**
+ * Cache of partial counts for individual input files, so that files which
+ * have already been processed with the same options do not need to be parsed
+ * again (for example, daily archive files included in many monthly reports).
+ * <p>
+ * Each cache file holds the counts for each period in one input file. It is
+ * named by a hash of the input file's size, modification time and samples of
+ * its content, together with a description of all options that affect the
+ * counts; if any of these change, the file is simply not found.
+ */
+class PartialCache
+{
+	private final static String EXTENSION = ".partial";
+
+	/** Changed whenever the cache file format changes */
+	private final static int VERSION = 1;
+
+	/** Number and size of blocks of content that are included in the hash */
+	private final static int SAMPLE_BLOCKS = 4, SAMPLE_SIZE = 65536;
+
+	private File folder;
+	private String config;
+	private TimePeriod period;
+	private HashMap<String, Category> categoryNames =
+		new HashMap<String, Category>();
+
+	private int hits, misses;
+	private long hitLines;
+
+	/** Counts for each period from a single input file. */
+	class Partial
+	{
+		private TreeMap<String, AgentCount> counts =
+			new TreeMap<String, AgentCount>();
+		private HashMap<String, Long> maxTimes = new HashMap<String, Long>();
+
+		/**
+		 * Counts a line.
+		 * @param line Line
+		 */
+		void count(LogLine line)
+		{
+			String name = periodKey(period.getPeriod(line.getIsoDate()));
+			AgentCount count = counts.get(name);
+			if(count == null)
+			{
+				count = new AgentCount();
+				counts.put(name, count);
+				maxTimes.put(name, Long.MIN_VALUE);
+			}
+			count.count(line.getUserAgent(), line.getIp(), line.getCategory(),
+				false, false);
+			long time = IsoDates.getSeconds(line.getIsoDate(), line.getIsoTime());
+			if(time > maxTimes.get(name))
+			{
+				maxTimes.put(name, time);
+			}
+		}
+
+		/**
+		 * Adds all counts to the counter, in period order.
+		 * @param counter Counter
+		 * @throws IOException Any error writing output
+		 */
+		void addTo(AgentCounter counter) throws IOException
+		{
+			for(Map.Entry<String, AgentCount> entry : counts.entrySet())
+			{
+				counter.add(periodName(entry.getKey()), entry.getValue(),
+					maxTimes.get(entry.getKey()));
+			}
+		}
+
+		/** @return Total number of lines counted */
+		long getLines()
+		{
+			long total = 0;
+			for(AgentCount count : counts.values())
+			{
+				total += count.getLines();
+			}
+			return total;
+		}
+	}
+
+	/**
+	 * @param folder Cache folder (created if it doesn't exist)
+	 * @param config Description of all options that affect counting
+	 * @param period Finest time period being counted
+	 * @param categories Categories
+	 * @throws IOException If the folder can't be created
+	 */
+	PartialCache(File folder, String config, TimePeriod period,
+		Category[] categories) throws IOException
+	{
+		if(!folder.isDirectory() && !folder.mkdirs())
+		{
+			throw new IOException("Unable to create cache folder: " + folder);
+		}
+		this.folder = folder;
+		this.config = "version " + VERSION + "\n" + config;
+		this.period = period;
+		for(Category c : categories)
+		{
+			categoryNames.put(c.getName(), c);
+		}
+	}
+
+	/** @return New empty partial counts for a file */
+	Partial newPartial()
+	{
+		return new Partial();
+	}
+
+	/**
+	 * Gets the cache file for an input file.
+	 * @param input Input file
+	 * @return Cache file (which may not exist)
+	 * @throws IOException Any error reading the input file
+	 */
+	File getCacheFile(File input) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new Error(e);
+		}
+		digest.update(config.getBytes("UTF-8"));
+
+		RandomAccessFile file = new RandomAccessFile(input, "r");
+		try
+		{
+			long length = file.length();
+			digest.update(("\n" + length + " " + input.lastModified() + "\n")
+				.getBytes("UTF-8"));
+
+			// Hash blocks spread evenly through the file, including the start and
+			// the end
+			byte[] buffer = new byte[SAMPLE_SIZE];
+			long last = Math.max(0, length - SAMPLE_SIZE);
+			for(int i=0; i<SAMPLE_BLOCKS; i++)
+			{
+				long pos = last * i / (SAMPLE_BLOCKS - 1);
+				file.seek(pos);
+				int size = (int)Math.min(SAMPLE_SIZE, length - pos);
+				file.readFully(buffer, 0, size);
+				digest.update(buffer, 0, size);
+			}
+		}
+		finally
+		{
+			file.close();
+		}
+
+		StringBuilder name = new StringBuilder();
+		for(byte b : digest.digest())
+		{
+			name.append(String.format("%02x", b & 0xff));
+		}
+		name.append(EXTENSION);
+		return new File(folder, name.toString());
+	}
+
+	/**
+	 * Loads partial counts from the cache.
+	 * @param cacheFile Cache file
+	 * @return Counts or null if not in cache (or the cache file is unreadable)
+	 */
+	Partial load(File cacheFile)
+	{
+		if(!cacheFile.exists())
+		{
+			misses++;
+			return null;
+		}
+		try
+		{
+			DataInputStream in = new DataInputStream(Gzip.decompress(
+				new FileInputStream(cacheFile)));
+			try
+			{
+				if(in.readInt() != VERSION)
+				{
+					throw new IOException("Unsupported version");
+				}
+				Partial partial = new Partial();
+				int periods = in.readInt();
+				for(int i=0; i<periods; i++)
+				{
+					String name = in.readUTF();
+					partial.maxTimes.put(name, in.readLong());
+					partial.counts.put(name, AgentCount.read(in, categoryNames));
+				}
+				hits++;
+				hitLines += partial.getLines();
+				return partial;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("\n\nIgnoring invalid cache file " + cacheFile
+				+ ": " + e.getMessage());
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Saves partial counts to the cache. The file is written under a temporary
+	 * name and then renamed, so an interrupted run cannot leave a partial file.
+	 * @param cacheFile Cache file
+	 * @param partial Counts
+	 * @throws IOException Any error writing
+	 */
+	void save(File cacheFile, Partial partial) throws IOException
+	{
+		File temp = new File(folder, cacheFile.getName() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+			Gzip.compress(new FileOutputStream(temp), Gzip.DEFAULT_LEVEL)));
+		try
+		{
+			out.writeInt(VERSION);
+			out.writeInt(partial.counts.size());
+			for(Map.Entry<String, AgentCount> entry : partial.counts.entrySet())
+			{
+				out.writeUTF(entry.getKey());
+				out.writeLong(partial.maxTimes.get(entry.getKey()));
+				entry.getValue().write(out);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		if(!temp.renameTo(cacheFile))
+		{
+			temp.delete();
+			throw new IOException("Unable to write cache file: " + cacheFile);
+		}
+	}
+
+	/** @return Number of files loaded from the cache */
+	int getHits()
+	{
+		return hits;
+	}
+
+	/** @return Number of files not found in the cache */
+	int getMisses()
+	{
+		return misses;
+	}
+
+	/** @return Number of lines counted in files loaded from the cache */
+	long getHitLines()
+	{
+		return hitLines;
+	}
+
+	/**
+	 * Writes a string that may be longer than the limit of writeUTF.
+	 * @param out Output
+	 * @param text String
+	 * @throws IOException Any error writing
+	 */
+	static void writeString(DataOutputStream out, String text)
+		throws IOException
+	{
+		byte[] bytes = text.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 * @param in Input
+	 * @return String
+	 * @throws IOException Any error reading
+	 */
+	static String readString(DataInputStream in) throws IOException
+	{
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * @param period Period name, or null in ALL mode
+	 * @return Key used in cache files
+	 */
+	private static String periodKey(String period)
+	{
+		return period == null ? "" : period;
+	}
+
+	/**
+	 * @param key Key used in cache files
+	 * @return Period name, or null in ALL mode
+	 */
+	private static String periodName(String key)
+	{
+		return key.equals("") ? null : key;
+	}
+}
@@ -0,0 +1,221 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.*;
+
+/**
+ * Counts user agents over a sliding window of recent log time, such as the
+ * last five minutes. The window is divided into a fixed number of buckets;
+ * each agent has a ring of counts with one entry per bucket, and entries are
+ * reused as the log's clock moves on, so counting a line takes constant time.
+ * Agents with no lines in the window are removed from time to time, so memory
+ * is limited by the number of agents active in the window.
+ * <p>
+ * Methods are synchronized so that the window can be written by another
+ * thread while lines are still being counted.
+ */
+class SlidingWindow
+{
+	/** Number of buckets in each window */
+	final static int BUCKETS = 60;
+
+	/** Minimum number of lines between removing inactive agents */
+	private final static int SWEEP_LINES = 65536;
+
+	private String name;
+	private long bucketSeconds;
+	private Category[] categories;
+	private HashMap<Category, Integer> categoryIndex =
+		new HashMap<Category, Integer>();
+	private int width;
+
+	private HashMap<String, Ring> agents = new HashMap<String, Ring>();
+	private long latestBucket = Long.MIN_VALUE, latestTime = Long.MIN_VALUE;
+	private int linesSinceSweep = 0;
+
+	/** Counts for a single agent. */
+	private class Ring
+	{
+		/** Bucket number currently held in each slot */
+		private long[] buckets = new long[BUCKETS];
+		/**
+		 * Counts for each slot: lines, visits, then each category
+		 * ({@link SlidingWindow#width} values per slot)
+		 */
+		private int[] counts = new int[BUCKETS * width];
+		/** Latest bucket in which this agent was counted */
+		private long newest = Long.MIN_VALUE;
+
+		private Ring()
+		{
+			Arrays.fill(buckets, Long.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * @param name Name of window (used in output filenames)
+	 * @param seconds Length of window in seconds
+	 * @param categories Categories
+	 */
+	SlidingWindow(String name, long seconds, Category[] categories)
+	{
+		this.name = name;
+		this.bucketSeconds = Math.max(1, (seconds + BUCKETS - 1) / BUCKETS);
+		this.categories = categories;
+		for(int i=0; i<categories.length; i++)
+		{
+			categoryIndex.put(categories[i], i);
+		}
+		width = 2 + categories.length;
+	}
+
+	/** @return Name of window */
+	String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * Counts a log line. Lines that are older than the window are ignored.
+	 * @param agent User-agent
+	 * @param c Category
+	 * @param visit True if this line starts a new visit
+	 * @param time Time of line (seconds since 1970)
+	 */
+	synchronized void count(String agent, Category c, boolean visit, long time)
+	{
+		long bucket = time / bucketSeconds;
+		if(time % bucketSeconds < 0)
+		{
+			bucket--;
+		}
+		if(bucket > latestBucket)
+		{
+			latestBucket = bucket;
+		}
+		else if(bucket <= latestBucket - BUCKETS)
+		{
+			return;
+		}
+		latestTime = Math.max(latestTime, time);
+
+		Ring ring = agents.get(agent);
+		if(ring == null)
+		{
+			ring = new Ring();
+			agents.put(agent, ring);
+		}
+		int slot = (int)(bucket % BUCKETS);
+		if(slot < 0)
+		{
+			slot += BUCKETS;
+		}
+		int base = slot * width;
+		if(ring.buckets[slot] != bucket)
+		{
+			// Slot held an expired bucket
+			ring.buckets[slot] = bucket;
+			Arrays.fill(ring.counts, base, base + width, 0);
+		}
+		ring.counts[base]++;
+		if(visit)
+		{
+			ring.counts[base + 1]++;
+		}
+		Integer index = categoryIndex.get(c);
+		if(index != null)
+		{
+			ring.counts[base + 2 + index]++;
+		}
+		if(bucket > ring.newest)
+		{
+			ring.newest = bucket;
+		}
+
+		// Occasionally drop inactive agents (the interval grows with the number
+		// of agents so that this costs constant time per line on average)
+		linesSinceSweep++;
+		if(linesSinceSweep >= SWEEP_LINES && linesSinceSweep >= agents.size())
+		{
+			sweep();
+		}
+	}
+
+	/** Removes agents that have no lines in the window. */
+	private void sweep()
+	{
+		for(Iterator<Ring> i=agents.values().iterator(); i.hasNext();)
+		{
+			if(i.next().newest <= latestBucket - BUCKETS)
+			{
+				i.remove();
+			}
+		}
+		linesSinceSweep = 0;
+	}
+
+	/**
+	 * @return Date of the latest line counted (ISO format), or null if none
+	 */
+	synchronized String getIsoDate()
+	{
+		if(latestTime == Long.MIN_VALUE)
+		{
+			return null;
+		}
+		long days = latestTime / IsoDates.SECONDS_PER_DAY;
+		if(latestTime % IsoDates.SECONDS_PER_DAY < 0)
+		{
+			days--;
+		}
+		return IsoDates.getIsoDate(days);
+	}
+
+	/**
+	 * @return Total counts for each agent over the current window
+	 */
+	synchronized AgentCount getCounts()
+	{
+		sweep();
+		AgentCount result = new AgentCount();
+		int[] totals = new int[width];
+		int[] categoryTotals = new int[categories.length];
+		for(Map.Entry<String, Ring> entry : agents.entrySet())
+		{
+			Ring ring = entry.getValue();
+			Arrays.fill(totals, 0);
+			for(int slot=0; slot<BUCKETS; slot++)
+			{
+				if(ring.buckets[slot] > latestBucket - BUCKETS)
+				{
+					int base = slot * width;
+					for(int i=0; i<width; i++)
+					{
+						totals[i] += ring.counts[base + i];
+					}
+				}
+			}
+			System.arraycopy(totals, 2, categoryTotals, 0, categories.length);
+			result.add(entry.getKey(), totals[0], totals[1], categories,
+				categoryTotals);
+		}
+		return result;
+	}
+}
@@ -42,18 +42,35 @@ public class StandardFormats
 			Document doc = XML.parse(StandardFormats.class, "formats.xml");
 			for(Element child : XML.getChildren(doc.getDocumentElement()))
 			{
-				LogFormat format = new LogFormat(XML.getChildText(child, "line", false),
-					XML.getRequiredAttribute(child, "ip"),
-					XML.getRequiredAttribute(child, "date"),
-					XML.getRequiredAttribute(child, "time"),
-					XML.getRequiredAttribute(child, "agent"),
-					XML.getRequiredAttribute(child, "path"),
-					XML.getRequiredAttribute(child, "status"),
-					XML.getRequiredAttribute(child, "dateformat"),
-					XML.getRequiredAttribute(child, "timeformat"));
-				if(XML.hasChild(child, "skip"))
+				LogFormat format;
+				if(child.getTagName().equals("jsonformat"))
 				{
-					format.setSkip(XML.getChildText(child, "skip", false));
+					format = new JsonLogFormat(XML.getRequiredAttribute(child, "ip"),
+						XML.getRequiredAttribute(child, "time"),
+						XML.getRequiredAttribute(child, "agent"),
+						XML.getRequiredAttribute(child, "path"),
+						XML.getRequiredAttribute(child, "status"),
+						XML.getRequiredAttribute(child, "timeformat"));
+				}
+				else
+				{
+					format = new LogFormat(XML.getChildText(child, "line", false),
+						XML.getRequiredAttribute(child, "ip"),
+						XML.getRequiredAttribute(child, "date"),
+						XML.getRequiredAttribute(child, "time"),
+						XML.getRequiredAttribute(child, "agent"),
+						XML.getRequiredAttribute(child, "path"),
+						XML.getRequiredAttribute(child, "status"),
+						XML.getRequiredAttribute(child, "dateformat"),
+						XML.getRequiredAttribute(child, "timeformat"));
+					if(XML.hasChild(child, "skip"))
+					{
+						format.setSkip(XML.getChildText(child, "skip", false));
+					}
+				}
+				if(child.hasAttribute("host"))
+				{
+					format.setHostField(child.getAttribute("host"));
 				}
 				Element[] children = XML.getChildren(child, "sample");
 				for(Element sample : children)
@@ -0,0 +1,734 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.*;
+
+/**
+ * Receives log lines sent over syslog, on any number of TCP and UDP ports.
+ * Messages may use RFC 5424 or traditional BSD (RFC 3164) headers, which
+ * are removed to leave the original log line. TCP connections may use
+ * either octet-counting or newline-terminated framing (RFC 6587).
+ * <p>
+ * Sockets are handled with non-blocking I/O on a small number of selector
+ * threads. Received lines are placed in a queue; if the queue is full
+ * because lines are not being processed quickly enough, further messages
+ * are dropped rather than holding up the senders.
+ */
+class SyslogListener
+{
+	/** Maximum size of a single message (bytes) */
+	private final static int MAX_MESSAGE = 65536;
+
+	/** Maximum number of lines waiting to be processed */
+	private final static int QUEUE_SIZE = 65536;
+
+	/** Time between checks for closing (ms) */
+	private final static int POLL_INTERVAL = 250;
+
+	private final static Pattern REGEX_BSD_HEADER = Pattern.compile(
+		"^[A-Z][a-z]{2} [ 0-9][0-9] [0-9]{2}:[0-9]{2}:[0-9]{2} "
+		+ "(?:[^ ]+ )?[^ :\\[\\]]+(?:\\[[0-9]*\\])?: ");
+
+	private LinkedList<Endpoint> endpoints = new LinkedList<Endpoint>();
+	private Worker[] workers;
+	private int nextWorker;
+	private Charset charset;
+
+	private ArrayBlockingQueue<String> queue =
+		new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	private AtomicInteger received = new AtomicInteger(),
+		dropped = new AtomicInteger(), invalid = new AtomicInteger(),
+		connections = new AtomicInteger();
+
+	private volatile boolean close, finished;
+	private volatile IOException error;
+
+	/** Address and protocol to listen on. */
+	private static class Endpoint
+	{
+		private boolean tcp;
+		private InetSocketAddress address;
+
+		@Override
+		public String toString()
+		{
+			return (tcp ? "tcp:" : "udp:") + address.getAddress().getHostAddress()
+				+ ":" + address.getPort();
+		}
+	}
+
+	/** State of a TCP connection. */
+	private static class Connection
+	{
+		private ByteBuffer buffer = ByteBuffer.allocate(MAX_MESSAGE + 16);
+		private boolean skipping;
+	}
+
+	/**
+	 * Adds an address to listen on.
+	 * @param spec Protocol and port, optionally with address, e.g. tcp:5140,
+	 *   udp:127.0.0.1:514, tcp:[::1]:5140
+	 * @throws IllegalArgumentException If the text isn't valid
+	 */
+	void addEndpoint(String spec) throws IllegalArgumentException
+	{
+		Endpoint endpoint = new Endpoint();
+		String rest;
+		if(spec.startsWith("tcp:"))
+		{
+			endpoint.tcp = true;
+		}
+		else if(!spec.startsWith("udp:"))
+		{
+			throw new IllegalArgumentException(
+				"Invalid -listen (must start tcp: or udp:): " + spec);
+		}
+		rest = spec.substring(4);
+
+		String host = null;
+		int colon = rest.lastIndexOf(':');
+		if(colon != -1)
+		{
+			host = rest.substring(0, colon);
+			if(host.startsWith("[") && host.endsWith("]"))
+			{
+				host = host.substring(1, host.length() - 1);
+			}
+			rest = rest.substring(colon + 1);
+		}
+		int port;
+		try
+		{
+			port = Integer.parseInt(rest);
+		}
+		catch(NumberFormatException e)
+		{
+			port = -1;
+		}
+		if(port < 0 || port > 65535)
+		{
+			throw new IllegalArgumentException("Invalid -listen port: " + spec);
+		}
+		try
+		{
+			endpoint.address = host == null ? new InetSocketAddress(port)
+				: new InetSocketAddress(InetAddress.getByName(host), port);
+		}
+		catch(UnknownHostException e)
+		{
+			throw new IllegalArgumentException("Invalid -listen address: " + spec);
+		}
+		endpoints.add(endpoint);
+	}
+
+	/**
+	 * Opens all the sockets and starts receiving messages.
+	 * @param encoding Character encoding of messages
+	 * @param threads Number of selector threads
+	 * @throws IOException If a socket cannot be opened
+	 */
+	void start(String encoding, int threads) throws IOException
+	{
+		charset = Charset.forName(encoding);
+		workers = new Worker[threads];
+		for(int i=0; i<threads; i++)
+		{
+			workers[i] = new Worker(i);
+		}
+		try
+		{
+			for(Endpoint endpoint : endpoints)
+			{
+				try
+				{
+					if(endpoint.tcp)
+					{
+						ServerSocketChannel server = ServerSocketChannel.open();
+						workers[0].channels.add(server);
+						server.socket().setReuseAddress(true);
+						server.socket().bind(endpoint.address);
+						server.configureBlocking(false);
+						server.register(workers[0].selector, SelectionKey.OP_ACCEPT);
+					}
+					else
+					{
+						DatagramChannel datagram = DatagramChannel.open();
+						workers[0].channels.add(datagram);
+						datagram.socket().bind(endpoint.address);
+						datagram.configureBlocking(false);
+						datagram.register(workers[0].selector, SelectionKey.OP_READ);
+					}
+				}
+				catch(IOException e)
+				{
+					throw new IOException("Cannot listen on " + endpoint + ": "
+						+ e.getMessage());
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			for(Worker worker : workers)
+			{
+				worker.closeAll();
+			}
+			throw e;
+		}
+		for(Worker worker : workers)
+		{
+			worker.start();
+		}
+	}
+
+	/**
+	 * Gets the next received line, waiting until one arrives.
+	 * @return Line or null once the listener has been closed and all
+	 *   received lines have been returned
+	 * @throws IOException If listening failed
+	 */
+	String readLine() throws IOException
+	{
+		while(true)
+		{
+			// Check finished before polling, so no lines can be missed
+			boolean wasFinished = finished;
+			String line;
+			try
+			{
+				line = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException("Interrupted");
+			}
+			if(line != null)
+			{
+				return line;
+			}
+			if(wasFinished)
+			{
+				if(error != null)
+				{
+					throw error;
+				}
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Stops listening and closes all sockets. Lines already received can
+	 * still be read. May be called from any thread.
+	 */
+	void close()
+	{
+		if(workers == null)
+		{
+			return;
+		}
+		close = true;
+		for(Worker worker : workers)
+		{
+			worker.selector.wakeup();
+		}
+		for(Worker worker : workers)
+		{
+			try
+			{
+				worker.join();
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+		finished = true;
+	}
+
+	/** @return Description of the addresses being listened on */
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		for(Endpoint endpoint : endpoints)
+		{
+			if(out.length() > 0)
+			{
+				out.append(", ");
+			}
+			out.append(endpoint);
+		}
+		return out.toString();
+	}
+
+	/** @return Number of messages received */
+	int getReceived()
+	{
+		return received.get();
+	}
+
+	/** @return Number of messages dropped because the queue was full */
+	int getDropped()
+	{
+		return dropped.get();
+	}
+
+	/** @return Number of messages that could not be understood */
+	int getInvalid()
+	{
+		return invalid.get();
+	}
+
+	/** @return Number of TCP connections accepted */
+	int getConnections()
+	{
+		return connections.get();
+	}
+
+	/**
+	 * Assigns a new connection to one of the worker threads.
+	 * @param channel New connection
+	 */
+	private synchronized void assign(SocketChannel channel)
+	{
+		Worker worker = workers[nextWorker];
+		nextWorker = (nextWorker + 1) % workers.length;
+		worker.pending.add(channel);
+		worker.selector.wakeup();
+	}
+
+	/**
+	 * Handles a single syslog message.
+	 * @param data Buffer containing message
+	 * @param offset Offset of message in buffer
+	 * @param length Length of message
+	 */
+	private void message(byte[] data, int offset, int length)
+	{
+		received.incrementAndGet();
+		String line = getLogLine(new String(data, offset, length, charset));
+		if(line == null)
+		{
+			invalid.incrementAndGet();
+			return;
+		}
+		if(!queue.offer(line))
+		{
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Removes the syslog header from a message.
+	 * @param message Syslog message
+	 * @return Log line, or null if the message is not valid or is empty
+	 */
+	static String getLogLine(String message)
+	{
+		// Priority
+		int pos = message.indexOf('>');
+		if(!message.startsWith("<") || pos < 2 || pos > 4)
+		{
+			return null;
+		}
+		for(int i=1; i<pos; i++)
+		{
+			if(!Character.isDigit(message.charAt(i)))
+			{
+				return null;
+			}
+		}
+		pos++;
+
+		String line;
+		if(message.startsWith("1 ", pos))
+		{
+			// RFC 5424: skip version, then timestamp, hostname, app-name, procid,
+			// msgid
+			pos += 2;
+			for(int field=0; field<5; field++)
+			{
+				pos = message.indexOf(' ', pos) + 1;
+				if(pos == 0)
+				{
+					return null;
+				}
+			}
+
+			// Skip structured data
+			if(message.startsWith("-", pos))
+			{
+				pos++;
+			}
+			else
+			{
+				while(message.startsWith("[", pos))
+				{
+					pos = skipElement(message, pos);
+					if(pos == -1)
+					{
+						return null;
+					}
+				}
+			}
+			if(pos == message.length())
+			{
+				return null;
+			}
+			if(message.charAt(pos) != ' ')
+			{
+				return null;
+			}
+			line = message.substring(pos + 1);
+			// Remove byte order mark
+			if(line.length() > 0 && line.charAt(0) == '\uFEFF')
+			{
+				line = line.substring(1);
+			}
+		}
+		else
+		{
+			// BSD syslog
+			Matcher m = REGEX_BSD_HEADER.matcher(message);
+			m.region(pos, message.length());
+			if(!m.lookingAt())
+			{
+				return null;
+			}
+			line = message.substring(m.end());
+		}
+
+		// Line breaks would split the line when it is read
+		line = line.replace('\n', ' ').replace('\r', ' ').trim();
+		return line.length() == 0 ? null : line;
+	}
+
+	/**
+	 * Skips an RFC 5424 structured data element.
+	 * @param message Message
+	 * @param pos Position of opening [
+	 * @return Position after closing ], or -1 if there isn't one
+	 */
+	private static int skipElement(String message, int pos)
+	{
+		boolean quoted = false;
+		for(pos++; pos < message.length(); pos++)
+		{
+			char c = message.charAt(pos);
+			if(quoted && c == '\\')
+			{
+				pos++;
+			}
+			else if(c == '"')
+			{
+				quoted = !quoted;
+			}
+			else if(c == ']' && !quoted)
+			{
+				return pos + 1;
+			}
+		}
+		return -1;
+	}
+
+	/** Thread that handles some of the sockets. */
+	private class Worker extends Thread
+	{
+		private Selector selector;
+		private LinkedList<Channel> channels = new LinkedList<Channel>();
+		private ConcurrentLinkedQueue<SocketChannel> pending =
+			new ConcurrentLinkedQueue<SocketChannel>();
+		private ByteBuffer datagramBuffer = ByteBuffer.allocate(MAX_MESSAGE);
+
+		private Worker(int index) throws IOException
+		{
+			super("SyslogListener" + index);
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while(!close)
+				{
+					selector.select();
+					SocketChannel channel;
+					while((channel = pending.poll()) != null)
+					{
+						channels.add(channel);
+						channel.register(selector, SelectionKey.OP_READ, new Connection());
+					}
+					for(Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+						i.hasNext();)
+					{
+						SelectionKey key = i.next();
+						i.remove();
+						if(!key.isValid())
+						{
+							continue;
+						}
+						if(key.isAcceptable())
+						{
+							accept((ServerSocketChannel)key.channel());
+						}
+						else if(key.channel() instanceof DatagramChannel)
+						{
+							receive((DatagramChannel)key.channel());
+						}
+						else
+						{
+							read(key);
+						}
+					}
+				}
+			}
+			catch(IOException e)
+			{
+				error = e;
+				close = true;
+			}
+			finally
+			{
+				closeAll();
+			}
+		}
+
+		private void closeAll()
+		{
+			channels.addAll(pending);
+			for(Channel channel : channels)
+			{
+				try
+				{
+					channel.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+			try
+			{
+				selector.close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+
+		private void accept(ServerSocketChannel server) throws IOException
+		{
+			SocketChannel channel = server.accept();
+			if(channel == null)
+			{
+				return;
+			}
+			connections.incrementAndGet();
+			channel.configureBlocking(false);
+			assign(channel);
+		}
+
+		private void receive(DatagramChannel channel) throws IOException
+		{
+			while(true)
+			{
+				datagramBuffer.clear();
+				if(channel.receive(datagramBuffer) == null)
+				{
+					return;
+				}
+				int length = datagramBuffer.position();
+				byte[] data = datagramBuffer.array();
+				while(length > 0 && (data[length-1] == '\n' || data[length-1] == 0))
+				{
+					length--;
+				}
+				message(data, 0, length);
+			}
+		}
+
+		private void read(SelectionKey key)
+		{
+			SocketChannel channel = (SocketChannel)key.channel();
+			Connection connection = (Connection)key.attachment();
+			int read;
+			try
+			{
+				read = channel.read(connection.buffer);
+			}
+			catch(IOException e)
+			{
+				// Sender has gone away; discard any partial message
+				disconnect(key);
+				return;
+			}
+			if(read == -1)
+			{
+				// A final message may not be terminated
+				if(!connection.skipping && connection.buffer.position() > 0
+					&& !Character.isDigit(connection.buffer.get(0)))
+				{
+					message(connection.buffer.array(), 0, connection.buffer.position());
+				}
+				disconnect(key);
+				return;
+			}
+			if(!frames(connection))
+			{
+				// Framing is broken, so nothing further can be trusted
+				invalid.incrementAndGet();
+				disconnect(key);
+			}
+		}
+
+		/**
+		 * Handles all complete messages in a connection's buffer.
+		 * @param connection Connection
+		 * @return False if the data is not correctly framed
+		 */
+		private boolean frames(Connection connection)
+		{
+			ByteBuffer buffer = connection.buffer;
+			byte[] data = buffer.array();
+			int end = buffer.position(), pos = 0;
+			while(pos < end)
+			{
+				if(connection.skipping)
+				{
+					// Discarding the rest of a message that was too long
+					int lf = indexOf(data, pos, end, (byte)'\n');
+					if(lf == -1)
+					{
+						pos = end;
+						break;
+					}
+					connection.skipping = false;
+					pos = lf + 1;
+				}
+				else if(data[pos] >= '0' && data[pos] <= '9')
+				{
+					// Octet counting: length, space, message
+					int space = indexOf(data, pos, Math.min(end, pos + 7), (byte)' ');
+					if(space == -1)
+					{
+						if(end - pos >= 7)
+						{
+							return false;
+						}
+						break;
+					}
+					int length = 0;
+					for(int i=pos; i<space; i++)
+					{
+						if(data[i] < '0' || data[i] > '9')
+						{
+							return false;
+						}
+						length = length * 10 + data[i] - '0';
+					}
+					if(length > MAX_MESSAGE)
+					{
+						return false;
+					}
+					if(space + 1 + length > end)
+					{
+						break;
+					}
+					message(data, space + 1, length);
+					pos = space + 1 + length;
+				}
+				else if(data[pos] == '\n' || data[pos] == '\r' || data[pos] == 0)
+				{
+					pos++;
+				}
+				else
+				{
+					// Non-transparent framing: message ends with line feed
+					int lf = indexOf(data, pos, end, (byte)'\n');
+					if(lf == -1)
+					{
+						if(pos == 0 && end == data.length)
+						{
+							// Too long to hold
+							received.incrementAndGet();
+							invalid.incrementAndGet();
+							connection.skipping = true;
+							pos = end;
+						}
+						break;
+					}
+					int length = lf - pos;
+					if(length > 0 && data[lf-1] == '\r')
+					{
+						length--;
+					}
+					message(data, pos, length);
+					pos = lf + 1;
+				}
+			}
+
+			// Move any partial message to start of buffer
+			System.arraycopy(data, pos, data, 0, end - pos);
+			buffer.position(end - pos);
+			return true;
+		}
+
+		private void disconnect(SelectionKey key)
+		{
+			key.cancel();
+			channels.remove(key.channel());
+			try
+			{
+				key.channel().close();
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * @param data Data
+	 * @param start Start position
+	 * @param end End position (exclusive)
+	 * @param b Byte to find
+	 * @return Position of first matching byte, or -1 if none
+	 */
+	private static int indexOf(byte[] data, int start, int end, byte b)
+	{
+		for(int i=start; i<end; i++)
+		{
+			if(data[i] == b)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+}
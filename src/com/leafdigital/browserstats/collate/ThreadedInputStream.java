@@ -19,134 +19,84 @@ Copyright 2010 Samuel Marshall.
 package com.leafdigital.browserstats.collate;
 
 import java.io.*;
+import java.util.LinkedList;
 
-/** Input stream that uses a separate thread to read as fast as it can. */
-public class ThreadedInputStream extends InputStream implements Runnable
+/**
+ * Input stream for a single file, whose data is read in advance by the
+ * separate thread of an {@link InputPrefetcher}.
+ */
+public class ThreadedInputStream extends InputStream
 {
-	private final static int NUMBUFFERS = 64, BUFFERSIZE = 65536;
+	private InputPrefetcher prefetcher;
+	private Object synch;
 
-	private InputStream input;
-
-	private byte[][] buffers = new byte[NUMBUFFERS][BUFFERSIZE];
-
-	// readXX variables may only be accessed by the reading thread
-	private int readEndBuffer = -999, readEndBufferSize = -1;
-	private int readCurrentBuffer = -1, readCurrentPos = BUFFERSIZE,
-		readLastSafeBuffer = -1;
+	/** Buffer filled by the read thread */
+	private static class Chunk
+	{
+		byte[] data;
+		int size;
 
-	private Object synch = new Object();
+		Chunk(byte[] data, int size)
+		{
+			this.data = data;
+			this.size = size;
+		}
+	}
 
-	// writeXX variables can be accessed by both threads, but only when
+	// These variables can be accessed by both threads, but only when
 	// synchronized
-	private boolean writeGotData = false;
-	private int writeLastBuffer = -1, writeLastSafeBuffer = NUMBUFFERS-1,
-		writeEndBufferSize=-1;
-
-	private boolean close, closed;
-
+	private LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+	private boolean ended, closed;
 	private IOException exception = null;
 
-	private long blockTime = 0, idleTime = 0;
+	// readXX variables may only be accessed by the parse thread
+	private byte[] readBuffer = null;
+	private int readPos = 0, readSize = 0;
 
 	/**
-	 * @param input Input stream that this class buffers
-	 * @throws UnsupportedEncodingException If the encoding is unknown
+	 * @param prefetcher Prefetcher that fills this stream
 	 */
-	public ThreadedInputStream(InputStream input) throws UnsupportedEncodingException
+	ThreadedInputStream(InputPrefetcher prefetcher)
 	{
-		this.input = input;
+		this.prefetcher = prefetcher;
+		this.synch = prefetcher.getSynch();
+	}
 
-		(new Thread(this, "ThreadedInputStream")).start();
+	/**
+	 * Adds a buffer of data. Called by read thread while synchronized.
+	 * @param buffer Buffer
+	 * @param size Number of bytes of data in buffer
+	 */
+	void add(byte[] buffer, int size)
+	{
+		chunks.addLast(new Chunk(buffer, size));
 	}
 
-	@Override
-	public void run()
+	/**
+	 * Marks end of file. Called by read thread while synchronized.
+	 */
+	void end()
 	{
-		try
-		{
-			int writeBuffer = -1;
-			while(true)
-			{
-				synchronized(synch)
-				{
-					// Did we just write a buffer?
-					if(writeBuffer != -1)
-					{
-						writeLastBuffer = writeBuffer;
-						if(!writeGotData)
-						{
-							writeGotData = true;
-							synch.notifyAll();
-						}
-					}
+		ended = true;
+	}
 
-					// Wait until we have a buffer available to fill
-					while(writeLastBuffer == writeLastSafeBuffer && !close)
-					{
-						long before = System.currentTimeMillis();
-						synch.wait();
-						idleTime += System.currentTimeMillis() - before;
-					}
-					if(close)
-					{
-						return;
-					}
-					writeBuffer = writeLastBuffer+1;
-					if(writeBuffer >= NUMBUFFERS)
-					{
-						writeBuffer = 0;
-					}
-				}
+	/**
+	 * Marks an error. Called by read thread while synchronized.
+	 * @param e Exception that will be thrown to the reader
+	 */
+	void fail(IOException e)
+	{
+		exception = e;
+		ended = true;
+	}
 
-				// Read from stream into that buffer
-				int pos = 0;
-				while(pos < BUFFERSIZE)
-				{
-					int read = input.read(buffers[writeBuffer], pos, BUFFERSIZE-pos);
-					if(read == -1)
-					{
-						// EOF
-						synchronized(synch)
-						{
-							if(pos == 0)
-							{
-								// When failure is at start of buffer, call it end of last one
-								writeEndBufferSize = BUFFERSIZE;
-								return;
-							}
-							else
-							{
-								// Mark failure position and update last-buffer count
-								writeEndBufferSize = pos;
-								writeLastBuffer = writeBuffer;
-								return;
-							}
-						}
-					}
-					pos+=read;
-				}
-			}
-		}
-		catch(IOException e)
-		{
-			synchronized(synch)
-			{
-				exception = e;
-				writeEndBufferSize = BUFFERSIZE;
-			}
-		}
-		catch(InterruptedException e)
-		{
-		}
-		finally
-		{
-			synchronized(synch)
-			{
-				writeGotData = true;
-				closed = true;
-				synch.notifyAll();
-			}
-		}
+	/**
+	 * Called by read thread while synchronized.
+	 * @return True if the parse thread has closed this stream
+	 */
+	boolean isClosed()
+	{
+		return closed;
 	}
 
 	@Override
@@ -154,20 +104,23 @@ public class ThreadedInputStream extends InputStream implements Runnable
 	{
 		synchronized(synch)
 		{
-			close = true;
-			synch.notifyAll();
-			while(!closed)
+			if(closed)
 			{
-				try
-				{
-					synch.wait();
-				}
-				catch(InterruptedException e)
-				{
-				}
+				return;
+			}
+			closed = true;
+			if(readBuffer != null)
+			{
+				prefetcher.releaseBuffer(readBuffer);
+				readBuffer = null;
+			}
+			for(Chunk chunk : chunks)
+			{
+				prefetcher.releaseBuffer(chunk.data);
 			}
+			chunks.clear();
+			prefetcher.streamClosed();
 		}
-		input.close();
 	}
 
 	private boolean moveReadBuffer() throws IOException
@@ -175,71 +128,42 @@ public class ThreadedInputStream extends InputStream implements Runnable
 		// Unusual (buffer-end) operation, so synchronize
 		synchronized(synch)
 		{
-			do
+			// Give back the buffer we just finished
+			if(readBuffer != null)
 			{
-				// Update EOF information
-				if(writeEndBufferSize!=-1)
-				{
-					readEndBuffer = writeLastBuffer;
-					readEndBufferSize = writeEndBufferSize;
-				}
-
-				// OK, are we at the end of file?
-				if(readCurrentBuffer == readEndBuffer)
-				{
-					if(exception != null)
-					{
-						throw exception;
-					}
-					return false;
-				}
-
-				// Update last-safe write buffer (to the one before the one we just finished)
-				if(readCurrentBuffer != -1)
-				{
-					writeLastSafeBuffer = readCurrentBuffer - 1;
-					if(writeLastSafeBuffer == -1)
-					{
-						writeLastSafeBuffer = NUMBUFFERS-1;
-					}
-					synch.notifyAll();
-				}
+				prefetcher.releaseBuffer(readBuffer);
+				readBuffer = null;
+			}
 
-				// See if there are new buffers available from the writing thread
-				if(writeGotData)
+			// Block until there is another buffer or the end
+			while(chunks.isEmpty() && !ended)
+			{
+				try
 				{
-					readLastSafeBuffer = writeLastBuffer;
-					writeGotData = false;
+					long before = System.currentTimeMillis();
+					synch.wait();
+					prefetcher.addBlockTime(System.currentTimeMillis() - before);
 				}
-
-				// Now, do we have a new buffer?
-				if(readCurrentBuffer != readLastSafeBuffer)
+				catch(InterruptedException e)
 				{
-					readCurrentBuffer++;
-					if(readCurrentBuffer >= NUMBUFFERS)
-					{
-						readCurrentBuffer = 0;
-					}
-					readCurrentPos = 0;
-					return true;
+					throw new InterruptedIOException();
 				}
+			}
 
-				// No? Damnit, we need to block
-				while(!writeGotData)
+			if(chunks.isEmpty())
+			{
+				if(exception != null)
 				{
-					try
-					{
-						long before = System.currentTimeMillis();
-						synch.wait();
-						blockTime += System.currentTimeMillis() - before;
-					}
-					catch(InterruptedException e)
-					{
-						throw new InterruptedIOException();
-					}
+					throw exception;
 				}
+				return false;
 			}
-			while(true);
+
+			Chunk chunk = chunks.removeFirst();
+			readBuffer = chunk.data;
+			readSize = chunk.size;
+			readPos = 0;
+			return true;
 		}
 	}
 
@@ -247,8 +171,7 @@ public class ThreadedInputStream extends InputStream implements Runnable
 	public int read() throws IOException
 	{
 		// See if we're at the end of a buffer
-		if(readCurrentPos == BUFFERSIZE ||
-			(readCurrentPos == readEndBufferSize && readCurrentBuffer == readEndBuffer))
+		if(readPos == readSize)
 		{
 			// Move to next buffer, and return if EOF
 			if(!moveReadBuffer())
@@ -258,7 +181,7 @@ public class ThreadedInputStream extends InputStream implements Runnable
 		}
 
 		// Not at the end of any buffer, so just return current data
-		return buffers[readCurrentBuffer][readCurrentPos++];
+		return readBuffer[readPos++] & 0xff;
 	}
 
 	@Override
@@ -274,8 +197,7 @@ public class ThreadedInputStream extends InputStream implements Runnable
 		while(len > 0)
 		{
 			// See if we're at the end of a buffer
-			if(readCurrentPos == BUFFERSIZE ||
-				(readCurrentPos == readEndBufferSize && readCurrentBuffer == readEndBuffer))
+			if(readPos == readSize)
 			{
 				// Move to next buffer, and return if EOF
 				if(!moveReadBuffer())
@@ -285,33 +207,13 @@ public class ThreadedInputStream extends InputStream implements Runnable
 			}
 
 			// Copy data into target
-			int available = readCurrentBuffer == readEndBuffer
-				? readEndBufferSize - readCurrentPos
-				: BUFFERSIZE - readCurrentPos;
-
-			int read = Math.min(available, len);
-			System.arraycopy(buffers[readCurrentBuffer], readCurrentPos,
-				b, off, read);
+			int read = Math.min(readSize - readPos, len);
+			System.arraycopy(readBuffer, readPos, b, off, read);
 			off += read;
 			len -= read;
 			done += read;
-			readCurrentPos += read;
+			readPos += read;
 		}
 		return done;
 	}
-
-	/**
-	 * @return Total time (ms) where I/O thread idled waiting for existing buffers
-	 *   to be used
-	 */
-	public long getIdleTime()
-	{
-		return idleTime;
-	}
-
-	/** @return Total time (ms) spent waiting for I/O */
-	public long getBlockTime()
-	{
-		return blockTime;
-	}
 }
@@ -0,0 +1,208 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Checks that the fast paths used for matching lines (typed -include and
+ * -exclude expressions, IP range tries, -matchcache, and the -normalise
+ * cache) agree with straightforward reference versions. A sample of checks
+ * is made on both paths, timing each; any disagreement is counted and a
+ * few examples are kept.
+ * <p>
+ * This may be used from several threads at once.
+ */
+class Verifier
+{
+	/** Things that are checked. */
+	enum Check
+	{
+		/** Whether the line passes -include and -exclude */
+		FILTER("include/exclude"),
+		/** Category assigned to the line */
+		CATEGORY("category"),
+		/** Agent after -normalise rules */
+		NORMALISE("normalise");
+
+		private String name;
+
+		Check(String name)
+		{
+			this.name = name;
+		}
+
+		/** @return Name for display */
+		String getName()
+		{
+			return name;
+		}
+	}
+
+	private final static Check[] CHECKS = Check.values();
+
+	/** Number of disagreements shown at the end */
+	private final static int MAX_SAMPLES = 10;
+
+	private int every;
+	private AtomicLong selector = new AtomicLong();
+	private AtomicLongArray checked = new AtomicLongArray(CHECKS.length),
+		divergences = new AtomicLongArray(CHECKS.length),
+		fastNanos = new AtomicLongArray(CHECKS.length),
+		referenceNanos = new AtomicLongArray(CHECKS.length);
+
+	private LinkedList<String> samples = new LinkedList<String>();
+	private Writer sampleWriter;
+
+	/**
+	 * @param every Check one in this many lines (or agents)
+	 */
+	Verifier(int every)
+	{
+		this.every = every;
+	}
+
+	/**
+	 * Writes every disagreement to a file as well as keeping a few to display.
+	 * @param file File
+	 * @throws IOException Any error opening the file
+	 */
+	void setSampleFile(File file) throws IOException
+	{
+		sampleWriter = new BufferedWriter(new OutputStreamWriter(
+			new FileOutputStream(file), "UTF-8"));
+	}
+
+	/**
+	 * @return True if this line (or agent) should be checked
+	 */
+	boolean select()
+	{
+		return every == 1 || selector.incrementAndGet() % every == 0;
+	}
+
+	/**
+	 * Records the result of a check.
+	 * @param check Thing that was checked
+	 * @param input Input (e.g. log line)
+	 * @param fast Result of fast path
+	 * @param fastTime Time taken by fast path (nanoseconds)
+	 * @param reference Result of reference path
+	 * @param referenceTime Time taken by reference path (nanoseconds)
+	 */
+	void record(Check check, String input, Object fast, long fastTime,
+		Object reference, long referenceTime)
+	{
+		int index = check.ordinal();
+		checked.incrementAndGet(index);
+		fastNanos.addAndGet(index, fastTime);
+		referenceNanos.addAndGet(index, referenceTime);
+		if(fast.equals(reference))
+		{
+			return;
+		}
+
+		divergences.incrementAndGet(index);
+		String description = check.getName() + ": fast [" + fast
+			+ "], reference [" + reference + "]\n  [" + input + "]";
+		synchronized(samples)
+		{
+			if(samples.size() < MAX_SAMPLES)
+			{
+				samples.add(description);
+			}
+			if(sampleWriter != null)
+			{
+				try
+				{
+					sampleWriter.write(description + "\n");
+				}
+				catch(IOException e)
+				{
+					System.err.println("\n\nError writing -verifyfile (stopped):\n\n"
+						+ e.getMessage());
+					sampleWriter = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the sample file, if any.
+	 * @throws IOException Any error writing
+	 */
+	void close() throws IOException
+	{
+		synchronized(samples)
+		{
+			if(sampleWriter != null)
+			{
+				sampleWriter.close();
+				sampleWriter = null;
+			}
+		}
+	}
+
+	/** @return Total number of disagreements */
+	long getDivergences()
+	{
+		long total = 0;
+		for(int i=0; i<CHECKS.length; i++)
+		{
+			total += divergences.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @return Lines of text describing the results: for each type of check,
+	 *   the number made, disagreements, and average time on each path; then
+	 *   examples of disagreements
+	 */
+	List<String> getReport()
+	{
+		LinkedList<String> report = new LinkedList<String>();
+		for(int i=0; i<CHECKS.length; i++)
+		{
+			long count = checked.get(i);
+			if(count == 0)
+			{
+				continue;
+			}
+			report.add("Verified " + CHECKS[i].getName() + ": " + count
+				+ " checks, " + divergences.get(i) + " different (fast "
+				+ fastNanos.get(i) / count + "ns, reference "
+				+ referenceNanos.get(i) / count + "ns each)");
+		}
+		synchronized(samples)
+		{
+			if(!samples.isEmpty())
+			{
+				report.add("Differences:");
+				for(String sample : samples)
+				{
+					report.add("  " + sample);
+				}
+			}
+		}
+		return report;
+	}
+}
@@ -0,0 +1,308 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.*;
+
+/**
+ * Decides whether each request starts a new visit. A visit is a run of
+ * requests from the same IP address and user agent where each request is
+ * within a given time of the previous one.
+ * <p>
+ * Active visitors are held in two open-addressing hash tables of primitive
+ * arrays, each covering one window of log time. Each table numbers the
+ * agents it holds, and keeps the full text of any address that isn't IPv4.
+ * When the log clock moves past the end of the current window, the older
+ * table is discarded, so memory depends only on the visitors and agents seen
+ * in the last two windows.
+ */
+class VisitTracker
+{
+	private final static int INITIAL_SIZE = 1024;
+
+	private long window;
+
+	private Table current = new Table(INITIAL_SIZE),
+		previous = new Table(INITIAL_SIZE);
+	private long currentStart = Long.MIN_VALUE;
+	private int peakVisitors = 0;
+
+	/**
+	 * Hash table of visitor (IP, agent id) to time of last request. Agent ids
+	 * start at one so that zero marks an empty slot.
+	 */
+	private static class Table
+	{
+		long[] ips;
+		int[] agents;
+		String[] addresses;
+		long[] times;
+		int size, mask;
+		HashMap<String, Integer> agentIds = new HashMap<String, Integer>();
+
+		Table(int capacity)
+		{
+			ips = new long[capacity];
+			agents = new int[capacity];
+			addresses = new String[capacity];
+			times = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		/**
+		 * @param agent User agent
+		 * @return Id of agent in this table, or 0 if it has none
+		 */
+		int getAgentId(String agent)
+		{
+			Integer id = agentIds.get(agent);
+			return id == null ? 0 : id;
+		}
+
+		/**
+		 * @param agent User agent that does not yet have an id
+		 * @return New id
+		 */
+		int addAgentId(String agent)
+		{
+			int id = agentIds.size() + 1;
+			agentIds.put(agent, id);
+			return id;
+		}
+
+		/**
+		 * @param ip IP address value
+		 * @param address Full address if not IPv4, otherwise null
+		 * @param agent Agent id
+		 * @return Slot containing key, or empty slot where it would go
+		 */
+		int find(long ip, String address, int agent)
+		{
+			long h = ip * 0x9e3779b97f4a7c15L + agent;
+			int slot = (int)(h ^ (h >>> 32)) & mask;
+			while(agents[slot] != 0
+				&& (agents[slot] != agent || ips[slot] != ip
+				|| (address != null && !address.equals(addresses[slot]))))
+			{
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		/**
+		 * Sets the time for a key, adding it if necessary.
+		 * @param ip IP address value
+		 * @param address Full address if not IPv4, otherwise null
+		 * @param agent Agent id
+		 * @param time Time in seconds
+		 */
+		void put(long ip, String address, int agent, long time)
+		{
+			int slot = find(ip, address, agent);
+			if(agents[slot] == 0)
+			{
+				if((size + 1) * 2 > ips.length)
+				{
+					grow();
+					slot = find(ip, address, agent);
+				}
+				ips[slot] = ip;
+				agents[slot] = agent;
+				addresses[slot] = address;
+				size++;
+			}
+			times[slot] = time;
+		}
+
+		private void grow()
+		{
+			long[] oldIps = ips, oldTimes = times;
+			int[] oldAgents = agents;
+			String[] oldAddresses = addresses;
+			ips = new long[oldIps.length * 2];
+			agents = new int[oldIps.length * 2];
+			addresses = new String[oldIps.length * 2];
+			times = new long[oldIps.length * 2];
+			mask = ips.length - 1;
+			for(int i=0; i<oldIps.length; i++)
+			{
+				if(oldAgents[i] != 0)
+				{
+					int slot = find(oldIps[i], oldAddresses[i], oldAgents[i]);
+					ips[slot] = oldIps[i];
+					agents[slot] = oldAgents[i];
+					addresses[slot] = oldAddresses[i];
+					times[slot] = oldTimes[i];
+				}
+			}
+		}
+
+		/**
+		 * Empties the table, shrinking it if it is much larger than needed.
+		 * @return Empty table (this or a replacement)
+		 */
+		Table clear()
+		{
+			if(ips.length > INITIAL_SIZE && size * 8 < ips.length)
+			{
+				return new Table(Math.max(INITIAL_SIZE,
+					Integer.highestOneBit(size * 4 + 1)));
+			}
+			Arrays.fill(agents, 0);
+			Arrays.fill(addresses, null);
+			agentIds.clear();
+			size = 0;
+			return this;
+		}
+	}
+
+	/**
+	 * @param window Maximum time between requests in the same visit (seconds)
+	 */
+	VisitTracker(long window)
+	{
+		this.window = window;
+	}
+
+	/**
+	 * Records a request and decides whether it starts a new visit. Lines
+	 * should be roughly in time order; a line that is more than the window
+	 * behind the latest time may be counted as a new visit.
+	 * @param ip IP address (or other identifier) from log line
+	 * @param agent User agent
+	 * @param time Time of request in seconds
+	 * @return True if this is the first request of a visit
+	 */
+	boolean visit(String ip, String agent, long time)
+	{
+		// Move on to a new window, discarding visitors that have expired
+		if(time >= currentStart + window || currentStart == Long.MIN_VALUE)
+		{
+			peakVisitors = Math.max(peakVisitors, current.size + previous.size);
+			if(time >= currentStart + 2 * window || currentStart == Long.MIN_VALUE)
+			{
+				current = current.clear();
+			}
+			Table old = previous.clear();
+			previous = current;
+			current = old;
+			currentStart = time;
+		}
+
+		long ipValue = getIpValue(ip);
+		String address = ipValue < 0 ? ip : null;
+
+		long last = Long.MIN_VALUE;
+		int id = current.getAgentId(agent);
+		if(id != 0)
+		{
+			int slot = current.find(ipValue, address, id);
+			if(current.agents[slot] != 0)
+			{
+				last = current.times[slot];
+			}
+		}
+		if(last == Long.MIN_VALUE)
+		{
+			int previousId = previous.getAgentId(agent);
+			if(previousId != 0)
+			{
+				int slot = previous.find(ipValue, address, previousId);
+				if(previous.agents[slot] != 0)
+				{
+					last = previous.times[slot];
+				}
+			}
+		}
+		if(id == 0)
+		{
+			id = current.addAgentId(agent);
+		}
+
+		current.put(ipValue, address, id, Math.max(last, time));
+		return last == Long.MIN_VALUE || time - last > window;
+	}
+
+	/**
+	 * @return Largest number of visitors held in memory at once (checked each
+	 *   time the window moves on)
+	 */
+	int getPeakVisitors()
+	{
+		return Math.max(peakVisitors, current.size + previous.size);
+	}
+
+	/**
+	 * @return Number of agents held in memory (for testing)
+	 */
+	int getAgentCount()
+	{
+		return current.agentIds.size() + previous.agentIds.size();
+	}
+
+	/**
+	 * Converts an IP address to a long. IPv4 addresses are stored exactly;
+	 * anything else (IPv6 addresses or other identifiers) is converted to a
+	 * 64-bit hash with the top bit set, so it can't clash with an IPv4 address.
+	 * As different addresses may have the same hash, the tables also keep
+	 * the full text of these addresses.
+	 * @param ip IP address text
+	 * @return Value representing address
+	 */
+	static long getIpValue(String ip)
+	{
+		long value = 0;
+		int part = 0, parts = 0, digits = 0;
+		int length = ip.length();
+		for(int i=0; i<=length; i++)
+		{
+			char c = i < length ? ip.charAt(i) : '.';
+			if(c >= '0' && c <= '9' && digits < 3)
+			{
+				part = part * 10 + (c - '0');
+				digits++;
+			}
+			else if(c == '.' && digits > 0 && part < 256 && parts < 4)
+			{
+				value = (value << 8) | part;
+				parts++;
+				part = 0;
+				digits = 0;
+			}
+			else
+			{
+				parts = -1;
+				break;
+			}
+		}
+		if(parts == 4)
+		{
+			return value;
+		}
+
+		// FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for(int i=0; i<length; i++)
+		{
+			hash ^= ip.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash | Long.MIN_VALUE;
+	}
+}
@@ -32,6 +32,7 @@ public class Graph extends CommandLineTool
 {
 	private boolean overwrite, stdout, png, svg, csv,
 		startLabels = true, endLabels = true;
+	private boolean framed;
 	private boolean csvPercentage = true;
 	private Color background = Color.WHITE, foreground = Color.BLACK;
 	private File folder;
@@ -290,12 +291,12 @@ public class Graph extends CommandLineTool
 			png = true;
 		}
 
-		// If stdout or stdin is set, check only one format is specified
-		if( (stdout || getInputFiles() == null) &&
-			((csv ? 1 : 0) + (png ? 1 : 0) + (svg ? 1 : 0)) != 1)
+		// If stdout or stdin is set and there are multiple formats, they are
+		// written as a framed stream
+		if(stdout || getInputFiles() == null)
 		{
-			throw new IllegalArgumentException(
-				"Cannot write multiple formats to stdout");
+			stdout = true;
+			framed = ((csv ? 1 : 0) + (png ? 1 : 0) + (svg ? 1 : 0)) > 1;
 		}
 	}
 
@@ -304,27 +305,43 @@ public class Graph extends CommandLineTool
 	{
 		// Process and check input files
 		LinkedList<InputFile> inputFiles = new LinkedList<InputFile>();
-		File current = null;
+		String current = "stdin";
 		try
 		{
 			File[] input = getInputFiles();
 			if(input == null)
 			{
-				inputFiles.add(new InputFile(null, category));
+				FrameReader frames = getStdinFrames();
+				if(frames == null)
+				{
+					inputFiles.add(new InputFile(getStdin(), current, category));
+				}
+				else
+				{
+					while(frames.next())
+					{
+						current = frames.getName();
+						inputFiles.add(new InputFile(frames.getInputStream(), current,
+							category));
+					}
+					if(inputFiles.isEmpty())
+					{
+						throw new IOException("No documents in framed input");
+					}
+				}
 			}
 			else
 			{
 				for(File file : input)
 				{
-					current = file;
+					current = file.toString();
 					inputFiles.add(new InputFile(file, category));
 				}
 			}
 		}
 		catch(IOException e)
 		{
-			String name = current == null ? "stdin" : current.toString();
-			System.err.println(name + ": " + e.getMessage());
+			System.err.println(current + ": " + e.getMessage());
 			return;
 		}
 
@@ -391,7 +408,23 @@ public class Graph extends CommandLineTool
 			}
 
 			// Save output
-			if(stdout || getInputFiles() == null)
+			if(framed)
+			{
+				FrameWriter frames = new FrameWriter(System.out);
+				for(Canvas canvas : canvases)
+				{
+					OutputStream out = frames.startFrame(prefix + canvas.getExtension());
+					out.write(canvas.save());
+					out.close();
+				}
+				if(csv)
+				{
+					OutputStream out = frames.startFrame(prefix + ".csv");
+					out.write(csvData.getBytes("UTF-8"));
+					out.close();
+				}
+			}
+			else if(stdout)
 			{
 				if(canvases.length != 0)
 				{
@@ -438,7 +471,7 @@ public class Graph extends CommandLineTool
 	{
 		if(prefix == null)
 		{
-			prefix = lastInputFile.getName().replaceAll("\\.summary$", "");
+			prefix = lastInputFile.getName().replaceAll("\\.summary(\\.gz)?$", "");
 		}
 		if(title == null)
 		{
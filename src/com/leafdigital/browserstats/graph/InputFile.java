@@ -28,6 +28,8 @@ import javax.xml.parsers.*;
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 
+import com.leafdigital.browserstats.shared.Gzip;
+
 /**
  * A single file from the input.
  */
@@ -35,6 +37,7 @@ public class InputFile implements Comparable<InputFile>
 {
 	private String date;
 	private File file;
+	private String name;
 	private int linearDateStart, linearDateEnd;
 	private int total;
 	private GroupCount[] groupCounts;
@@ -43,13 +46,58 @@ public class InputFile implements Comparable<InputFile>
 
 	/**
 	 * Reads data and initialises values.
-	 * @param file Input file or null to use stdin
+	 * @param file Input file
 	 * @param category Category to read or null to use total
 	 * @throws IOException If there is any error in the input file
 	 */
 	public InputFile(File file, String category) throws IOException
 	{
 		this.file = file;
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			load(in, file.getName(), category);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads data from a stream and initialises values.
+	 * @param in Input stream (may be gzip-compressed)
+	 * @param name Name of input: "stdin", or the name of a frame from a framed
+	 *   stream, which is treated like a filename when finding the date
+	 * @param category Category to read or null to use total
+	 * @throws IOException If there is any error in the input
+	 */
+	public InputFile(InputStream in, String name, String category)
+		throws IOException
+	{
+		load(in, name, category);
+	}
+
+	/**
+	 * Reads data and initialises values.
+	 * @param in Input stream
+	 * @param name Name of input
+	 * @param category Category to read or null to use total
+	 * @throws IOException If there is any error in the input
+	 */
+	private void load(InputStream in, String name, String category)
+		throws IOException
+	{
+		this.name = name;
+
+		// Try to find date
+		Matcher m = DATE_REGEX.matcher(name);
+		if(m.find())
+		{
+			date = m.group(1);
+			linearDateStart = getLinearDateStart(date);
+			linearDateEnd = getLinearDateEnd(date);
+		}
 
 		// Load input XML
 		Document d;
@@ -57,23 +105,7 @@ public class InputFile implements Comparable<InputFile>
 		{
 			DocumentBuilder builder =
 				DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			if(file != null)
-			{
-				d = builder.parse(file);
-
-				// For files, try to find date
-				Matcher m = DATE_REGEX.matcher(file.getName());
-				if(m.find())
-				{
-					date = m.group(1);
-					linearDateStart = getLinearDateStart(date);
-					linearDateEnd = getLinearDateEnd(date);
-				}
-			}
-			else
-			{
-				d = builder.parse(System.in, "stdin");
-			}
+			d = builder.parse(Gzip.decompress(in), name);
 		}
 		catch(ParserConfigurationException e)
 		{
@@ -199,15 +231,15 @@ public class InputFile implements Comparable<InputFile>
 	}
 
 	/**
-	 * @return Filename or "stdin"
+	 * @return Filename, frame name, or "stdin"
 	 */
 	public String getName()
 	{
-		return file == null ? "stdin" : file.getName();
+		return name;
 	}
 
 	/**
-	 * @return Input file
+	 * @return Input file, or null if read from stdin
 	 */
 	public File getFile()
 	{
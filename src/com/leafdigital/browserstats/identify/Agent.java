@@ -23,6 +23,7 @@ import java.util.LinkedList;
 
 import org.w3c.dom.Element;
 
+import com.leafdigital.browserstats.shared.RegexTimeoutException;
 import com.leafdigital.util.xml.XML;
 
 /** Information required to detect a single browser version. */
@@ -79,7 +80,7 @@ public class Agent extends MatchElement
 	}
 
 	@Override
-	public Agent match(String agent)
+	public Agent match(CharSequence agent) throws RegexTimeoutException
 	{
 		return matches(agent) ? this : null;
 	}
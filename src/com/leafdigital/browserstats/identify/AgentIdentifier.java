@@ -0,0 +1,146 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.identify;
+
+import java.io.*;
+import java.util.HashMap;
+
+import com.leafdigital.browserstats.shared.*;
+import com.leafdigital.util.xml.XMLException;
+
+/**
+ * Identifies agents from counts that are already in memory, so that Collate
+ * can write .knownagents files without writing and reading back .useragents
+ * files. Counts are supplied in the same way as by {@link UserAgentReader},
+ * one document at a time. The agent list is loaded once, and the match for
+ * each agent is remembered from one document to the next, as most agents
+ * appear in every time period.
+ * <p>
+ * Each document must be completed (by calling {@link #write(OutputStream)})
+ * before the next is started; callers on several threads must synchronize
+ * on this object.
+ */
+public class AgentIdentifier implements UserAgentReader.Handler
+{
+	/** Maximum number of agents to remember before clearing */
+	private final static int MAX_CACHE = 100000;
+
+	private AgentList list;
+	private RegexLimit regexLimit;
+	private HashMap<String, Agent> cache = new HashMap<String, Agent>();
+	private long matches, cacheHits;
+
+	private IdentifyResults results;
+
+	/**
+	 * Loads the agent list.
+	 * @param regexLimit Time limit for agent regular expressions
+	 * @throws IOException If the agent list is not valid
+	 */
+	public AgentIdentifier(RegexLimit regexLimit) throws IOException
+	{
+		this.regexLimit = regexLimit;
+		try
+		{
+			list = new AgentList();
+		}
+		catch(XMLException e)
+		{
+			throw new IOException("Error parsing agent list:\n\n" + e.getMessage());
+		}
+		catch(InvalidElementException e)
+		{
+			throw new IOException("Invalid agent list:\n\n" + e.getMessage());
+		}
+	}
+
+	@Override
+	public void agentCategories(String[] categories)
+	{
+		results = new IdentifyResults(categories);
+	}
+
+	@Override
+	public void agentCounts(String agent, int count, int[] categoryCounts)
+	{
+		results.addCounts(match(agent), count, categoryCounts);
+	}
+
+	/**
+	 * Identifies an agent, using the remembered result if there is one.
+	 * @param agent User-agent string
+	 * @return Agent, or null if unknown (including partial matches and agents
+	 *   that took too long to match)
+	 */
+	private Agent match(String agent)
+	{
+		matches++;
+		Agent match = cache.get(agent);
+		if(match != null || cache.containsKey(agent))
+		{
+			cacheHits++;
+			return match;
+		}
+
+		MatchElement matchElement;
+		try
+		{
+			matchElement = list.match(regexLimit.wrap(agent));
+		}
+		catch(RegexTimeoutException e)
+		{
+			// Treat as unmatched
+			regexLimit.record(e);
+			matchElement = null;
+		}
+		// Partial matches of an exclusive group are also unmatched
+		match = matchElement instanceof Agent ? (Agent)matchElement : null;
+
+		if(cache.size() >= MAX_CACHE)
+		{
+			cache.clear();
+		}
+		cache.put(agent, match);
+		return match;
+	}
+
+	/**
+	 * Writes the current document as a .knownagents file. The stream is
+	 * flushed but not closed.
+	 * @param out Target stream
+	 * @throws IOException Any error writing
+	 */
+	public void write(OutputStream out) throws IOException
+	{
+		results.write(out);
+		results = null;
+	}
+
+	/** @return Number of agents identified, over all documents */
+	public long getMatches()
+	{
+		return matches;
+	}
+
+	/** @return Number of agents for which a remembered result was used */
+	public long getCacheHits()
+	{
+		return cacheHits;
+	}
+}
@@ -22,7 +22,7 @@ import java.io.*;
 import java.util.*;
 import java.util.regex.*;
 
-import com.leafdigital.browserstats.shared.CommandLineTool;
+import com.leafdigital.browserstats.shared.*;
 import com.leafdigital.util.xml.XMLException;
 
 /** Analyses a user-agent file to find out what browsers it has. */
@@ -31,7 +31,9 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 	private AgentList list;
 
 	private File folder = null;
-	private boolean overwrite, stdout;
+	private boolean overwrite, stdout, framed;
+	private int compressLevel = 0;
+	private RegexLimit regexLimit = new RegexLimit(0);
 
 	private TestType test = TestType.NONE;
 	private String[] testParams = null;
@@ -123,6 +125,28 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 			stdout = true;
 			return 1;
 		}
+		if(args[i].equals("-framed"))
+		{
+			framed = true;
+			return 1;
+		}
+		if(args[i].equals("-gzip"))
+		{
+			compressLevel = Gzip.DEFAULT_LEVEL;
+			return 1;
+		}
+		if(args[i].equals("-gziplevel"))
+		{
+			checkArgs(args, i, 1);
+			compressLevel = Gzip.parseLevel(args[i+1]);
+			return 2;
+		}
+		if(args[i].equals("-regexlimit"))
+		{
+			checkArgs(args, i, 1);
+			regexLimit = RegexLimit.parse(args[i+1]);
+			return 2;
+		}
 		if(args[i].equals("-test"))
 		{
 			checkArgs(args, i, 1);
@@ -150,6 +174,11 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 	@Override
 	protected void validateArgs() throws IllegalArgumentException
 	{
+		if(framed && !stdout && getInputFiles() != null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -framed without -stdout");
+		}
 	}
 
 	@Override
@@ -218,13 +247,39 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 			File[] input = getInputFiles();
 			if(input == null)
 			{
-				doFile(null);
+				FrameReader frames = getStdinFrames();
+				if(frames == null)
+				{
+					doInput(getStdin(), "stdin", null, null);
+				}
+				else
+				{
+					FrameWriter out = new FrameWriter(System.out);
+					while(frames.next())
+					{
+						doInput(frames.getInputStream(), frames.getName(), null, out);
+					}
+				}
 			}
 			else
 			{
+				// Results to stdout are written as a framed stream only if asked
+				FrameWriter out = null;
+				if(stdout && framed)
+				{
+					out = new FrameWriter(System.out);
+				}
 				for(File f : input)
 				{
-					doFile(f);
+					InputStream stream = new FileInputStream(f);
+					try
+					{
+						doInput(stream, f.getName(), f, out);
+					}
+					finally
+					{
+						stream.close();
+					}
 				}
 			}
 
@@ -274,6 +329,16 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 				agentPatterns.display();
 				break;
 			}
+
+			if(regexLimit.getTimeouts() > 0)
+			{
+				System.err.println("Unmatched (regex time limit): "
+					+ regexLimit.getTimeouts());
+				for(String offender : regexLimit.getTopOffenders(5))
+				{
+					System.err.println("  " + offender);
+				}
+			}
 		}
 		catch(IOException e)
 		{
@@ -281,12 +346,21 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 		}
 	}
 
-	private void doFile(File f) throws IOException
+	/**
+	 * Identifies agents from a single input document and writes the result.
+	 * @param in Input stream
+	 * @param name Name of input file or frame
+	 * @param f Input file, or null if not reading from a file
+	 * @param frames Framed stream for output, or null if not framed
+	 * @throws IOException Any error reading or writing
+	 */
+	private void doInput(InputStream in, String name, File f, FrameWriter frames)
+		throws IOException
 	{
 		// Read data
 		try
 		{
-			new UserAgentReader(f, this);
+			new UserAgentReader(in, name, this);
 		}
 		catch(IOException e)
 		{
@@ -304,27 +378,29 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 		}
 
 		// Get target file for result
+		String targetName = Gzip.stripExtension(name);
+		if(targetName.endsWith(".useragents"))
+		{
+			targetName = targetName.substring(
+				0, targetName.length()-".useragents".length());
+		}
+		targetName += ".knownagents";
 		File target;
+		String targetFileName = targetName
+			+ (compressLevel > 0 ? Gzip.EXTENSION : "");
 		if(f==null || stdout)
 		{
 			target = null;
 		}
 		else
 		{
-			String targetName = f.getName();
-			if(targetName.endsWith(".useragents"))
-			{
-				targetName = targetName.substring(
-					0, targetName.length()-".useragents".length());
-			}
-			targetName += ".knownagents";
 			if(folder!=null)
 			{
-				target = new File(folder, targetName);
+				target = new File(folder, targetFileName);
 			}
 			else
 			{
-				target = new File(f.getParentFile(), targetName);
+				target = new File(f.getParentFile(), targetFileName);
 			}
 
 			if(!overwrite && target.exists())
@@ -334,7 +410,32 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 		}
 
 		// Write results to file
-		results.write(target);
+		if(frames != null)
+		{
+			OutputStream out = frames.startFrame(targetName);
+			results.write(out);
+			out.close();
+		}
+		else if(target == null)
+		{
+			results.write(System.out);
+		}
+		else
+		{
+			OutputStream out = new FileOutputStream(target);
+			if(compressLevel > 0)
+			{
+				out = Gzip.compress(out, compressLevel);
+			}
+			try
+			{
+				results.write(out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
 	}
 
 	@Override
@@ -346,7 +447,17 @@ public class Identify extends CommandLineTool implements UserAgentReader.Handler
 	@Override
 	public void agentCounts(String agent, int count, int[] categoryCounts)
 	{
-		MatchElement matchElement = list.match(agent);
+		MatchElement matchElement;
+		try
+		{
+			matchElement = list.match(regexLimit.wrap(agent));
+		}
+		catch(RegexTimeoutException e)
+		{
+			// Treat as unmatched
+			regexLimit.record(e);
+			matchElement = null;
+		}
 		Agent match;
 		if(matchElement instanceof Agent || matchElement == null)
 		{
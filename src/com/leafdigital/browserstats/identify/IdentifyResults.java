@@ -91,22 +91,13 @@ class IdentifyResults
 	}
 
 	/**
-	 * Writes out results.
-	 * @param f Target file (null = stdout)
+	 * Writes out results. The stream is flushed but not closed.
+	 * @param out Target stream
 	 * @throws IOException Any error when writing
 	 */
-	void write(File f) throws IOException
+	void write(OutputStream out) throws IOException
 	{
-		Writer w;
-		if(f==null)
-		{
-			w = new OutputStreamWriter(System.out, "UTF-8");
-		}
-		else
-		{
-			w = new BufferedWriter(new OutputStreamWriter(
-				new FileOutputStream(f), "UTF-8"));
-		}
+		Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
 		String categoryAttributes = "";
 		if(categories.length > 0)
 		{
@@ -140,13 +131,6 @@ class IdentifyResults
 		}
 
 		w.write("</knownagents>\n");
-		if(f!=null)
-		{
-			w.close();
-		}
-		else
-		{
-			w.flush();
-		}
+		w.flush();
 	}
 }
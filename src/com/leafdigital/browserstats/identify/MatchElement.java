@@ -23,6 +23,7 @@ import java.util.regex.*;
 
 import org.w3c.dom.Element;
 
+import com.leafdigital.browserstats.shared.*;
 import com.leafdigital.util.xml.*;
 
 /** Information required to detect a group of browsers. */
@@ -243,17 +244,40 @@ public abstract class MatchElement implements Comparable<MatchElement>
 		return blankForNull(getOs());
 	}
 
+	/**
+	 * @param regex Regular expression
+	 * @param agent User-agent string
+	 * @return True if the expression is found in the agent
+	 * @throws RegexTimeoutException If the agent is time-limited and the
+	 *   expression takes too long
+	 */
+	private static boolean find(Pattern regex, CharSequence agent)
+		throws RegexTimeoutException
+	{
+		try
+		{
+			return regex.matcher(agent).find();
+		}
+		catch(RegexTimeoutException e)
+		{
+			e.setPattern(regex.pattern());
+			throw e;
+		}
+	}
+
 	/**
 	 * @param agent User-agent string
 	 * @return True if this browser matches the given agent
+	 * @throws RegexTimeoutException If the agent is time-limited and matching
+	 *   takes too long
 	 */
-	protected boolean matches(String agent)
+	protected boolean matches(CharSequence agent) throws RegexTimeoutException
 	{
 		if(notRegexes != null)
 		{
 			for(Pattern regex : notRegexes)
 			{
-				if(regex.matcher(agent).find())
+				if(find(regex, agent))
 				{
 					return false;
 				}
@@ -267,7 +291,7 @@ public abstract class MatchElement implements Comparable<MatchElement>
 
 		for(Pattern regex : regexes)
 		{
-			if(regex.matcher(agent).find())
+			if(find(regex, agent))
 			{
 				return true;
 			}
@@ -277,10 +301,13 @@ public abstract class MatchElement implements Comparable<MatchElement>
 
 	/**
 	 * Returns the browser that matches the given agent.
-	 * @param agent User-agent string
+	 * @param agent User-agent string (may be time-limited with
+	 *   {@link RegexLimit#wrap(String)})
 	 * @return Matching browser or null if none
+	 * @throws RegexTimeoutException If the agent is time-limited and matching
+	 *   takes too long
 	 */
-	public MatchElement match(String agent)
+	public MatchElement match(CharSequence agent) throws RegexTimeoutException
 	{
 		if(!matches(agent))
 		{
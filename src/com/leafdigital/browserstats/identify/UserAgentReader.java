@@ -25,10 +25,12 @@ import javax.xml.parsers.*;
 import org.xml.sax.*;
 import org.xml.sax.helpers.DefaultHandler;
 
+import com.leafdigital.browserstats.shared.Gzip;
+
 /** Reads a user-agent file. */
 public class UserAgentReader extends DefaultHandler
 {
-	private File input;
+	private String name;
 	private Handler h;
 
 	private String[] categories;
@@ -60,28 +62,23 @@ public class UserAgentReader extends DefaultHandler
 	}
 
 	/**
-	 * Parses the input file.
-	 * @param input Input file or null to use stdin
+	 * Parses the input.
+	 * @param input Input stream (may be gzip-compressed)
+	 * @param name Name of input (used in error messages)
 	 * @param h Handler that receives data from file
 	 * @throws IOException Any error parsing
 	 */
-	UserAgentReader(File input, Handler h) throws IOException
+	UserAgentReader(InputStream input, String name, Handler h) throws IOException
 	{
-		this.input = input;
+		this.name = name;
 		this.h = h;
 		SAXParserFactory factory = SAXParserFactory.newInstance();
 	  try
 	  {
       SAXParser saxParser = factory.newSAXParser();
-      if(input==null)
-      {
-      	saxParser.parse(new InputSource(
-      		new InputStreamReader(System.in, "UTF-8")), this);
-      }
-      else
-      {
-      	saxParser.parse(input, this);
-      }
+      InputSource source = new InputSource(Gzip.decompress(input));
+      source.setSystemId(name);
+      saxParser.parse(source, this);
 	  }
 		catch(ParserConfigurationException e)
 		{
@@ -101,7 +98,7 @@ public class UserAgentReader extends DefaultHandler
 
 	private String getLocation()
 	{
-		return input.getName()+ (locator==null ? "" : ":"+locator.getLineNumber());
+		return name + (locator==null ? "" : ":"+locator.getLineNumber());
 	}
 
 	@Override
@@ -0,0 +1,496 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.merge;
+
+import java.io.*;
+import java.util.*;
+
+import com.leafdigital.browserstats.shared.*;
+import com.leafdigital.util.xml.XML;
+
+/**
+ * Merges several .useragents files into one (or one per time period) in a
+ * single streaming pass. If there are more files than can sensibly be open
+ * at once, they are first merged in batches into temporary files.
+ */
+public class Merge extends CommandLineTool
+{
+	/** Time periods for output. */
+	private enum TimePeriod
+	{
+		/** One output file per day */
+		DAILY(10),
+		/** One output file per month */
+		MONTHLY(7),
+		/** One output file per year */
+		YEARLY(4),
+		/** Single output file */
+		ALL(0);
+
+		private int length;
+		TimePeriod(int length)
+		{
+			this.length = length;
+		}
+
+		/**
+		 * @param date Date attribute from input file
+		 * @return Period that includes the date, or null in ALL mode
+		 * @throws IllegalArgumentException If the date is too short
+		 */
+		String getPeriod(String date) throws IllegalArgumentException
+		{
+			if(length == 0)
+			{
+				return null;
+			}
+			if(date == null || date.length() < length)
+			{
+				throw new IllegalArgumentException();
+			}
+			return date.substring(0, length);
+		}
+	};
+
+	private File folder = new File(".");
+	private String prefix = "log";
+	private TimePeriod period = TimePeriod.ALL;
+	private boolean stdout = false;
+	private boolean overwrite = false;
+	private int compressLevel = 0;
+	private int maxFiles = DEFAULT_MAX_FILES;
+
+	/** Default maximum number of input files open at once */
+	private final static int DEFAULT_MAX_FILES = 256;
+
+	/**
+	 * @param args Command-line arguments
+	 */
+	public static void main(String[] args)
+	{
+		(new Merge()).run(args);
+	}
+
+	@Override
+	protected int processArg(String[] args, int i)
+	{
+		if(args[i].equals("-folder"))
+		{
+			checkArgs(args, i, 1);
+			folder = new File(args[i+1]);
+			if(!folder.exists() || !folder.isDirectory())
+			{
+				throw new IllegalArgumentException("Folder does not exist: " + folder);
+			}
+			return 2;
+		}
+		if(args[i].equals("-prefix"))
+		{
+			checkArgs(args, i, 1);
+			prefix = args[i+1];
+			return 2;
+		}
+		if(args[i].equals("-daily"))
+		{
+			period = TimePeriod.DAILY;
+			return 1;
+		}
+		if(args[i].equals("-monthly"))
+		{
+			period = TimePeriod.MONTHLY;
+			return 1;
+		}
+		if(args[i].equals("-yearly"))
+		{
+			period = TimePeriod.YEARLY;
+			return 1;
+		}
+		if(args[i].equals("-single"))
+		{
+			period = TimePeriod.ALL;
+			return 1;
+		}
+		if(args[i].equals("-overwrite"))
+		{
+			overwrite = true;
+			return 1;
+		}
+		if(args[i].equals("-stdout"))
+		{
+			stdout = true;
+			return 1;
+		}
+		if(args[i].equals("-gzip"))
+		{
+			compressLevel = Gzip.DEFAULT_LEVEL;
+			return 1;
+		}
+		if(args[i].equals("-gziplevel"))
+		{
+			checkArgs(args, i, 1);
+			compressLevel = Gzip.parseLevel(args[i+1]);
+			return 2;
+		}
+		if(args[i].equals("-maxfiles"))
+		{
+			checkArgs(args, i, 1);
+			try
+			{
+				maxFiles = Integer.parseInt(args[i+1]);
+			}
+			catch(NumberFormatException e)
+			{
+				maxFiles = 0;
+			}
+			if(maxFiles < 2)
+			{
+				throw new IllegalArgumentException("Invalid -maxfiles value: "
+					+ args[i+1]);
+			}
+			return 2;
+		}
+		return 0;
+	}
+
+	@Override
+	protected void validateArgs() throws IllegalArgumentException
+	{
+		if(getInputFiles() == null)
+		{
+			throw new IllegalArgumentException("Cannot merge from -stdin");
+		}
+		if(stdout && period != TimePeriod.ALL)
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -stdout with -daily or -monthly or -yearly");
+		}
+	}
+
+	@Override
+	protected void go()
+	{
+		try
+		{
+			// Group input files by the output period they belong to
+			TreeMap<String, List<File>> groups = new TreeMap<String, List<File>>();
+			List<File> all = null;
+			String commonDate = null;
+			boolean first = true;
+			for(File f : getInputFiles())
+			{
+				UserAgentCursor cursor = new UserAgentCursor(f);
+				String date = cursor.getDate();
+				cursor.close();
+
+				if(first)
+				{
+					commonDate = date;
+					first = false;
+				}
+				else if(commonDate != null && !commonDate.equals(date))
+				{
+					commonDate = null;
+				}
+
+				if(period == TimePeriod.ALL)
+				{
+					if(all == null)
+					{
+						all = new LinkedList<File>();
+					}
+					all.add(f);
+					continue;
+				}
+
+				String key;
+				try
+				{
+					key = period.getPeriod(date);
+				}
+				catch(IllegalArgumentException e)
+				{
+					throw new IOException(f + ": No suitable date= attribute to "
+						+ "determine output period");
+				}
+				List<File> list = groups.get(key);
+				if(list == null)
+				{
+					list = new LinkedList<File>();
+					groups.put(key, list);
+				}
+				list.add(f);
+			}
+
+			if(all != null)
+			{
+				merge(all, null, commonDate);
+			}
+			for(Map.Entry<String, List<File>> entry : groups.entrySet())
+			{
+				merge(entry.getValue(), entry.getKey(), entry.getKey());
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Merges a group of files into a single output file.
+	 * @param files Input files
+	 * @param timePeriod Time period used in filename, or null if none
+	 * @param date Date attribute for output, or null if none
+	 * @throws IOException Any error reading or writing
+	 */
+	private void merge(List<File> files, String timePeriod, String date)
+		throws IOException
+	{
+		File target = null;
+		if(!stdout)
+		{
+			target = new File(folder, prefix +
+				(timePeriod == null ? "" : "." + timePeriod) + ".useragents"
+				+ (compressLevel > 0 ? Gzip.EXTENSION : ""));
+			if(target.exists() && !overwrite)
+			{
+				throw new IOException("Would overwrite " + target
+					+ ", aborting. (Use -overwrite to allow.)");
+			}
+			for(File f : files)
+			{
+				if(f.getCanonicalFile().equals(target.getCanonicalFile()))
+				{
+					throw new IOException("Output file is also an input: " + target);
+				}
+			}
+		}
+
+		// Merge batches into temporary files until few enough are left
+		LinkedList<File> temporary = new LinkedList<File>();
+		try
+		{
+			while(files.size() > maxFiles)
+			{
+				List<File> batches = new LinkedList<File>();
+				for(int start=0; start<files.size(); start+=maxFiles)
+				{
+					File temp = File.createTempFile("merge.", ".useragents");
+					temporary.add(temp);
+					Writer w = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(temp), "UTF-8"));
+					try
+					{
+						int end = Math.min(files.size(), start + maxFiles);
+						merge(files.subList(start, end), w, date, true);
+					}
+					finally
+					{
+						w.close();
+					}
+					batches.add(temp);
+				}
+				files = batches;
+			}
+
+			Writer w;
+			if(target == null)
+			{
+				w = new OutputStreamWriter(System.out, "UTF-8");
+				merge(files, w, date, false);
+				w.flush();
+				return;
+			}
+			OutputStream out = new FileOutputStream(target);
+			if(compressLevel > 0)
+			{
+				out = Gzip.compress(out, compressLevel);
+			}
+			w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+			boolean ok = false;
+			try
+			{
+				merge(files, w, date, false);
+				ok = true;
+			}
+			finally
+			{
+				w.close();
+				if(!ok)
+				{
+					// Don't leave a partial output file
+					target.delete();
+				}
+			}
+		}
+		finally
+		{
+			for(File temp : temporary)
+			{
+				temp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Merges a group of files, writing the result.
+	 * @param files Input files (no more than the maximum open at once)
+	 * @param w Writer for output
+	 * @param date Date attribute for output, or null if none
+	 * @param intermediate True if the output is a temporary file to be merged
+	 *   again, in which case it keeps the exact variance of sampled counts
+	 * @throws IOException Any error reading or writing
+	 */
+	private void merge(List<File> files, Writer w, String date,
+		boolean intermediate) throws IOException
+	{
+		// Open all files
+		PriorityQueue<UserAgentCursor> queue = new PriorityQueue<UserAgentCursor>();
+		LinkedList<UserAgentCursor> cursors = new LinkedList<UserAgentCursor>();
+		try
+		{
+			String[] categories = null;
+			int scale = 0;
+			String visitMinutes = null;
+			for(File f : files)
+			{
+				UserAgentCursor cursor = new UserAgentCursor(f);
+				cursors.add(cursor);
+				if(categories == null)
+				{
+					categories = cursor.getCategories();
+					scale = cursor.getScale();
+					visitMinutes = cursor.getVisitMinutes();
+				}
+				cursor.mapCategories(categories);
+				if(cursor.getScale() != scale)
+				{
+					throw new IOException(f + ": Sample scale does not match other files");
+				}
+				if(visitMinutes == null ? cursor.getVisitMinutes() != null
+					: !visitMinutes.equals(cursor.getVisitMinutes()))
+				{
+					throw new IOException(f + ": Visit setting does not match other files");
+				}
+				if(cursor.next())
+				{
+					queue.add(cursor);
+				}
+			}
+
+			String categoryAttribute = "";
+			for(String category : categories)
+			{
+				if(categoryAttribute.length() > 0)
+				{
+					categoryAttribute += ",";
+				}
+				categoryAttribute += category;
+			}
+			if(categoryAttribute.length() > 0)
+			{
+				categoryAttribute = " categories='" + categoryAttribute + "'";
+			}
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n" +
+				"<useragents" + (date == null ? "" : " date='" + date + "'")
+				+ categoryAttribute + (scale == 1 ? "" : " scale='" + scale + "'")
+				+ (visitMinutes == null ? "" : " visit-minutes='" + visitMinutes + "'")
+				+ ">\n");
+
+			// Repeatedly take the lowest agent from all files and sum its counts
+			long[] categoryCounts = new long[categories.length];
+			while(!queue.isEmpty())
+			{
+				UserAgentCursor cursor = queue.poll();
+				String agent = cursor.getAgent();
+				long count = 0, visits = 0;
+				double variance = 0;
+				Arrays.fill(categoryCounts, 0);
+				while(true)
+				{
+					count += cursor.getCount();
+					visits += cursor.getVisits();
+					variance += cursor.getVariance();
+					long[] counts = cursor.getCategoryCounts();
+					for(int i=0; i<categoryCounts.length; i++)
+					{
+						categoryCounts[i] += counts[i];
+					}
+					if(cursor.next())
+					{
+						queue.add(cursor);
+					}
+					if(queue.isEmpty() || !queue.peek().getAgent().equals(agent))
+					{
+						break;
+					}
+					cursor = queue.poll();
+				}
+
+				StringBuilder builder = new StringBuilder("<agent count='");
+				builder.append(count);
+				builder.append("'");
+				if(scale > 1)
+				{
+					// Ranges from independent samples combine in quadrature; the
+					// count can't be lower than the lines actually sampled
+					double halfWidth = Math.sqrt(variance);
+					builder.append(" count-low='");
+					builder.append(Math.max(count / scale, Math.round(count - halfWidth)));
+					builder.append("' count-high='");
+					builder.append(Math.round(count + halfWidth));
+					builder.append("'");
+					if(intermediate)
+					{
+						builder.append(" count-variance='");
+						builder.append(variance);
+						builder.append("'");
+					}
+				}
+				if(visitMinutes != null)
+				{
+					builder.append(" count-visits='");
+					builder.append(visits);
+					builder.append("'");
+				}
+				for(int i=0; i<categories.length; i++)
+				{
+					builder.append(' ');
+					builder.append(categories[i]);
+					builder.append("='");
+					builder.append(categoryCounts[i]);
+					builder.append('\'');
+				}
+				builder.append('>');
+				builder.append(XML.esc(agent, false));
+				builder.append("</agent>\n");
+				w.write(builder.toString());
+			}
+
+			w.write("</useragents>\n");
+		}
+		finally
+		{
+			for(UserAgentCursor cursor : cursors)
+			{
+				cursor.close();
+			}
+		}
+	}
+}
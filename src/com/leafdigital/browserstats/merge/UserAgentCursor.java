@@ -0,0 +1,309 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.merge;
+
+import java.io.*;
+
+import javax.xml.stream.*;
+
+import com.leafdigital.browserstats.shared.Gzip;
+
+/**
+ * Reads agents one at a time, in file order, from a .useragents file.
+ * Collate writes agents in sorted order, so several cursors can be merged
+ * without holding any file in memory.
+ */
+class UserAgentCursor implements Comparable<UserAgentCursor>
+{
+	private File file;
+	private InputStream stream;
+	private XMLStreamReader reader;
+
+	private String date;
+	private int scale;
+	private String visitMinutes;
+	private String[] categories;
+	private int[] categoryMap;
+
+	private String agent;
+	private long count, countHigh, visits;
+	private double variance;
+	private long[] categoryCounts;
+
+	/**
+	 * Opens the file and reads its header.
+	 * @param file File to read
+	 * @throws IOException Any error opening or reading file
+	 */
+	UserAgentCursor(File file) throws IOException
+	{
+		this.file = file;
+		stream = Gzip.decompress(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			reader = XMLInputFactory.newInstance().createXMLStreamReader(stream);
+			reader.nextTag();
+			if(!reader.getLocalName().equals("useragents"))
+			{
+				throw new IOException(file + ": XML root tag <useragents> not found");
+			}
+			date = reader.getAttributeValue(null, "date");
+			visitMinutes = reader.getAttributeValue(null, "visit-minutes");
+			String scaleText = reader.getAttributeValue(null, "scale");
+			try
+			{
+				scale = scaleText == null ? 1 : Integer.parseInt(scaleText);
+			}
+			catch(NumberFormatException e)
+			{
+				throw new IOException(file + ": scale= not a valid integer ("
+					+ scaleText + ")");
+			}
+			String categoryList = reader.getAttributeValue(null, "categories");
+			if(categoryList == null || categoryList.length() == 0)
+			{
+				categories = new String[0];
+			}
+			else
+			{
+				categories = categoryList.split(",");
+			}
+		}
+		catch(XMLStreamException e)
+		{
+			close();
+			throw new IOException(file + ": Invalid user-agent data: "
+				+ e.getMessage());
+		}
+		catch(IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/** @return Date attribute from file, or null if none */
+	String getDate()
+	{
+		return date;
+	}
+
+	/**
+	 * @return 1 if the file counts every line, otherwise N where the counts
+	 *   were estimated from 1 in N lines
+	 */
+	int getScale()
+	{
+		return scale;
+	}
+
+	/** @return Visit window attribute from file, or null if visits not counted */
+	String getVisitMinutes()
+	{
+		return visitMinutes;
+	}
+
+	/** @return Category names in the order used by the file */
+	String[] getCategories()
+	{
+		return categories;
+	}
+
+	/**
+	 * Sets the order of categories that will be returned by
+	 * {@link #getCategoryCounts()}.
+	 * @param target Category names in required order
+	 * @throws IOException If the file does not have the same categories
+	 */
+	void mapCategories(String[] target) throws IOException
+	{
+		if(target.length != categories.length)
+		{
+			throw new IOException(file + ": Categories do not match other files");
+		}
+		categoryMap = new int[target.length];
+		categoryCounts = new long[target.length];
+		outer: for(int i=0; i<target.length; i++)
+		{
+			for(int j=0; j<categories.length; j++)
+			{
+				if(categories[j].equals(target[i]))
+				{
+					categoryMap[i] = j;
+					continue outer;
+				}
+			}
+			throw new IOException(file + ": Categories do not match other files");
+		}
+	}
+
+	/**
+	 * Moves to the next agent in the file.
+	 * @return True if there is another agent, false at end of file
+	 * @throws IOException Any error reading, or if agents are not in order
+	 */
+	boolean next() throws IOException
+	{
+		try
+		{
+			while(reader.hasNext())
+			{
+				int event = reader.next();
+				if(event == XMLStreamConstants.START_ELEMENT
+					&& reader.getLocalName().equals("agent"))
+				{
+					count = getCount("count");
+					countHigh = scale == 1 ? count : getCount("count-high");
+					// Temporary files from Merge keep the exact variance
+					String varianceText = reader.getAttributeValue(null, "count-variance");
+					if(varianceText != null)
+					{
+						try
+						{
+							variance = Double.parseDouble(varianceText);
+						}
+						catch(NumberFormatException e)
+						{
+							throw new IOException(file + ": <agent> count-variance= not "
+								+ "a valid number (" + varianceText + ") at line "
+								+ reader.getLocation().getLineNumber());
+						}
+					}
+					else
+					{
+						double halfWidth = countHigh - count;
+						variance = halfWidth * halfWidth;
+					}
+					visits = visitMinutes == null ? 0 : getCount("count-visits");
+					for(int i=0; i<categoryMap.length; i++)
+					{
+						categoryCounts[i] = getCount(categories[categoryMap[i]]);
+					}
+					String previous = agent;
+					agent = reader.getElementText();
+					if(previous != null && previous.compareTo(agent) > 0)
+					{
+						throw new IOException(file + ": Agents not in sorted order at line "
+							+ reader.getLocation().getLineNumber());
+					}
+					return true;
+				}
+			}
+			agent = null;
+			return false;
+		}
+		catch(XMLStreamException e)
+		{
+			throw new IOException(file + ": Invalid user-agent data: "
+				+ e.getMessage());
+		}
+	}
+
+	private long getCount(String name) throws IOException
+	{
+		String value = reader.getAttributeValue(null, name);
+		if(value == null)
+		{
+			throw new IOException(file + ": <agent> missing required attribute "
+				+ name + "= at line " + reader.getLocation().getLineNumber());
+		}
+		try
+		{
+			return Long.parseLong(value);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException(file + ": <agent> " + name
+				+ "= not a valid integer (" + value + ") at line "
+				+ reader.getLocation().getLineNumber());
+		}
+	}
+
+	/** @return Current agent string */
+	String getAgent()
+	{
+		return agent;
+	}
+
+	/** @return Total count for current agent */
+	long getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return Upper end of 95% range for total count of current agent (same as
+	 *   count unless the file was sampled)
+	 */
+	long getCountHigh()
+	{
+		return countHigh;
+	}
+
+	/**
+	 * @return Variance of the estimated count for current agent, as used to
+	 *   work out the 95% range (0 unless the file was sampled)
+	 */
+	double getVariance()
+	{
+		return variance;
+	}
+
+	/** @return Visit count for current agent (0 if visits not counted) */
+	long getVisits()
+	{
+		return visits;
+	}
+
+	/** @return Category counts for current agent, in mapped order */
+	long[] getCategoryCounts()
+	{
+		return categoryCounts;
+	}
+
+	/**
+	 * Closes the file.
+	 */
+	void close()
+	{
+		try
+		{
+			if(reader != null)
+			{
+				reader.close();
+			}
+		}
+		catch(XMLStreamException e)
+		{
+		}
+		try
+		{
+			stream.close();
+		}
+		catch(IOException e)
+		{
+		}
+	}
+
+	@Override
+	public int compareTo(UserAgentCursor o)
+	{
+		return agent.compareTo(o.agent);
+	}
+}
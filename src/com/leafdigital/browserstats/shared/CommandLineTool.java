@@ -31,6 +31,7 @@ public abstract class CommandLineTool
 	private boolean stdin = false;
 
 	private File[] inputFiles = null;
+	private BufferedInputStream stdinStream = null;
 
 	/** @return Input files or null if stdin should be used. */
 	protected File[] getInputFiles()
@@ -38,6 +39,31 @@ public abstract class CommandLineTool
 		return inputFiles;
 	}
 
+	/**
+	 * @return Standard input (buffered, so that it can be checked for framing
+	 *   without losing data)
+	 */
+	protected InputStream getStdin()
+	{
+		if(stdinStream == null)
+		{
+			stdinStream = new BufferedInputStream(System.in);
+		}
+		return stdinStream;
+	}
+
+	/**
+	 * Checks whether standard input is a framed stream containing several
+	 * documents.
+	 * @return Reader for frames, or null if stdin is a single document
+	 * @throws IOException Any error reading
+	 */
+	protected FrameReader getStdinFrames() throws IOException
+	{
+		InputStream in = getStdin();
+		return FrameReader.isFramed(in) ? new FrameReader(in) : null;
+	}
+
 	/**
 	 * Runs complete tool task.
 	 * @param args Command-line arguments
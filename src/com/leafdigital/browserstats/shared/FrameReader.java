@@ -0,0 +1,204 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Reads a framed stream: a sequence of documents, each preceded by a header
+ * line giving its length in bytes and the name of the file it would otherwise
+ * have been written to. For example:
+ * <pre>
+ * #frame 1234 log.2009-08-01.useragents
+ * (1234 bytes of document)
+ * #frame 1301 log.2009-08-02.useragents
+ * ...
+ * </pre>
+ * This allows the tools to pass several documents (e.g. one per day) through
+ * a pipe without writing intermediate files.
+ */
+public class FrameReader
+{
+	/** Text at start of each frame header */
+	final static String HEADER = "#frame ";
+
+	private InputStream in;
+	private FrameInputStream current;
+	private String name;
+
+	/**
+	 * Checks whether a stream is framed, without consuming any data.
+	 * @param in Input stream (must support mark)
+	 * @return True if the stream starts with a frame header
+	 * @throws IOException Any error reading
+	 */
+	public static boolean isFramed(InputStream in) throws IOException
+	{
+		byte[] header = HEADER.getBytes("US-ASCII");
+		byte[] start = new byte[header.length];
+		in.mark(header.length);
+		int pos = 0;
+		while(pos < start.length)
+		{
+			int read = in.read(start, pos, start.length - pos);
+			if(read == -1)
+			{
+				break;
+			}
+			pos += read;
+		}
+		in.reset();
+		return Arrays.equals(header, start);
+	}
+
+	/**
+	 * @param in Framed input stream
+	 */
+	public FrameReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/**
+	 * Moves to the next frame, skipping any unread data in the current one.
+	 * @return True if there is another frame, false at end of stream
+	 * @throws IOException Any error reading, or an invalid header
+	 */
+	public boolean next() throws IOException
+	{
+		if(current != null)
+		{
+			current.close();
+			current = null;
+		}
+
+		// Read header line
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		while(true)
+		{
+			int b = in.read();
+			if(b == -1)
+			{
+				if(line.size() == 0)
+				{
+					return false;
+				}
+				throw new IOException("Framed input: unexpected end of stream");
+			}
+			if(b == '\n')
+			{
+				break;
+			}
+			line.write(b);
+		}
+		String header = line.toString("UTF-8");
+		int space = header.indexOf(' ', HEADER.length());
+		if(!header.startsWith(HEADER) || space == -1)
+		{
+			throw new IOException("Framed input: invalid header: " + header);
+		}
+		long length;
+		try
+		{
+			length = Long.parseLong(header.substring(HEADER.length(), space));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Framed input: invalid header: " + header);
+		}
+		name = header.substring(space + 1);
+		current = new FrameInputStream(length);
+		return true;
+	}
+
+	/** @return Name of current frame */
+	public String getName()
+	{
+		return name;
+	}
+
+	/**
+	 * @return Stream containing the data of the current frame. Closing this
+	 *   stream skips to the end of the frame but leaves the underlying stream
+	 *   open.
+	 */
+	public InputStream getInputStream()
+	{
+		return current;
+	}
+
+	/** Input stream limited to the data of one frame. */
+	private class FrameInputStream extends InputStream
+	{
+		private long remaining;
+
+		FrameInputStream(long length)
+		{
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			if(remaining == 0)
+			{
+				return -1;
+			}
+			int b = in.read();
+			if(b == -1)
+			{
+				throw new IOException("Framed input: unexpected end of stream");
+			}
+			remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if(remaining == 0)
+			{
+				return -1;
+			}
+			int read = in.read(b, off, (int)Math.min(len, remaining));
+			if(read == -1)
+			{
+				throw new IOException("Framed input: unexpected end of stream");
+			}
+			remaining -= read;
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int)Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			byte[] skip = new byte[8192];
+			while(read(skip, 0, skip.length) != -1)
+			{
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.io.*;
+
+/**
+ * Writes a framed stream (see {@link FrameReader}). Each document is held in
+ * memory until it is complete, then written with its header.
+ */
+public class FrameWriter
+{
+	private OutputStream out;
+
+	/**
+	 * @param out Stream to write frames to
+	 */
+	public FrameWriter(OutputStream out)
+	{
+		this.out = out;
+	}
+
+	/**
+	 * Starts a new frame.
+	 * @param name Name of frame (the filename that would have been used)
+	 * @return Stream for contents of frame; the frame is written when this
+	 *   stream is closed
+	 * @throws IllegalArgumentException If the name includes a line break
+	 */
+	public OutputStream startFrame(final String name)
+		throws IllegalArgumentException
+	{
+		if(name.indexOf('\n') != -1 || name.indexOf('\r') != -1)
+		{
+			throw new IllegalArgumentException("Invalid frame name: " + name);
+		}
+		return new ByteArrayOutputStream()
+		{
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException
+			{
+				if(!closed)
+				{
+					closed = true;
+					writeFrame(name, buf, count);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Writes a complete frame.
+	 * @param name Name of frame
+	 * @param data Buffer containing data
+	 * @param length Length of data
+	 * @throws IOException Any error writing
+	 */
+	private synchronized void writeFrame(String name, byte[] data, int length)
+		throws IOException
+	{
+		out.write((FrameReader.HEADER + length + " " + name + "\n").getBytes("UTF-8"));
+		out.write(data, 0, length);
+		out.flush();
+	}
+}
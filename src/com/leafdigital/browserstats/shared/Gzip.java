@@ -0,0 +1,309 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.zip.*;
+
+/**
+ * Support for gzip-compressed intermediate files. Input is detected
+ * automatically; output is compressed on a separate thread so that writing
+ * data is not slowed down by compression.
+ */
+public class Gzip
+{
+	/** File extension for compressed files */
+	public final static String EXTENSION = ".gz";
+
+	/** Default compression level */
+	public final static int DEFAULT_LEVEL = 6;
+
+	/**
+	 * Checks whether a stream is gzip-compressed and if so, decompresses it.
+	 * @param in Input stream
+	 * @return Input stream (decompressed if necessary)
+	 * @throws IOException Any error reading
+	 */
+	public static InputStream decompress(InputStream in) throws IOException
+	{
+		if(!in.markSupported())
+		{
+			in = new BufferedInputStream(in);
+		}
+		in.mark(2);
+		int b1 = in.read(), b2 = in.read();
+		in.reset();
+		if(b1 == 0x1f && b2 == 0x8b)
+		{
+			return new GZIPInputStream(in, 65536);
+		}
+		return in;
+	}
+
+	/**
+	 * Compresses data written to a stream. Compression happens on another
+	 * thread; the returned stream must be closed to complete the output.
+	 * @param out Target stream (will be closed when the returned stream is
+	 *   closed)
+	 * @param level Compression level (1-9)
+	 * @return Stream that compresses data
+	 */
+	public static OutputStream compress(OutputStream out, int level)
+	{
+		return new ThreadedGzipOutputStream(out, level);
+	}
+
+	/**
+	 * Removes the compressed file extension from a name if present.
+	 * @param name Filename
+	 * @return Filename without .gz
+	 */
+	public static String stripExtension(String name)
+	{
+		if(name.endsWith(EXTENSION))
+		{
+			return name.substring(0, name.length() - EXTENSION.length());
+		}
+		return name;
+	}
+
+	/**
+	 * Parses a compression level argument.
+	 * @param level Level text
+	 * @return Level
+	 * @throws IllegalArgumentException If the level is not 1-9
+	 */
+	public static int parseLevel(String level) throws IllegalArgumentException
+	{
+		try
+		{
+			int result = Integer.parseInt(level);
+			if(result >= 1 && result <= 9)
+			{
+				return result;
+			}
+		}
+		catch(NumberFormatException e)
+		{
+		}
+		throw new IllegalArgumentException("Invalid compression level (1-9): "
+			+ level);
+	}
+
+	/**
+	 * Output stream that collects data into buffers and passes them to a
+	 * separate thread for compression.
+	 */
+	private static class ThreadedGzipOutputStream extends OutputStream
+		implements Runnable
+	{
+		private final static int BUFFERSIZE = 65536, MAXQUEUED = 4;
+
+		private OutputStream target;
+		private int level;
+
+		private byte[] buffer = new byte[BUFFERSIZE];
+		private int pos = 0;
+
+		// All these variables may only be accessed when synchronized
+		private LinkedList<byte[]> queue = new LinkedList<byte[]>();
+		private LinkedList<Integer> lengths = new LinkedList<Integer>();
+		private LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+		private boolean ending, finished;
+		private IOException error;
+
+		ThreadedGzipOutputStream(OutputStream target, int level)
+		{
+			this.target = target;
+			this.level = level;
+			Thread t = new Thread(this, "Gzip");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				GZIPOutputStream gzip = new GZIPOutputStream(target, BUFFERSIZE)
+				{
+					{
+						def.setLevel(level);
+					}
+				};
+				while(true)
+				{
+					byte[] data;
+					int length;
+					synchronized(this)
+					{
+						while(queue.isEmpty() && !ending)
+						{
+							wait();
+						}
+						if(queue.isEmpty())
+						{
+							break;
+						}
+						data = queue.removeFirst();
+						length = lengths.removeFirst();
+						notifyAll();
+					}
+					gzip.write(data, 0, length);
+					synchronized(this)
+					{
+						freeBuffers.add(data);
+					}
+				}
+				gzip.close();
+			}
+			catch(IOException e)
+			{
+				synchronized(this)
+				{
+					error = e;
+				}
+			}
+			catch(InterruptedException e)
+			{
+				synchronized(this)
+				{
+					error = new InterruptedIOException();
+				}
+			}
+			finally
+			{
+				synchronized(this)
+				{
+					if(error != null)
+					{
+						try
+						{
+							target.close();
+						}
+						catch(IOException e)
+						{
+						}
+					}
+					finished = true;
+					queue.clear();
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Passes the current buffer to the compression thread.
+		 * @throws IOException If compression has failed
+		 */
+		private synchronized void queueBuffer() throws IOException
+		{
+			while(queue.size() >= MAXQUEUED && !finished)
+			{
+				try
+				{
+					wait();
+				}
+				catch(InterruptedException e)
+				{
+					throw new InterruptedIOException();
+				}
+			}
+			if(error != null)
+			{
+				throw error;
+			}
+			if(finished)
+			{
+				throw new IOException("Stream closed");
+			}
+			queue.add(buffer);
+			lengths.add(pos);
+			notifyAll();
+			buffer = freeBuffers.isEmpty() ? new byte[BUFFERSIZE]
+				: freeBuffers.removeFirst();
+			pos = 0;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			if(pos == buffer.length)
+			{
+				queueBuffer();
+			}
+			buffer[pos++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			while(len > 0)
+			{
+				if(pos == buffer.length)
+				{
+					queueBuffer();
+				}
+				int count = Math.min(len, buffer.length - pos);
+				System.arraycopy(b, off, buffer, pos, count);
+				pos += count;
+				off += count;
+				len -= count;
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			synchronized(this)
+			{
+				if(ending)
+				{
+					return;
+				}
+			}
+			if(pos > 0)
+			{
+				queueBuffer();
+			}
+			synchronized(this)
+			{
+				ending = true;
+				notifyAll();
+				while(!finished)
+				{
+					try
+					{
+						wait();
+					}
+					catch(InterruptedException e)
+					{
+						throw new InterruptedIOException();
+					}
+				}
+				if(error != null)
+				{
+					throw error;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,284 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Limits the time taken by regular expressions, so that a pathological input
+ * (e.g. a very long line that causes catastrophic backtracking) cannot stall
+ * processing. Text is wrapped in a CharSequence that checks the clock every
+ * few thousand characters read by the matcher, and throws a
+ * {@link RegexTimeoutException} once the time is up.
+ * <p>
+ * The limit also keeps a record of timeouts so that the worst offenders can
+ * be reported at the end.
+ */
+public class RegexLimit
+{
+	/** Number of characters read between checks of the clock */
+	private final static int CHECK_INTERVAL = 4096;
+
+	/** Maximum length of example text in offender report */
+	private final static int EXAMPLE_LENGTH = 100;
+
+	private long limitNanos;
+
+	private int timeouts;
+	private HashMap<String, Offender> offenders = new HashMap<String, Offender>();
+
+	private static class Offender implements Comparable<Offender>
+	{
+		private String pattern, example;
+		private int count;
+
+		private Offender(String pattern, String example)
+		{
+			this.pattern = pattern;
+			this.example = example;
+		}
+
+		@Override
+		public int compareTo(Offender o)
+		{
+			if(count != o.count)
+			{
+				return o.count - count;
+			}
+			return pattern.compareTo(o.pattern);
+		}
+
+		@Override
+		public String toString()
+		{
+			String text = example.length() > EXAMPLE_LENGTH
+				? example.substring(0, EXAMPLE_LENGTH) + "... (" + example.length()
+					+ " characters)"
+				: example;
+			return count + " x " + pattern + "\n    [" + text + "]";
+		}
+	}
+
+	/**
+	 * @param milliseconds Time allowed for each regular expression test, or 0
+	 *   for no limit
+	 * @throws IllegalArgumentException If the time is negative
+	 */
+	public RegexLimit(int milliseconds) throws IllegalArgumentException
+	{
+		if(milliseconds < 0)
+		{
+			throw new IllegalArgumentException("Invalid regex time limit: "
+				+ milliseconds);
+		}
+		limitNanos = milliseconds * 1000000L;
+	}
+
+	/** @return Time limit in milliseconds, or 0 if no limit */
+	public int getMilliseconds()
+	{
+		return (int)(limitNanos / 1000000L);
+	}
+
+	/**
+	 * Wraps text so that matching against it is time-limited. The time starts
+	 * when this method is called.
+	 * @param text Text
+	 * @return Text to use in place of the original
+	 */
+	public CharSequence wrap(String text)
+	{
+		if(limitNanos == 0)
+		{
+			return text;
+		}
+		return new TimedText(text, System.nanoTime() + limitNanos);
+	}
+
+	/**
+	 * Tests whether a regular expression is found within text, subject to the
+	 * time limit.
+	 * @param regex Regular expression
+	 * @param text Text
+	 * @return True if found
+	 * @throws RegexTimeoutException If the time limit is exceeded
+	 */
+	public boolean find(Pattern regex, String text) throws RegexTimeoutException
+	{
+		return find(regex.matcher(wrap(text)));
+	}
+
+	/**
+	 * Calls find on a matcher (which should have been created on text from
+	 * {@link #wrap(String)}) and records the timeout if it takes too long.
+	 * @param m Matcher
+	 * @return True if found
+	 * @throws RegexTimeoutException If the time limit is exceeded
+	 */
+	public boolean find(Matcher m) throws RegexTimeoutException
+	{
+		try
+		{
+			return m.find();
+		}
+		catch(RegexTimeoutException e)
+		{
+			e.setPattern(m.pattern().pattern());
+			record(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Replaces all matches of a regular expression within text, subject to the
+	 * time limit.
+	 * @param regex Regular expression
+	 * @param text Text
+	 * @param replacement Replacement (may refer to groups as $1 etc.)
+	 * @return Text after replacement
+	 * @throws RegexTimeoutException If the time limit is exceeded
+	 */
+	public String replaceAll(Pattern regex, String text, String replacement)
+		throws RegexTimeoutException
+	{
+		Matcher m = regex.matcher(wrap(text));
+		try
+		{
+			return m.replaceAll(replacement);
+		}
+		catch(RegexTimeoutException e)
+		{
+			e.setPattern(regex.pattern());
+			record(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Records a timeout for later reporting. This is only necessary when
+	 * matching directly against text from {@link #wrap(String)}; the find
+	 * methods record timeouts automatically.
+	 * @param e Exception
+	 */
+	public synchronized void record(RegexTimeoutException e)
+	{
+		timeouts++;
+		String pattern = e.getPattern() == null ? "(unknown)" : e.getPattern();
+		Offender offender = offenders.get(pattern);
+		if(offender == null)
+		{
+			offender = new Offender(pattern, e.getText());
+			offenders.put(pattern, offender);
+		}
+		offender.count++;
+	}
+
+	/** @return Number of timeouts recorded */
+	public synchronized int getTimeouts()
+	{
+		return timeouts;
+	}
+
+	/**
+	 * @param max Maximum number to return
+	 * @return Descriptions of the regular expressions that timed out most
+	 *   often, with an example of the text that caused each one
+	 */
+	public synchronized List<String> getTopOffenders(int max)
+	{
+		Offender[] sorted = offenders.values().toArray(new Offender[offenders.size()]);
+		Arrays.sort(sorted);
+		List<String> result = new LinkedList<String>();
+		for(int i=0; i<sorted.length && i<max; i++)
+		{
+			result.add(sorted[i].toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Parses a time limit argument.
+	 * @param milliseconds Time limit text
+	 * @return Limit
+	 * @throws IllegalArgumentException If the value is not a valid time
+	 */
+	public static RegexLimit parse(String milliseconds)
+		throws IllegalArgumentException
+	{
+		try
+		{
+			return new RegexLimit(Integer.parseInt(milliseconds));
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid regex time limit: "
+				+ milliseconds);
+		}
+	}
+
+	/**
+	 * Text that throws an exception when read after a deadline.
+	 */
+	private static class TimedText implements CharSequence
+	{
+		private String text;
+		private long deadline;
+		private int untilCheck = CHECK_INTERVAL;
+
+		private TimedText(String text, long deadline)
+		{
+			this.text = text;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public char charAt(int index)
+		{
+			if(--untilCheck == 0)
+			{
+				untilCheck = CHECK_INTERVAL;
+				if(System.nanoTime() - deadline > 0)
+				{
+					throw new RegexTimeoutException(text);
+				}
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length()
+		{
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end)
+		{
+			// Used for group text, which doesn't need a time limit
+			return text.substring(start, end);
+		}
+
+		@Override
+		public String toString()
+		{
+			return text;
+		}
+	}
+}
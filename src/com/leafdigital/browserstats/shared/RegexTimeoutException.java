@@ -0,0 +1,63 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+/**
+ * Thrown when a regular expression takes longer than the time allowed by
+ * a {@link RegexLimit}.
+ */
+public class RegexTimeoutException extends RuntimeException
+{
+	private static final long serialVersionUID = 1L;
+
+	private String text, pattern;
+
+	/**
+	 * @param text Text that was being matched
+	 */
+	RegexTimeoutException(String text)
+	{
+		super("Regular expression time limit exceeded");
+		this.text = text;
+	}
+
+	/** @return Text that was being matched */
+	public String getText()
+	{
+		return text;
+	}
+
+	/** @return Regular expression that timed out, or null if not known */
+	public String getPattern()
+	{
+		return pattern;
+	}
+
+	/**
+	 * Sets the regular expression, if it is not already set.
+	 * @param pattern Regular expression that was being evaluated
+	 */
+	public void setPattern(String pattern)
+	{
+		if(this.pattern == null)
+		{
+			this.pattern = pattern;
+		}
+	}
+}
@@ -36,9 +36,10 @@ import com.leafdigital.util.xml.XML;
  */
 public class Summarise extends CommandLineTool
 {
-	private boolean overwrite, stdout, preventOther, showPercentages,
+	private boolean overwrite, stdout, framed, preventOther, showPercentages,
 		showExcluded=true, showHeaders=true, showTotal = true, autoGroup = true,
 		explicitAutoGroup;
+	private int compressLevel = 0;
 	private LinkedList<Conditions> parameters = new LinkedList<Conditions>();
 	private LinkedList<AutoVersion> autoVersions = new LinkedList<AutoVersion>();
 	private String onlyCategory, suffix;
@@ -106,6 +107,22 @@ public class Summarise extends CommandLineTool
 			stdout = true;
 			return 1;
 		}
+		if(args[i].equals("-framed"))
+		{
+			framed = true;
+			return 1;
+		}
+		if(args[i].equals("-gzip"))
+		{
+			compressLevel = Gzip.DEFAULT_LEVEL;
+			return 1;
+		}
+		if(args[i].equals("-gziplevel"))
+		{
+			checkArgs(args, i, 1);
+			compressLevel = Gzip.parseLevel(args[i+1]);
+			return 2;
+		}
 		if(args[i].equals("-preventother"))
 		{
 			preventOther = true;
@@ -280,6 +297,11 @@ public class Summarise extends CommandLineTool
 		{
 			xml = true;
 		}
+		if(framed && !stdout && getInputFiles() != null)
+		{
+			throw new IllegalArgumentException(
+				"Cannot specify -framed without -stdout");
+		}
 		// Check they're not trying to do stdout with both formats
 		if(csv && xml && stdout)
 		{
@@ -312,7 +334,7 @@ public class Summarise extends CommandLineTool
 	@Override
 	protected void go()
 	{
-		File current = null;
+		String current = null;
 		try
 		{
 			// Add 'other' group to parameters
@@ -321,11 +343,31 @@ public class Summarise extends CommandLineTool
 
 			File[] input = getInputFiles();
 
-			// Read stdin data if required
+			// Read stdin data if required. For a framed stream, documents are only
+			// held in memory if autogroup needs to see them all first
 			Document stdinDoc = null;
+			FrameReader frames = null;
+			LinkedList<String> frameNames = null;
+			LinkedList<Document> frameDocs = null;
 			if(input == null)
 			{
-				stdinDoc = loadXml(null);
+				current = "stdin";
+				frames = getStdinFrames();
+				if(frames == null)
+				{
+					stdinDoc = loadXml(getStdin(), current);
+				}
+				else if(autoGroup)
+				{
+					frameNames = new LinkedList<String>();
+					frameDocs = new LinkedList<Document>();
+					while(frames.next())
+					{
+						current = frames.getName();
+						frameNames.add(current);
+						frameDocs.add(loadXml(frames.getInputStream(), current));
+					}
+				}
 			}
 
 			// Do autogroup
@@ -334,13 +376,23 @@ public class Summarise extends CommandLineTool
 				Set<KnownAgent> include = new HashSet<KnownAgent>();
 				if(input == null)
 				{
-					buildAutoGroupAgents(stdinDoc, other, include);
+					if(frameDocs == null)
+					{
+						buildAutoGroupAgents(stdinDoc, other, include);
+					}
+					else
+					{
+						for(Document d : frameDocs)
+						{
+							buildAutoGroupAgents(d, other, include);
+						}
+					}
 				}
 				else
 				{
 					for(File f : input)
 					{
-						current = f;
+						current = f.toString();
 						Document d = loadXml(f);
 						buildAutoGroupAgents(d, other, include);
 					}
@@ -354,24 +406,51 @@ public class Summarise extends CommandLineTool
 				parameters.add(other);
 			}
 
-			if(input == null)
+			if(input == null && frames == null)
 			{
-				doFile(null, stdinDoc);
+				doFile(null, "stdin", stdinDoc, null);
+			}
+			else if(input == null)
+			{
+				FrameWriter out = new FrameWriter(System.out);
+				if(frameDocs != null)
+				{
+					Iterator<String> names = frameNames.iterator();
+					for(Document d : frameDocs)
+					{
+						current = names.next();
+						doFile(null, current, d, out);
+					}
+				}
+				else
+				{
+					while(frames.next())
+					{
+						current = frames.getName();
+						doFile(null, current,
+							loadXml(frames.getInputStream(), current), out);
+					}
+				}
 			}
 			else
 			{
+				// Results to stdout are written as a framed stream only if asked
+				FrameWriter out = null;
+				if(stdout && framed)
+				{
+					out = new FrameWriter(System.out);
+				}
 				for(File f : input)
 				{
-					current = f;
+					current = f.toString();
 					Document d = loadXml(f);
-					doFile(f, d);
+					doFile(f, f.getName(), d, out);
 				}
 			}
 		}
 		catch(IOException e)
 		{
-			String name = current == null ? "stdin" : current.toString();
-			System.err.println(name + ": " + e.getMessage());
+			System.err.println(current + ": " + e.getMessage());
 		}
 	}
 
@@ -574,7 +653,16 @@ public class Summarise extends CommandLineTool
 		}
 	}
 
-	private void doFile(File file, Document d) throws IOException
+	/**
+	 * Summarises a single document and writes the result.
+	 * @param file Input file, or null if not reading from a file
+	 * @param name Name of input file or frame
+	 * @param d Document
+	 * @param frames Framed stream for output, or null if not framed
+	 * @throws IOException Any error
+	 */
+	private void doFile(File file, String name, Document d, FrameWriter frames)
+		throws IOException
 	{
 		// Get file contents
 		XnownAgentFileContents contents = new XnownAgentFileContents(d);
@@ -690,6 +778,19 @@ public class Summarise extends CommandLineTool
 		}
 
 		// Get target file for result
+		String targetName = Gzip.stripExtension(name);
+		if(targetName.endsWith(".knownagents"))
+		{
+			targetName = targetName.substring(
+				0, targetName.length() - ".knownagents".length());
+		}
+		if(suffix != null)
+		{
+			targetName += "." + suffix;
+		}
+		String
+			targetCsvName = targetName + ".csv",
+			targetXmlName = targetName + ".summary";
 		File targetCsv, targetXml;
 		if(file==null || stdout)
 		{
@@ -698,29 +799,10 @@ public class Summarise extends CommandLineTool
 		}
 		else
 		{
-			String targetName = file.getName();
-			if(targetName.endsWith(".knownagents"))
-			{
-				targetName = targetName.substring(
-					0, targetName.length() - ".knownagents".length());
-			}
-			if(suffix != null)
-			{
-				targetName += "." + suffix;
-			}
-			String
-				targetCsvName = targetName + ".csv",
-				targetXmlName = targetName + ".summary";
-			if(folder != null)
-			{
-				targetCsv = new File(folder, targetCsvName);
-				targetXml = new File(folder, targetXmlName);
-			}
-			else
-			{
-				targetCsv = new File(file.getParentFile(), targetCsvName);
-				targetXml = new File(file.getParentFile(), targetXmlName);
-			}
+			String extension = compressLevel > 0 ? Gzip.EXTENSION : "";
+			File targetFolder = folder != null ? folder : file.getParentFile();
+			targetCsv = new File(targetFolder, targetCsvName + extension);
+			targetXml = new File(targetFolder, targetXmlName + extension);
 
 			if(!overwrite && csv && targetCsv.exists())
 			{
@@ -735,16 +817,8 @@ public class Summarise extends CommandLineTool
 		if(csv)
 		{
 			// Open a writer on target file
-			Writer out;
-			if(targetCsv == null)
-			{
-				out = new BufferedWriter(new OutputStreamWriter(System.out));
-			}
-			else
-			{
-				out = new BufferedWriter(new OutputStreamWriter(
-					new FileOutputStream(targetCsv), "UTF-8"));
-			}
+			OutputStream stream = openOutput(targetCsv, targetCsvName, frames);
+			Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
 
 			// Write headers
 			if(showHeaders)
@@ -889,21 +963,13 @@ public class Summarise extends CommandLineTool
 				out.write("\n");
 			}
 
-			out.close();
+			closeOutput(out, stream);
 		}
 		if(xml)
 		{
 			// Open a writer on target file
-			Writer out;
-			if(targetXml == null)
-			{
-				out = new BufferedWriter(new OutputStreamWriter(System.out));
-			}
-			else
-			{
-				out = new BufferedWriter(new OutputStreamWriter(
-					new FileOutputStream(targetXml), "UTF-8"));
-			}
+			OutputStream stream = openOutput(targetXml, targetXmlName, frames);
+			Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
 
 			// Do open tag and category list
 			out.write("<summary count='" + totalCount + "'");
@@ -946,7 +1012,51 @@ public class Summarise extends CommandLineTool
 			}
 
 			out.write("</summary>\n");
-			out.close();
+			closeOutput(out, stream);
+		}
+	}
+
+	/**
+	 * Opens the stream for an output document.
+	 * @param target Target file, or null for stdout
+	 * @param name Name of output (used as frame name)
+	 * @param frames Framed stream for output, or null if not framed
+	 * @return Stream
+	 * @throws IOException Any error opening file
+	 */
+	private OutputStream openOutput(File target, String name,
+		FrameWriter frames) throws IOException
+	{
+		if(frames != null)
+		{
+			return frames.startFrame(name);
+		}
+		if(target == null)
+		{
+			return System.out;
+		}
+		OutputStream out = new FileOutputStream(target);
+		if(compressLevel > 0)
+		{
+			out = Gzip.compress(out, compressLevel);
+		}
+		return out;
+	}
+
+	/**
+	 * Finishes an output document. Stdout is flushed but not closed, so that
+	 * further documents can be written.
+	 * @param out Writer
+	 * @param stream Stream returned by {@link #openOutput(File, String, FrameWriter)}
+	 * @throws IOException Any error writing
+	 */
+	private static void closeOutput(Writer out, OutputStream stream)
+		throws IOException
+	{
+		out.flush();
+		if(stream != System.out)
+		{
+			stream.close();
 		}
 	}
 
@@ -979,11 +1089,30 @@ public class Summarise extends CommandLineTool
 	}
 
 	/**
-	 * @param file Summary file to load (null for stdin)
+	 * @param file Summary file to load
 	 * @return XML document object
 	 * @throws IOException Any error loading
 	 */
 	private Document loadXml(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			return loadXml(in, file.getName());
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/**
+	 * @param in Stream containing summary data (may be gzip-compressed)
+	 * @param name Name of input (used in error messages)
+	 * @return XML document object
+	 * @throws IOException Any error loading
+	 */
+	private Document loadXml(InputStream in, String name) throws IOException
 	{
 		// Load input XML
 		Document d;
@@ -991,14 +1120,7 @@ public class Summarise extends CommandLineTool
 		{
 			DocumentBuilder builder =
 				DocumentBuilderFactory.newInstance().newDocumentBuilder();
-			if(file != null)
-			{
-				d = builder.parse(file);
-			}
-			else
-			{
-				d = builder.parse(System.in, "stdin");
-			}
+			d = builder.parse(Gzip.decompress(in), name);
 		}
 		catch(ParserConfigurationException e)
 		{
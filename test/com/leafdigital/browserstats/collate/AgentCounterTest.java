@@ -0,0 +1,208 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.util.*;
+
+import com.leafdigital.browserstats.collate.Collate.TimePeriod;
+import com.leafdigital.browserstats.shared.*;
+
+/** Tests closing periods by watermark in {@link AgentCounter}. */
+public class AgentCounterTest extends TestCase
+{
+	private static LogLine line(String isoDate, String isoTime, String agent)
+	{
+		return line(isoDate, isoTime, agent, "");
+	}
+
+	private static LogLine line(String isoDate, String isoTime, String agent,
+		String host)
+	{
+		LogLine line = new LogLine(isoDate + " " + isoTime + " " + agent, agent,
+			isoDate, isoTime, "10.0.0.1", "/", "200", host);
+		line.initCategory(Category.NONE);
+		return line;
+	}
+
+	private static AgentCounter daily(File folder, boolean stdout)
+	{
+		return new AgentCounter(folder, "log", EnumSet.of(TimePeriod.DAILY),
+			false, false, new Category[0], stdout);
+	}
+
+	/**
+	 * A day is written once the watermark (latest time less one hour) passes
+	 * the end of it, and not before.
+	 * @throws Exception Any error
+	 */
+	public void testTimeWatermark() throws Exception
+	{
+		File folder = createFolder();
+		File day1 = new File(folder, "log.2026-01-01.useragents");
+		AgentCounter counter = daily(folder, false);
+
+		counter.process(line("2026-01-01", "10:00:00", "A"));
+		counter.process(line("2026-01-02", "00:30:00", "B"));
+		// Line from the first day is still within the lateness
+		counter.process(line("2026-01-01", "23:59:00", "A"));
+		assertTrue("Day written too soon", !day1.exists());
+
+		counter.process(line("2026-01-02", "01:00:00", "B"));
+		assertTrue("Day not written", day1.exists());
+		assertTrue("Wrong count", read(day1).contains("count='2'>A<"));
+
+		counter.process(line("2026-01-01", "23:59:59", "A"));
+		assertEquals(1, counter.getLateLines());
+
+		counter.flush();
+		assertTrue("Late line counted", read(day1).contains("count='2'>A<"));
+		assertTrue("Second day missing",
+			read(new File(folder, "log.2026-01-02.useragents")).contains(
+			"count='2'>B<"));
+	}
+
+	/**
+	 * With lateness in lines, the watermark is the latest time as it was the
+	 * given number of lines ago.
+	 * @throws Exception Any error
+	 */
+	public void testLineWatermark() throws Exception
+	{
+		File folder = createFolder();
+		File day1 = new File(folder, "log.2026-01-01.useragents");
+		AgentCounter counter = daily(folder, false);
+		counter.setLateness(2, true);
+
+		counter.process(line("2026-01-01", "10:00:00", "A"));
+		counter.process(line("2026-01-02", "00:00:01", "B"));
+		counter.process(line("2026-01-01", "11:00:00", "A"));
+		assertTrue("Day written too soon", !day1.exists());
+		counter.process(line("2026-01-01", "12:00:00", "A"));
+		assertTrue("Day not written", day1.exists());
+		assertTrue("Wrong count", read(day1).contains("count='3'>A<"));
+		counter.flush();
+		assertEquals(0, counter.getLateLines());
+	}
+
+	/**
+	 * A very large lateness in lines doesn't need memory for each line, and
+	 * the watermark still follows the time from that many lines ago.
+	 * @throws Exception Any error
+	 */
+	public void testLargeLineWatermark() throws Exception
+	{
+		File folder = createFolder();
+		File day1 = new File(folder, "log.2026-01-01.useragents");
+		AgentCounter counter = daily(folder, false);
+		counter.setLateness(999999999, true);
+		counter.process(line("2026-01-01", "10:00:00", "A"));
+		for(int i=0; i<1000; i++)
+		{
+			counter.process(line("2026-01-02", "10:00:00", "B"));
+		}
+		assertTrue("Day written too soon", !day1.exists());
+
+		folder = createFolder();
+		day1 = new File(folder, "log.2026-01-01.useragents");
+		counter = daily(folder, false);
+		counter.setLateness(1000, true);
+		counter.process(line("2026-01-01", "10:00:00", "A"));
+		for(int i=0; i<1000; i++)
+		{
+			counter.process(line("2026-01-02", "10:00:00", "B"));
+		}
+		// The line 1000 lines back was the first line from the second day
+		assertTrue("Day written too soon", !day1.exists());
+		counter.process(line("2026-01-01", "11:00:00", "A"));
+		assertTrue("Day not written", day1.exists());
+		assertTrue("Wrong count", read(day1).contains("count='2'>A<"));
+	}
+
+	/**
+	 * With -stdout, late files are written as frames, not to the folder.
+	 * @throws Exception Any error
+	 */
+	public void testLateFilesToStdout() throws Exception
+	{
+		PrintStream oldOut = System.out;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(out, true, "UTF-8"));
+		try
+		{
+			AgentCounter counter = daily(null, true);
+			counter.setLateFiles(true);
+			counter.process(line("2026-01-01", "10:00:00", "A"));
+			counter.process(line("2026-01-02", "02:00:00", "B"));
+			counter.process(line("2026-01-01", "11:00:00", "C"));
+			counter.flush();
+			assertEquals(1, counter.getLateLines());
+		}
+		finally
+		{
+			System.setOut(oldOut);
+		}
+		String text = out.toString("UTF-8");
+		int late = text.indexOf(" log.2026-01-01.late.useragents\n");
+		assertTrue("No late frame", late != -1);
+		assertTrue("Late frame missing agent",
+			text.indexOf(">C</agent>", late) != -1);
+		assertTrue("Late agent in main output",
+			text.indexOf(">C</agent>") > late);
+	}
+
+	/**
+	 * Splitting by host with a single period writes a framed stream to stdout,
+	 * with a frame for each host.
+	 * @throws Exception Any error
+	 */
+	public void testSplitByHostToStdout() throws Exception
+	{
+		PrintStream oldOut = System.out;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(out, true, "UTF-8"));
+		try
+		{
+			AgentCounter counter = new AgentCounter(null, "log",
+				EnumSet.of(TimePeriod.ALL), false, false, new Category[0], true);
+			counter.setSplitByHost();
+			counter.process(line("2026-01-01", "10:00:00", "A", "www.example.com"));
+			counter.process(line("2026-01-01", "10:00:01", "B", "Other.Example.COM"));
+			counter.flush();
+		}
+		finally
+		{
+			System.setOut(oldOut);
+		}
+
+		FrameReader reader = new FrameReader(
+			new ByteArrayInputStream(out.toByteArray()));
+		TreeMap<String, String> frames = new TreeMap<String, String>();
+		while(reader.next())
+		{
+			frames.put(reader.getName(), read(reader.getInputStream()));
+		}
+		assertEquals("[log.other.example.com.useragents, "
+			+ "log.www.example.com.useragents]", frames.keySet().toString());
+		assertTrue("Missing A",
+			frames.get("log.www.example.com.useragents").contains(">A</agent>"));
+		assertTrue("Missing B",
+			frames.get("log.other.example.com.useragents").contains(">B</agent>"));
+	}
+}
@@ -0,0 +1,70 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import com.leafdigital.browserstats.identify.UserAgentReader;
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link AgentData}. */
+public class AgentDataTest extends TestCase
+{
+	/** Handler that remembers the last counts */
+	private static class LastCounts implements UserAgentReader.Handler
+	{
+		private int count;
+		private int[] categoryCounts;
+
+		@Override
+		public void agentCategories(String[] categories)
+		{
+		}
+
+		@Override
+		public void agentCounts(String agent, int count, int[] categoryCounts)
+		{
+			this.count = count;
+			this.categoryCounts = categoryCounts;
+		}
+	}
+
+	/**
+	 * Sampled counts passed to -identify are multiplied up as in the written
+	 * file, and limited to the largest int instead of overflowing.
+	 */
+	public void testIdentifyScale()
+	{
+		Category bots = new Category("bots", "agent", "bot");
+		Category[] categoryList = { bots };
+		AgentData data = new AgentData();
+		data.add(1000000, 0, categoryList, new int[] { 3 });
+
+		LastCounts last = new LastCounts();
+		data.identify(last, "Agent", categoryList, 1);
+		assertEquals(1000000, last.count);
+		assertEquals(3, last.categoryCounts[0]);
+
+		data.identify(last, "Agent", categoryList, 100);
+		assertEquals(100000000, last.count);
+		assertEquals(300, last.categoryCounts[0]);
+
+		data.identify(last, "Agent", categoryList, 5000);
+		assertEquals(Integer.MAX_VALUE, last.count);
+		assertEquals(15000, last.categoryCounts[0]);
+	}
+}
@@ -0,0 +1,181 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.Random;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link IpRanges}. */
+public class IpRangesTest extends TestCase
+{
+	private static IpRanges create()
+	{
+		IpRanges ranges = new IpRanges();
+		ranges.add("10.0.0.0/8");
+		ranges.add("192.168.1.128/25");
+		ranges.add("172.16.5.4");
+		ranges.add("66.249.64.0/19");
+		ranges.add("2001:db8::/32");
+		ranges.add("2a00:1450:4000::/37");
+		ranges.add("::1");
+		return ranges;
+	}
+
+	/**
+	 * Addresses inside and outside IPv4 and IPv6 ranges.
+	 */
+	public void testContains()
+	{
+		IpRanges ranges = create();
+		String[] in =
+		{
+			"10.0.0.0", "10.255.255.255", "192.168.1.128", "192.168.1.255",
+			"172.16.5.4", "66.249.95.255", "2001:db8::1", "2001:0db8:ffff::",
+			"2001:db8:ffff:ffff:ffff:ffff:ffff:ffff", "2a00:1450:4007:80e::200e",
+			"::1", "0:0:0:0:0:0:0:1", "::ffff:10.1.2.3", "2001:DB8::A"
+		};
+		String[] out =
+		{
+			"9.255.255.255", "11.0.0.0", "192.168.1.127", "172.16.5.5",
+			"66.249.96.0", "2001:db9::", "2001:db7:ffff::", "2a00:1450:4800::",
+			"::2", "::", "::ffff:11.0.0.0", "10.0.0", "10.0.0.0.0", "256.0.0.1",
+			"10.0.0.x", "2001:db8:::1", "2001:db8::1::2", "example.com", "", "-"
+		};
+		for(String ip : in)
+		{
+			assertTrue("Should contain " + ip, ranges.contains(ip));
+			assertTrue("Reference should contain " + ip,
+				ranges.containsReference(ip));
+		}
+		for(String ip : out)
+		{
+			assertTrue("Should not contain " + ip, !ranges.contains(ip));
+		}
+		assertEquals(7, ranges.size());
+	}
+
+	/**
+	 * A range that covers another is the same as the larger range alone, in
+	 * either order.
+	 */
+	public void testOverlapping()
+	{
+		IpRanges ranges = new IpRanges();
+		ranges.add("10.1.0.0/16");
+		ranges.add("10.0.0.0/8");
+		ranges.add("10.1.2.0/24");
+		assertTrue("Inside", ranges.contains("10.2.3.4"));
+		assertTrue("Inside", ranges.contains("10.1.2.3"));
+		assertTrue("Outside", !ranges.contains("11.1.2.3"));
+
+		ranges = new IpRanges();
+		ranges.add("0.0.0.0/0");
+		assertTrue("Everything", ranges.contains("255.255.255.255"));
+		assertTrue("IPv4 only", !ranges.contains("2001:db8::1"));
+	}
+
+	/**
+	 * Invalid ranges are rejected.
+	 */
+	public void testInvalid()
+	{
+		String[] invalid = { "10.0.0.0/33", "10.0.0.0/-1", "10.0.0.0/x",
+			"2001:db8::/129", "10.0.0", "example.com/8", "" };
+		for(String cidr : invalid)
+		{
+			try
+			{
+				new IpRanges().add(cidr);
+				fail("Accepted " + cidr);
+			}
+			catch(IllegalArgumentException e)
+			{
+			}
+		}
+	}
+
+	/**
+	 * The trie agrees with the reference check on random addresses near the
+	 * edges of the ranges, and on IPv4-mapped ranges and addresses.
+	 */
+	public void testAgainstReference()
+	{
+		IpRanges mapped = new IpRanges();
+		mapped.add("::ffff:10.0.0.0/104");
+		IpRanges all = new IpRanges();
+		all.add("::/0");
+		IpRanges mappedShort = new IpRanges();
+		mappedShort.add("::ffff:0:0/95");
+		String[] addresses =
+		{
+			"10.0.0.0", "10.1.2.3", "11.0.0.0", "::ffff:10.0.0.0", "::ffff:a01:203",
+			"::ffff:11.0.0.0", "::10.0.0.1", "::1", "2001:db8::1", "1.2.3.4",
+			"::ffff:1.2.3.4", "[::ffff:1.2.3.4]"
+		};
+		for(String ip : addresses)
+		{
+			for(IpRanges ranges : new IpRanges[] { mapped, all, mappedShort })
+			{
+				assertEquals(ranges + " " + ip + " " + ranges.containsReference(ip),
+					ranges + " " + ip + " " + ranges.contains(ip));
+			}
+		}
+		assertTrue("Mapped range", mapped.contains("10.1.2.3"));
+		assertTrue("Mapped range", mapped.contains("::ffff:10.1.2.3"));
+		assertTrue("Mapped range", !mapped.contains("::10.1.2.3"));
+		assertTrue("All IPv6", all.contains("::ffff:1.2.3.4"));
+		assertTrue("Not IPv4", !all.contains("1.2.3.4"));
+
+		IpRanges ranges = create();
+		Random random = new Random(1);
+		String[] v4Bases = { "10.", "192.168.1.", "172.16.5.", "66.249." };
+		String[] v6Bases = { "2001:db", "2a00:1450:400", "::" };
+		for(int i=0; i<20000; i++)
+		{
+			String ip;
+			if(random.nextBoolean())
+			{
+				String base = v4Bases[random.nextInt(v4Bases.length)];
+				ip = base;
+				for(int part = base.split("\\.").length; part<4; part++)
+				{
+					ip += random.nextInt(256) + (part < 3 ? "." : "");
+				}
+				if(random.nextInt(4) == 0)
+				{
+					ip = random.nextInt(256) + ip.substring(ip.indexOf('.'));
+				}
+			}
+			else
+			{
+				ip = v6Bases[random.nextInt(v6Bases.length)]
+					+ Integer.toHexString(random.nextInt(16)) + ":"
+					+ Integer.toHexString(random.nextInt(65536)) + "::"
+					+ Integer.toHexString(random.nextInt(3));
+				if(ip.startsWith(":::"))
+				{
+					ip = ip.substring(1);
+				}
+			}
+			assertEquals(ip + " " + ranges.containsReference(ip),
+				ip + " " + ranges.contains(ip));
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests the single-pass scanner in {@link JsonLogFormat}. */
+public class JsonLogFormatTest extends TestCase
+{
+	private static JsonLogFormat format(String timeFormat)
+	{
+		return new JsonLogFormat("ip", "time", "agent", "path", "status",
+			timeFormat);
+	}
+
+	private static LogLine parse(JsonLogFormat format, String line)
+		throws Exception
+	{
+		return format.parse(line, new Categoriser());
+	}
+
+	/**
+	 * Values are found in any order, with unwanted values (including nested
+	 * objects and strings containing braces) skipped.
+	 * @throws Exception Any error
+	 */
+	public void testKeysAndSkippedValues() throws Exception
+	{
+		LogLine line = parse(format(JsonLogFormat.TIME_ISO),
+			"{ \"extra\": {\"a\": [1, \"}]\", {\"b\": null}]}, \"status\": 200,"
+			+ " \"agent\": \"Mozilla/5.0\", \"n\": -1.5e3, \"t\": true,"
+			+ " \"path\": \"/index.html\", \"ip\": \"10.0.0.1\","
+			+ " \"time\": \"2026-01-02T03:04:05+00:00\" }");
+		assertEquals("Mozilla/5.0", line.getUserAgent());
+		assertEquals("10.0.0.1", line.getIp());
+		assertEquals("/index.html", line.getPath());
+		assertEquals("200", line.getStatus());
+		assertEquals("2026-01-02", line.getIsoDate());
+		assertEquals("03:04:05", line.getIsoTime());
+	}
+
+	/**
+	 * Escapes are decoded in values and keys, including nginx \xNN escapes;
+	 * missing and null values are empty.
+	 * @throws Exception Any error
+	 */
+	public void testEscapes() throws Exception
+	{
+		LogLine line = parse(format(JsonLogFormat.TIME_EPOCH),
+			"{\"time\":86400.9,\"ag\\u0065nt\":\"A \\\"q\\\" \\u00e9\\x41\\\\\","
+			+ "\"path\":null,\"other\\\\\":\"\\\\\",\"ip\":\"::1\"}");
+		assertEquals("A \"q\" \u00e9A\\", line.getUserAgent());
+		assertEquals("", line.getPath());
+		assertEquals("", line.getStatus());
+		assertEquals("::1", line.getIp());
+		assertEquals("1970-01-02", line.getIsoDate());
+		assertEquals("00:00:00", line.getIsoTime());
+	}
+
+	/**
+	 * The first value for a repeated key is used, and scanning stops once all
+	 * values are found (so later rubbish is not noticed).
+	 * @throws Exception Any error
+	 */
+	public void testFirstValueWins() throws Exception
+	{
+		LogLine line = parse(format(JsonLogFormat.TIME_ISO),
+			"{\"ip\":\"1\",\"ip\":\"2\",\"time\":\"2026-01-02T03:04:05Z\","
+			+ "\"agent\":\"x\",\"path\":\"/\",\"status\":\"404\", rubbish");
+		assertEquals("1", line.getIp());
+		assertEquals("404", line.getStatus());
+	}
+
+	/**
+	 * Malformed lines are rejected.
+	 * @throws Exception Any error
+	 */
+	public void testInvalid() throws Exception
+	{
+		JsonLogFormat format = format(JsonLogFormat.TIME_ISO);
+		String[] invalid =
+		{
+			"",
+			"not json",
+			"{\"time\" \"2026-01-02T03:04:05Z\"}",
+			"{\"time\":\"2026-01-02T03:04:05Z\"",
+			"{\"time\":\"2026-01-02T03:04:05Z}",
+			"{\"agent\":\"x\"}",
+			"{\"time\":\"yesterday\"}",
+			"{\"time\":\"2026-01-02T03:04:05Z\",\"agent\":\"\\u12\"}",
+			"{time:1}",
+		};
+		for(String line : invalid)
+		{
+			assertTrue("Accepted: " + line, !format.matches(line));
+		}
+		assertTrue("Rejected valid line",
+			format.matches("{\"time\":\"2026-01-02T03:04:05Z\"}"));
+	}
+}
@@ -0,0 +1,116 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import com.leafdigital.browserstats.shared.*;
+
+/** Tests {@link LineMatcher}. */
+public class LineMatcherTest extends TestCase
+{
+	/** Default filters before they were replaced by faster tests */
+	private final static Pattern OLD_PATH =
+		Pattern.compile("(?:j(?:s|pe?g)|png|gif|css|ico)(?:\\?|$)"),
+		OLD_AGENT = Pattern.compile("^(?:null|-)?$"),
+		OLD_STATUS = Pattern.compile("^200$");
+
+	private final static RegexLimit NO_LIMIT = new RegexLimit(0);
+
+	private static void check(LineMatcher matcher, Pattern old, String value)
+	{
+		boolean expected = old.matcher(value).find();
+		assertEquals(matcher + " [" + value + "] " + expected,
+			matcher + " [" + value + "] " + matcher.match(value, NO_LIMIT));
+		assertEquals(matcher + " [" + value + "] " + expected,
+			matcher + " [" + value + "] " + matcher.matchReference(value, NO_LIMIT));
+	}
+
+	/**
+	 * The default path filter matches the same paths as the old regular
+	 * expression, including paths with query strings.
+	 */
+	public void testDefaultPath()
+	{
+		LineMatcher matcher = LineMatcher.createDefaultPathExclude();
+		String[] paths =
+		{
+			"/", "", "/a.js", "/a.js?v=1", "foo.js?v=1", "/a.jsp", "/a.jsp?x.js",
+			"/view?img=a.png", "/view?img=a.png&x=1", "/x?a.css?b", "/getjs",
+			"/a.jpeg", "/a.jpg?", "/a.jpe", "/a.JPG", "/a.ico\n", "/a.ico\r\n",
+			"/a.gif\n\n", "/a.css ", "/a.png\u0085x", "?", "js", "/js??",
+			"/jpeg.html", "/a.pngx?y"
+		};
+		for(String path : paths)
+		{
+			check(matcher, OLD_PATH, path);
+		}
+		assertTrue("Query string", matcher.match("/view?img=a.png", NO_LIMIT));
+		assertTrue("Typed form differs",
+			!LineMatcher.create(LogLine.Field.PATH, "suffix:js,jpg,jpeg,png,gif,css,ico")
+			.match("/view?img=a.png", NO_LIMIT));
+	}
+
+	/**
+	 * The default agent and status filters match the same values as the old
+	 * regular expressions.
+	 */
+	public void testDefaultAgentAndStatus()
+	{
+		LineMatcher agent = LineMatcher.createDefaultAgentExclude(),
+			status = LineMatcher.createDefaultStatusInclude();
+		String[] values =
+		{
+			"", "-", "null", "--", "nul", "null-", "NULL", " ", "-\n", "null\r\n",
+			"\n", "\n\n", "Mozilla", "200", "2000", "0200", "200\n", "200\r\n",
+			"200\n\n", "200 ", "20", "201"
+		};
+		for(String value : values)
+		{
+			check(agent, OLD_AGENT, value);
+			check(status, OLD_STATUS, value);
+		}
+	}
+
+	/**
+	 * The default filters agree with the old regular expressions on random
+	 * text made from the characters they look for.
+	 */
+	public void testDefaultsRandom()
+	{
+		LineMatcher path = LineMatcher.createDefaultPathExclude(),
+			agent = LineMatcher.createDefaultAgentExclude(),
+			status = LineMatcher.createDefaultStatusInclude();
+		Random random = new Random(1);
+		String chars = "jspegnifcso?.-ul20\n\r";
+		for(int i=0; i<50000; i++)
+		{
+			StringBuilder value = new StringBuilder();
+			int length = random.nextInt(8);
+			for(int j=0; j<length; j++)
+			{
+				value.append(chars.charAt(random.nextInt(chars.length())));
+			}
+			check(path, OLD_PATH, value.toString());
+			check(agent, OLD_AGENT, value.toString());
+			check(status, OLD_STATUS, value.toString());
+		}
+	}
+}
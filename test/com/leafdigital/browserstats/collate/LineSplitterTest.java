@@ -0,0 +1,150 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link LineSplitter}. */
+public class LineSplitterTest extends TestCase
+{
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Stream that returns at most a few bytes from each read */
+	private static class TrickleInputStream extends FilterInputStream
+	{
+		private Random random = new Random(1);
+
+		private TrickleInputStream(InputStream in)
+		{
+			super(in);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return super.read(b, off, Math.min(len, 1 + random.nextInt(9)));
+		}
+	}
+
+	/**
+	 * Splits text with BufferedReader, skipping blank lines.
+	 * @param text Text
+	 * @return Lines
+	 * @throws IOException Any error
+	 */
+	private static List<String> expected(String text) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		List<String> result = new ArrayList<String>();
+		for(String line = reader.readLine(); line != null; line = reader.readLine())
+		{
+			if(line.trim().length() > 0)
+			{
+				result.add(line);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Splits text with LineSplitter.
+	 * @param text Text
+	 * @param trickle True to read only a few bytes at a time
+	 * @return Lines
+	 * @throws IOException Any error
+	 */
+	private static List<String> split(String text, boolean trickle)
+		throws IOException
+	{
+		InputStream in = new ByteArrayInputStream(text.getBytes(UTF8));
+		if(trickle)
+		{
+			in = new TrickleInputStream(in);
+		}
+		LineSplitter splitter = new LineSplitter(in, UTF8);
+		List<String> result = new ArrayList<String>();
+		for(String line = splitter.readLine(); line != null;
+			line = splitter.readLine())
+		{
+			result.add(line);
+		}
+		splitter.close();
+		return result;
+	}
+
+	private static void check(String text) throws IOException
+	{
+		List<String> expected = expected(text);
+		assertEquals(expected, split(text, false));
+		assertEquals(expected, split(text, true));
+	}
+
+	/**
+	 * Lines end at LF, CR or CR LF, as with BufferedReader; blank lines are
+	 * skipped.
+	 * @throws Exception Any error
+	 */
+	public void testLineBreaks() throws Exception
+	{
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e"),
+			split("a\nb\r\nc\rd\n\r \t\n\r\re", false));
+		check("");
+		check("\r");
+		check("\r\n");
+		check("a\r");
+		check("a\r\n\r\nb");
+		check("one\rtwo\r\n\nthree\n\r\n\r\rfour");
+		check("  \n\t\r\n x \r");
+	}
+
+	/**
+	 * Random text with line breaks and multi-byte characters gives the same
+	 * lines as BufferedReader, including lines longer than the buffer.
+	 * @throws Exception Any error
+	 */
+	public void testRandom() throws Exception
+	{
+		Random random = new Random(1);
+		char[] chars = { 'a', 'z', ' ', '\t', '\n', '\r', 'é', '€',
+			'\ud83d', '\ude00' };
+		for(int test=0; test<200; test++)
+		{
+			StringBuilder text = new StringBuilder();
+			int length = test == 0 ? 200000 : random.nextInt(1000);
+			for(int i=0; i<length; i++)
+			{
+				int c = random.nextInt(test == 0 ? 4 : chars.length - 1);
+				if(c == 8)
+				{
+					// Keep surrogate pairs together
+					text.append(chars[8]).append(chars[9]);
+				}
+				else
+				{
+					text.append(chars[c]);
+				}
+			}
+			check(text.toString());
+		}
+	}
+}
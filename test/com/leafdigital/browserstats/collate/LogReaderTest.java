@@ -0,0 +1,133 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.util.*;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link LogReader}. */
+public class LogReaderTest extends TestCase
+{
+	/**
+	 * Writes a log file of several parse batches, with some invalid and blank
+	 * lines and some lines outside the date range.
+	 * @return File
+	 * @throws IOException Any error
+	 */
+	private File writeLog() throws IOException
+	{
+		File file = new File(createFolder(), "test.log");
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		for(int i=0; i<10000; i++)
+		{
+			if(i % 997 == 0)
+			{
+				out.write("not a log line " + i + "\n");
+			}
+			else if(i % 1009 == 0)
+			{
+				out.write("\n");
+			}
+			else
+			{
+				int day = i < 500 ? 1 : 2;
+				out.write("10.0." + (i / 256) % 256 + "." + i % 256
+					+ " - - [0" + day + "/Jan/2026:" + String.format("%02d:%02d:%02d",
+					(i / 3600) % 24, (i / 60) % 60, i % 60) + " +0000] \"GET /p"
+					+ (i % 7) + ".html HTTP/1.1\" " + (i % 11 == 0 ? 404 : 200)
+					+ " 123 \"-\" \"Agent " + (i % 13) + "\"\n");
+			}
+		}
+		out.close();
+		return file;
+	}
+
+	/**
+	 * Reads the file and returns the lines seen, followed by the counts.
+	 * @param file File
+	 * @param threads Number of parse threads
+	 * @return Lines and counts
+	 * @throws IOException Any error
+	 */
+	private List<String> read(File file, int threads) throws IOException
+	{
+		LogReader.Filter filter = new LogReader.Filter()
+		{
+			@Override
+			public boolean accept(LogLine line)
+			{
+				return line.getStatus().equals("200");
+			}
+		};
+		// Hide the messages about invalid lines
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new ByteArrayOutputStream()));
+		LogReader reader = new LogReader(new StandardFormats().getFormat("apache"),
+			"UTF-8", true, new File[] { file }, new Categoriser(), "2026-01-02",
+			null, 1, false, 1, threads, filter, null);
+		List<String> result = new ArrayList<String>();
+		try
+		{
+			for(LogLine line : reader)
+			{
+				result.add(line.getIp() + " " + line.getIsoDate() + " "
+					+ line.getIsoTime() + " " + line.getPath() + " "
+					+ line.getUserAgent());
+			}
+		}
+		finally
+		{
+			reader.close();
+			System.setErr(err);
+		}
+		if(reader.getException() != null)
+		{
+			throw reader.getException();
+		}
+		result.add("invalid " + reader.getInvalidLines());
+		result.add("wrong time " + reader.getWrongTimeLines());
+		result.add("processed " + reader.getProcessedLines());
+		result.add("total " + reader.getTotalLines());
+		return result;
+	}
+
+	/**
+	 * Parsing on several threads returns the same lines in the same order, with
+	 * the same counts, as parsing on the calling thread.
+	 * @throws Exception Any error
+	 */
+	public void testParseThreads() throws Exception
+	{
+		File file = writeLog();
+		List<String> expected = read(file, 1);
+		assertTrue("Too few lines: " + expected.size(), expected.size() > 8000);
+		assertEquals("invalid 11", expected.get(expected.size() - 4));
+		for(int threads : new int[] { 2, 4 })
+		{
+			List<String> actual = read(file, threads);
+			assertEquals(expected.size(), actual.size());
+			for(int i=0; i<expected.size(); i++)
+			{
+				assertEquals(expected.get(i), actual.get(i));
+			}
+		}
+	}
+}
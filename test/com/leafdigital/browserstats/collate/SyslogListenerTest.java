@@ -0,0 +1,235 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link SyslogListener}. */
+public class SyslogListenerTest extends TestCase
+{
+	private final static String LINE = "10.0.0.1 - - [01/Jan/2026:00:00:00 +0000] "
+		+ "\"GET / HTTP/1.1\" 200 5 \"-\" \"Mozilla\"";
+
+	/**
+	 * RFC 5424 and BSD headers are removed, and invalid messages are rejected.
+	 */
+	public void testGetLogLine()
+	{
+		assertEquals(LINE, SyslogListener.getLogLine(
+			"<134>1 2026-01-01T00:00:00.003Z web1 nginx 123 access - " + LINE));
+		assertEquals(LINE, SyslogListener.getLogLine("<134>1 - - - - - - " + LINE));
+		assertEquals(LINE, SyslogListener.getLogLine(
+			"<165>1 2026-01-01T00:00:00Z web1 nginx - - [id@1 a=\"x]\\\"y\"][z b=\"\"] "
+			+ "\uFEFF" + LINE));
+		assertEquals(LINE, SyslogListener.getLogLine(
+			"<13>Jan  1 00:00:00 web1 nginx[123]: " + LINE));
+		assertEquals(LINE, SyslogListener.getLogLine(
+			"<13>Jan 11 00:00:00 nginx: " + LINE + "\n"));
+		assertEquals("a  b", SyslogListener.getLogLine(
+			"<13>Jan 11 00:00:00 web1 app: a\r\nb"));
+
+		String[] invalid =
+		{
+			"", LINE, "<>x", "<1234>Jan 11 00:00:00 app: x",
+			"<1a>Jan 11 00:00:00 app: x",
+			"<13>" + LINE, "<13>Jan 11 00:00:00 app: ", "<134>1 - - - - -",
+			"<134>1 - - - - - -", "<134>1 - - - - - [unclosed a=\"]\" x",
+			"<134>1 - - - - - [a]x"
+		};
+		for(String message : invalid)
+		{
+			assertEquals("[" + message + "] null",
+				"[" + message + "] " + SyslogListener.getLogLine(message));
+		}
+	}
+
+	/**
+	 * @return A port number that is free at the moment
+	 * @throws IOException Any error
+	 */
+	private static int getFreePort() throws IOException
+	{
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		return port;
+	}
+
+	/**
+	 * Waits until the listener has received a number of messages.
+	 * @param listener Listener
+	 * @param count Number of messages
+	 * @throws Exception Any error
+	 */
+	private static void waitFor(SyslogListener listener, int count)
+		throws Exception
+	{
+		long deadline = System.currentTimeMillis() + 20000;
+		while(listener.getReceived() < count)
+		{
+			if(System.currentTimeMillis() > deadline)
+			{
+				fail("Received only " + listener.getReceived() + " of " + count);
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Closes the listener and reads all the lines it received.
+	 * @param listener Listener
+	 * @return Lines
+	 * @throws IOException Any error
+	 */
+	private static List<String> readAll(SyslogListener listener)
+		throws IOException
+	{
+		listener.close();
+		List<String> lines = new ArrayList<String>();
+		for(String line = listener.readLine(); line != null;
+			line = listener.readLine())
+		{
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * Sends data in pieces, pausing between them so that they arrive in
+	 * separate reads.
+	 * @param out Output
+	 * @param data Data
+	 * @param pieces Positions at which to split
+	 * @throws Exception Any error
+	 */
+	private static void send(OutputStream out, byte[] data, int... pieces)
+		throws Exception
+	{
+		int pos = 0;
+		for(int piece : pieces)
+		{
+			out.write(data, pos, piece - pos);
+			out.flush();
+			Thread.sleep(50);
+			pos = piece;
+		}
+		out.write(data, pos, data.length - pos);
+		out.flush();
+	}
+
+	/**
+	 * Octet-counted and LF-framed TCP messages, split across reads, and UDP
+	 * messages all arrive as log lines; invalid messages are counted.
+	 * @throws Exception Any error
+	 */
+	public void testLoopback() throws Exception
+	{
+		int tcpPort = getFreePort(), udpPort = getFreePort();
+		SyslogListener listener = new SyslogListener();
+		listener.addEndpoint("tcp:127.0.0.1:" + tcpPort);
+		listener.addEndpoint("udp:127.0.0.1:" + udpPort);
+		listener.start("UTF-8", 2);
+
+		// Octet counting, with the length and the message split across reads
+		String message = "<13>Jan  1 00:00:00 web1 nginx: octet é";
+		byte[] octets = (message.getBytes("UTF-8").length + " " + message
+			+ "5 <13>x").getBytes("UTF-8");
+		Socket socket = new Socket("127.0.0.1", tcpPort);
+		socket.setTcpNoDelay(true);
+		send(socket.getOutputStream(), octets, 1, 10, octets.length - 2);
+		socket.close();
+
+		// LF framing with CR LF, blank lines, and a final line with no LF
+		byte[] lines = ("<13>Jan  1 00:00:00 web1 nginx: lf 1\r\n\n"
+			+ "<134>1 - - - - - - lf 2\n<13>Jan  1 00:00:00 web1 nginx: lf 3")
+			.getBytes("UTF-8");
+		socket = new Socket("127.0.0.1", tcpPort);
+		socket.setTcpNoDelay(true);
+		send(socket.getOutputStream(), lines, 20, 40);
+		socket.close();
+
+		// Broken octet counting closes the connection
+		socket = new Socket("127.0.0.1", tcpPort);
+		socket.getOutputStream().write("12345678 x\n".getBytes("UTF-8"));
+		socket.close();
+
+		DatagramSocket udp = new DatagramSocket();
+		for(String text : new String[] { "<13>Jan  1 00:00:00 web1 nginx: udp\n",
+			"<134>1 - - - - - -" })
+		{
+			byte[] data = text.getBytes("UTF-8");
+			udp.send(new DatagramPacket(data, data.length,
+				InetAddress.getByName("127.0.0.1"), udpPort));
+		}
+		udp.close();
+
+		waitFor(listener, 7);
+		// Wait for the broken connection too (it counts as invalid only)
+		long deadline = System.currentTimeMillis() + 20000;
+		while(listener.getInvalid() < 3 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		List<String> result = readAll(listener);
+		Collections.sort(result);
+		assertEquals("[lf 1, lf 2, lf 3, octet é, udp]", result.toString());
+		assertEquals(7, listener.getReceived());
+		assertEquals(3, listener.getInvalid());
+		assertEquals(0, listener.getDropped());
+		assertEquals(3, listener.getConnections());
+	}
+
+	/**
+	 * Messages are dropped and counted when the queue is full.
+	 * @throws Exception Any error
+	 */
+	public void testDropWhenFull() throws Exception
+	{
+		int port = getFreePort();
+		SyslogListener listener = new SyslogListener();
+		listener.addEndpoint("tcp:127.0.0.1:" + port);
+		listener.start("UTF-8", 1);
+
+		int count = 70000;
+		Socket socket = new Socket("127.0.0.1", port);
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		for(int i=0; i<count; i++)
+		{
+			out.write(("<13>Jan  1 00:00:00 web1 nginx: " + i + "\n")
+				.getBytes("UTF-8"));
+		}
+		out.close();
+
+		waitFor(listener, count);
+		List<String> result = readAll(listener);
+		assertEquals(count, listener.getReceived());
+		assertEquals(0, listener.getInvalid());
+		assertEquals(count - result.size(), listener.getDropped());
+		assertTrue("Nothing dropped", listener.getDropped() > 0);
+		// The queue keeps the first messages in order
+		for(int i=0; i<result.size(); i++)
+		{
+			assertEquals(Integer.toString(i), result.get(i));
+		}
+	}
+}
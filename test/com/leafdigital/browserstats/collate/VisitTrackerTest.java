@@ -0,0 +1,82 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.collate;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link VisitTracker}. */
+public class VisitTrackerTest extends TestCase
+{
+	/**
+	 * Requests continue a visit while each is within the window of the
+	 * previous one, including across a change of table.
+	 */
+	public void testVisits()
+	{
+		VisitTracker tracker = new VisitTracker(1800);
+		assertTrue("First request", tracker.visit("10.0.0.1", "A", 0));
+		assertTrue("Same visit", !tracker.visit("10.0.0.1", "A", 1000));
+		assertTrue("Same visit (new table)", !tracker.visit("10.0.0.1", "A", 2700));
+		assertTrue("Other agent", tracker.visit("10.0.0.1", "B", 2700));
+		assertTrue("Other address", tracker.visit("10.0.0.2", "A", 2700));
+		assertTrue("After gap", tracker.visit("10.0.0.1", "A", 4600));
+		assertTrue("After long gap", tracker.visit("10.0.0.2", "A", 100000));
+	}
+
+	/**
+	 * Addresses that aren't IPv4 are told apart exactly, and don't clash with
+	 * IPv4 addresses.
+	 */
+	public void testOtherAddresses()
+	{
+		VisitTracker tracker = new VisitTracker(1800);
+		String[] addresses =
+		{
+			"2001:db8::1", "2001:db8::2", "2001:db8::1:0", "::ffff:10.0.0.1",
+			"10.0.0.1", "10.0.0.1.5", "visitor-1", ""
+		};
+		for(String address : addresses)
+		{
+			assertTrue("First request: " + address,
+				tracker.visit(address, "A", 10));
+		}
+		for(String address : addresses)
+		{
+			assertTrue("Same visit: " + address, !tracker.visit(address, "A", 20));
+		}
+		assertTrue("IPv4 value", VisitTracker.getIpValue("10.0.0.1") == 0x0a000001L);
+		assertTrue("Hash value", VisitTracker.getIpValue("2001:db8::1") < 0);
+	}
+
+	/**
+	 * Agents are forgotten along with the visitors in old windows, so memory
+	 * does not grow with the number of different agents over a long run.
+	 */
+	public void testAgentsForgotten()
+	{
+		VisitTracker tracker = new VisitTracker(60);
+		for(int i=0; i<10000; i++)
+		{
+			tracker.visit("10.0.0.1", "Agent " + i, i);
+		}
+		assertTrue("Agents held: " + tracker.getAgentCount(),
+			tracker.getAgentCount() <= 120);
+		assertTrue("Still tracked", !tracker.visit("10.0.0.1", "Agent 9999", 10000));
+	}
+}
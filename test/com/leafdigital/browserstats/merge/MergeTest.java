@@ -0,0 +1,166 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.merge;
+
+import java.io.*;
+
+import com.leafdigital.browserstats.shared.TestCase;
+
+/** Tests {@link Merge}. */
+public class MergeTest extends TestCase
+{
+	private File folder;
+
+	/**
+	 * Writes a .useragents file.
+	 * @param name Filename
+	 * @param header Attributes of the root tag
+	 * @param agents Agent tags
+	 * @return File
+	 * @throws IOException Any error
+	 */
+	private File write(String name, String header, String... agents)
+		throws IOException
+	{
+		if(folder == null)
+		{
+			folder = createFolder();
+		}
+		File file = new File(folder, name);
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		w.write("<?xml version='1.0' encoding='UTF-8'?>\n<useragents" + header
+			+ ">\n");
+		for(String agent : agents)
+		{
+			w.write(agent + "\n");
+		}
+		w.write("</useragents>\n");
+		w.close();
+		return file;
+	}
+
+	/**
+	 * Runs Merge with output to stdout.
+	 * @param args Arguments
+	 * @return Output and any error message
+	 * @throws IOException Any error
+	 */
+	private static String merge(String... args) throws IOException
+	{
+		PrintStream oldOut = System.out, oldErr = System.err;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PrintStream print = new PrintStream(out, true, "UTF-8");
+		System.setOut(print);
+		System.setErr(print);
+		try
+		{
+			Merge.main(args);
+		}
+		finally
+		{
+			System.setOut(oldOut);
+			System.setErr(oldErr);
+		}
+		return out.toString("UTF-8");
+	}
+
+	/**
+	 * Counts for the same agent are added, agents stay in order, and
+	 * categories are matched by name when files list them in different orders.
+	 * @throws Exception Any error
+	 */
+	public void testMerge() throws Exception
+	{
+		File a = write("a.useragents",
+			" date='2026-01-01' categories='bots,internal'",
+			"<agent count='3' bots='1' internal='2'>A</agent>",
+			"<agent count='5' bots='0' internal='0'>C</agent>");
+		File b = write("b.useragents",
+			" date='2026-01-02' categories='internal,bots'",
+			"<agent count='2' internal='1' bots='1'>A</agent>",
+			"<agent count='4' internal='4' bots='0'>B</agent>");
+		File c = write("c.useragents",
+			" date='2026-01-02' categories='bots,internal'");
+		String expected = "<?xml version='1.0' encoding='UTF-8'?>\n"
+			+ "<useragents categories='bots,internal'>\n"
+			+ "<agent count='5' bots='2' internal='3'>A</agent>\n"
+			+ "<agent count='4' bots='0' internal='4'>B</agent>\n"
+			+ "<agent count='5' bots='0' internal='0'>C</agent>\n"
+			+ "</useragents>\n";
+		assertEquals(expected, merge("-stdout", a.getPath(), b.getPath(),
+			c.getPath()));
+		// Merging in stages through temporary files gives the same result
+		assertEquals(expected, merge("-stdout", "-maxfiles", "2", a.getPath(),
+			b.getPath(), c.getPath()));
+	}
+
+	/**
+	 * Sampled ranges and visits combine the same way when merged in stages.
+	 * @throws Exception Any error
+	 */
+	public void testStagesSampled() throws Exception
+	{
+		String[] args = new String[7];
+		args[0] = "-stdout";
+		for(int i=0; i<6; i++)
+		{
+			args[i + 1] = write(i + ".useragents",
+				" scale='10' visit-minutes='30'",
+				"<agent count='" + (100 + i * 10) + "' count-low='" + (80 + i)
+				+ "' count-high='" + (120 + i * 13) + "' count-visits='" + i
+				+ "'>A</agent>").getPath();
+		}
+		String single = merge(args);
+		assertTrue(single, single.contains(
+			"<agent count='750' count-low='681' count-high='819' count-visits='15'>"));
+		String[] staged = new String[args.length + 2];
+		staged[0] = "-maxfiles";
+		staged[1] = "2";
+		System.arraycopy(args, 0, staged, 2, args.length);
+		assertEquals(single, merge(staged));
+	}
+
+	/**
+	 * Files that aren't sorted, or don't match, are errors, and no partial
+	 * output file is left behind.
+	 * @throws Exception Any error
+	 */
+	public void testErrors() throws Exception
+	{
+		File sorted = write("sorted.useragents", "",
+			"<agent count='1'>A</agent>", "<agent count='1'>B</agent>");
+		File unsorted = write("unsorted.useragents", "",
+			"<agent count='1'>B</agent>", "<agent count='1'>A</agent>");
+		File output = new File(folder, "out.useragents");
+		String result = merge("-folder", folder.getPath(), "-prefix", "out",
+			sorted.getPath(), unsorted.getPath());
+		assertTrue(result, result.contains("Agents not in sorted order"));
+		assertTrue("Partial output left", !output.exists());
+
+		File other = write("other.useragents", " categories='bots'",
+			"<agent count='1' bots='1'>A</agent>");
+		result = merge("-stdout", sorted.getPath(), other.getPath());
+		assertTrue(result, result.contains("Categories do not match"));
+
+		File sampled = write("sampled.useragents", " scale='2'",
+			"<agent count='2' count-low='1' count-high='3'>A</agent>");
+		result = merge("-stdout", sorted.getPath(), sampled.getPath());
+		assertTrue(result, result.contains("Sample scale does not match"));
+	}
+}
@@ -0,0 +1,152 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.io.*;
+
+/** Tests {@link FrameWriter} and {@link FrameReader}. */
+public class FrameReaderTest extends TestCase
+{
+	private static void writeFrame(FrameWriter writer, String name, byte[] data)
+		throws IOException
+	{
+		OutputStream out = writer.startFrame(name);
+		out.write(data);
+		out.close();
+		// Closing again must not write the frame twice
+		out.close();
+	}
+
+	/**
+	 * Frames are read back with their names and exact contents, including
+	 * empty frames, binary data and data that looks like a frame header.
+	 * @throws Exception Any error
+	 */
+	public void testRoundTrip() throws Exception
+	{
+		byte[][] data =
+		{
+			"<?xml version='1.0'?>\n<useragents/>\n".getBytes("UTF-8"),
+			new byte[0],
+			"#frame 5 fake\nabcde".getBytes("UTF-8"),
+			new byte[] { 0, (byte)0xff, '\n', '\r', 0x1f, (byte)0x8b },
+		};
+		String[] names = { "log.2026-01-01.useragents", "empty", "fake frame",
+			"é.useragents" };
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		FrameWriter writer = new FrameWriter(stream);
+		for(int i=0; i<data.length; i++)
+		{
+			writeFrame(writer, names[i], data[i]);
+		}
+
+		InputStream in = new BufferedInputStream(
+			new ByteArrayInputStream(stream.toByteArray()));
+		assertTrue("Not detected", FrameReader.isFramed(in));
+		FrameReader reader = new FrameReader(in);
+		for(int i=0; i<data.length; i++)
+		{
+			assertTrue("Missing frame " + i, reader.next());
+			assertEquals(names[i], reader.getName());
+			ByteArrayOutputStream read = new ByteArrayOutputStream();
+			InputStream frame = reader.getInputStream();
+			int b;
+			while((b = frame.read()) != -1)
+			{
+				read.write(b);
+			}
+			assertEquals(new String(data[i], "ISO-8859-1"),
+				read.toString("ISO-8859-1"));
+		}
+		assertTrue("Extra frame", !reader.next());
+	}
+
+	/**
+	 * Moving to the next frame skips any data that wasn't read.
+	 * @throws Exception Any error
+	 */
+	public void testSkipUnread() throws Exception
+	{
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		FrameWriter writer = new FrameWriter(stream);
+		writeFrame(writer, "a", new byte[100000]);
+		writeFrame(writer, "b", "b".getBytes("UTF-8"));
+
+		FrameReader reader = new FrameReader(
+			new ByteArrayInputStream(stream.toByteArray()));
+		assertTrue("Missing a", reader.next());
+		assertEquals(0, reader.getInputStream().read());
+		assertTrue("Missing b", reader.next());
+		assertEquals("b", reader.getName());
+		assertEquals("b", read(reader.getInputStream()));
+		assertTrue("Extra frame", !reader.next());
+	}
+
+	/**
+	 * Plain documents are not mistaken for framed streams, and detection does
+	 * not consume any input.
+	 * @throws Exception Any error
+	 */
+	public void testNotFramed() throws Exception
+	{
+		String[] plain = { "", "#", "#fram", "<?xml version='1.0'?>",
+			"#Frame 1 x\n" };
+		for(String text : plain)
+		{
+			InputStream in = new BufferedInputStream(
+				new ByteArrayInputStream(text.getBytes("UTF-8")));
+			assertTrue("Detected: " + text, !FrameReader.isFramed(in));
+			assertEquals(text, read(in));
+		}
+	}
+
+	/**
+	 * Invalid headers and truncated frames are errors.
+	 * @throws Exception Any error
+	 */
+	public void testInvalid() throws Exception
+	{
+		String[] invalid = { "#frame 10 x\nshort", "#frame x y\n", "#frame 5\n",
+			"#frame 1 x" };
+		for(String text : invalid)
+		{
+			FrameReader reader = new FrameReader(
+				new ByteArrayInputStream(text.getBytes("UTF-8")));
+			try
+			{
+				reader.next();
+				read(reader.getInputStream());
+				fail("No error: " + text);
+			}
+			catch(IOException e)
+			{
+			}
+		}
+
+		try
+		{
+			new FrameWriter(new ByteArrayOutputStream()).startFrame("a\nb");
+			fail("Accepted line break in name");
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.io.*;
+
+/**
+ * Base class for tests. Each public method whose name begins with 'test' is
+ * run on a new instance of the class by {@link TestRunner}; a test fails if
+ * it throws any exception or error.
+ */
+public abstract class TestCase
+{
+	/**
+	 * @param message Message if condition is false
+	 * @param condition Condition that should be true
+	 * @throws AssertionError If condition is false
+	 */
+	protected static void assertTrue(String message, boolean condition)
+		throws AssertionError
+	{
+		if(!condition)
+		{
+			throw new AssertionError(message);
+		}
+	}
+
+	/**
+	 * @param expected Expected value (may be null)
+	 * @param actual Actual value (may be null)
+	 * @throws AssertionError If values are not equal
+	 */
+	protected static void assertEquals(Object expected, Object actual)
+		throws AssertionError
+	{
+		if(expected == null ? actual != null : !expected.equals(actual))
+		{
+			throw new AssertionError("Expected [" + expected + "], got ["
+				+ actual + "]");
+		}
+	}
+
+	/**
+	 * @param expected Expected value
+	 * @param actual Actual value
+	 * @throws AssertionError If values are not equal
+	 */
+	protected static void assertEquals(long expected, long actual)
+		throws AssertionError
+	{
+		if(expected != actual)
+		{
+			throw new AssertionError("Expected " + expected + ", got " + actual);
+		}
+	}
+
+	/**
+	 * @param message Reason for failure
+	 * @throws AssertionError Always
+	 */
+	protected static void fail(String message) throws AssertionError
+	{
+		throw new AssertionError(message);
+	}
+
+	/**
+	 * Creates an empty folder that is deleted (with its contents) on exit.
+	 * @return Folder
+	 * @throws IOException Any error creating folder
+	 */
+	protected static File createFolder() throws IOException
+	{
+		final File folder = File.createTempFile("browserstats", ".test");
+		folder.delete();
+		if(!folder.mkdir())
+		{
+			throw new IOException("Unable to create folder: " + folder);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				File[] files = folder.listFiles();
+				if(files != null)
+				{
+					for(File f : files)
+					{
+						f.delete();
+					}
+				}
+				folder.delete();
+			}
+		});
+		return folder;
+	}
+
+	/**
+	 * Reads a file as UTF-8 text.
+	 * @param f File
+	 * @return Contents
+	 * @throws IOException Any error reading
+	 */
+	protected static String read(File f) throws IOException
+	{
+		return read(new FileInputStream(f));
+	}
+
+	/**
+	 * Reads a stream as UTF-8 text, then closes it.
+	 * @param in Input stream
+	 * @return Contents
+	 * @throws IOException Any error reading
+	 */
+	protected static String read(InputStream in) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			while(true)
+			{
+				int read = in.read(buffer);
+				if(read == -1)
+				{
+					break;
+				}
+				out.write(buffer, 0, read);
+			}
+			return out.toString("UTF-8");
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
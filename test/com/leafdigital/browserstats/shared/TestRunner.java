@@ -0,0 +1,133 @@
+/*
+This file is part of leafdigital browserstats.
+
+browserstats is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+browserstats is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with browserstats.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2010 Samuel Marshall.
+*/
+package com.leafdigital.browserstats.shared;
+
+import java.io.File;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Runs all tests (classes whose names end in 'Test') found in a folder of
+ * compiled classes, and exits with an error status if any fail.
+ */
+public class TestRunner
+{
+	/**
+	 * @param args Folder containing compiled test classes
+	 */
+	public static void main(String[] args)
+	{
+		if(args.length != 1)
+		{
+			System.err.println("Usage: TestRunner {classes folder}");
+			System.exit(2);
+		}
+		TreeSet<String> classNames = new TreeSet<String>();
+		findClasses(new File(args[0]), "", classNames);
+
+		int run = 0, failed = 0;
+		for(String className : classNames)
+		{
+			Class<?> c;
+			try
+			{
+				c = Class.forName(className);
+			}
+			catch(ClassNotFoundException e)
+			{
+				System.err.println(className + ": not found");
+				failed++;
+				continue;
+			}
+			if(Modifier.isAbstract(c.getModifiers())
+				|| !TestCase.class.isAssignableFrom(c))
+			{
+				continue;
+			}
+
+			// Sort methods so that order is the same every time
+			TreeMap<String, Method> tests = new TreeMap<String, Method>();
+			for(Method m : c.getMethods())
+			{
+				if(m.getName().startsWith("test") && m.getParameterTypes().length == 0)
+				{
+					tests.put(m.getName(), m);
+				}
+			}
+			for(Method m : tests.values())
+			{
+				run++;
+				try
+				{
+					Constructor<?> constructor = c.getDeclaredConstructor();
+					constructor.setAccessible(true);
+					m.setAccessible(true);
+					m.invoke(constructor.newInstance());
+				}
+				catch(InvocationTargetException e)
+				{
+					failed++;
+					System.err.println(c.getSimpleName() + "." + m.getName()
+						+ " FAILED:");
+					e.getCause().printStackTrace();
+				}
+				catch(Exception e)
+				{
+					failed++;
+					System.err.println(c.getSimpleName() + "." + m.getName()
+						+ " could not run: " + e);
+				}
+			}
+		}
+
+		System.err.println("Tests run: " + run + ", failed: " + failed);
+		// Tests may leave daemon threads running, so exit explicitly
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Finds test classes in a folder and its subfolders.
+	 * @param folder Folder
+	 * @param packagePrefix Package name for this folder, with trailing dot
+	 *   (empty for the root folder)
+	 * @param classNames Set that receives fully-qualified class names
+	 */
+	private static void findClasses(File folder, String packagePrefix,
+		Set<String> classNames)
+	{
+		File[] files = folder.listFiles();
+		if(files == null)
+		{
+			return;
+		}
+		for(File f : files)
+		{
+			String name = f.getName();
+			if(f.isDirectory())
+			{
+				findClasses(f, packagePrefix + name + ".", classNames);
+			}
+			else if(name.endsWith("Test.class") && name.indexOf('$') == -1)
+			{
+				classNames.add(packagePrefix
+					+ name.substring(0, name.length() - ".class".length()));
+			}
+		}
+	}
+}